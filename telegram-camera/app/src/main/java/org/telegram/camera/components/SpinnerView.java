@@ -63,6 +63,9 @@ public class SpinnerView extends View {
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
+        if (!isEnabled()) {
+            return false;
+        }
         float x = event.getX();
         switch (event.getAction()) {
             case MotionEvent.ACTION_MOVE:
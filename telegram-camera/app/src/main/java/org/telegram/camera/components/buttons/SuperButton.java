@@ -176,6 +176,14 @@ public class SuperButton extends ButtonWithMargin {
         middle.startAnimation(imButtonAnimation);
     }
 
+    /**
+     * Animation of a picture taken in burst mode. Unlike {@link #startAnimation(int)}, doesn't change
+     * mode and clickability of a button
+     */
+    public void burstShotAnimation() {
+        takePictureAnimation();
+    }
+
     /**
      * Animation of swipe from camera mode to video record mode
      */
@@ -17,8 +17,13 @@ import org.telegram.camera.components.buttons.FlashButton;
 import org.telegram.camera.components.buttons.SuperButton;
 import org.telegram.camera.components.buttons.SwitchCameraButton;
 import org.telegram.camera.ui.MainActivity;
+import org.telegram.camera.utils.BurstCapture;
+import org.telegram.camera.utils.CameraCapabilities;
 import org.telegram.camera.utils.CameraHolder;
+import org.telegram.camera.utils.CameraStartup;
+import org.telegram.camera.utils.CameraThread;
 import org.telegram.camera.utils.CameraUtils;
+import org.telegram.camera.utils.LatencyTracker;
 import org.telegram.camera.utils.OnLongPressListener;
 import org.telegram.camera.utils.OnSwipeTouchListener;
 
@@ -49,6 +54,11 @@ public class CameraFragment extends Fragment implements Animated {
     private SuperButton superButton;
 
     private CameraHolder cameraHolder;
+    private BurstCapture burstCapture;
+    /**
+     * Pictures that were queued by taps while another picture was taken
+     */
+    private BurstCapture queueCapture;
 
     @Nullable
     @Override
@@ -75,7 +85,7 @@ public class CameraFragment extends Fragment implements Animated {
         if (savedInstanceState != null) {
             switchCamera.setFront(savedInstanceState.getBoolean(FRONT_CAMERA));
         } else {
-            if (CameraUtils.hasBackCamera()) {
+            if (CameraCapabilities.getInstance(getActivity()).hasBackCamera()) {
                 switchCamera.setFront(false);
             } else {
                 switchCamera.setFront(true);
@@ -83,10 +93,30 @@ public class CameraFragment extends Fragment implements Animated {
         }
     }
 
+    /**
+     * Check if fragment has to open camera when it's shown
+     *
+     * @return True, if camera isn't opened yet
+     */
+    public boolean needsCamera() {
+        return cameraHolder == null;
+    }
+
+    /**
+     * Check which camera is chosen
+     *
+     * @return True, if front camera is chosen, False, otherwise
+     */
+    public boolean isFront() {
+        return switchCamera.isFront();
+    }
+
     @Override
     public void show(@Nullable EndAnimationListener callback) {
-        if (cameraHolder == null) {
-            if (!CameraUtils.hasCamera()) {
+        // Camera that is loaded now waits for layout itself
+        boolean loaded = cameraHolder != null;
+        if (!loaded) {
+            if (!CameraCapabilities.getInstance(getActivity()).hasCamera()) {
                 MainActivity.showNoCameraMessage(getActivity());
                 return;
             }
@@ -96,7 +126,7 @@ public class CameraFragment extends Fragment implements Animated {
         }
         setLayoutAccordingToMode();
         superButton.show(callback);
-        if (cameraHolder != null) {
+        if (loaded) {
             showPreview();
         }
     }
@@ -115,7 +145,7 @@ public class CameraFragment extends Fragment implements Animated {
                 flashButton.show(null);
             }
         }
-        if (CameraUtils.hasTwoCameras()) {
+        if (CameraCapabilities.getInstance(getActivity()).hasTwoCameras()) {
             if (switchCamera.getVisibility() == GONE) {
                 switchCamera.show(null);
             }
@@ -143,14 +173,24 @@ public class CameraFragment extends Fragment implements Animated {
         cameraView.setVisibility(VISIBLE);
         switch (superButton.mode) {
             case MODE_CAMERA:
-                cameraHolder.prepareForPhoto(cameraView);
+                cameraHolder.prepareForPhoto(cameraView, null);
                 break;
             case MODE_VIDEO:
-                cameraHolder.prepareForVideo(cameraView);
+                cameraHolder.prepareForVideo(cameraView, null);
                 break;
         }
     }
 
+    /**
+     * Start preview again, e.g. if taken picture was dropped
+     */
+    public void restartPreview() {
+        if (cameraHolder != null) {
+            cameraHolder.stopPreview();
+            cameraHolder.startPreview();
+        }
+    }
+
     /**
      * Update toolbars according to mode. E.G. if we record video, then hide flash and show timer
      *
@@ -199,9 +239,58 @@ public class CameraFragment extends Fragment implements Animated {
         outState.putBoolean(FRONT_CAMERA, switchCamera.isFront());
     }
 
+    /**
+     * Start taking pictures in burst while button is pressed
+     */
+    private void startBurst() {
+        if (burstCapture == null) {
+            burstCapture = new BurstCapture(getActivity(), getResources().getInteger(R.integer.burst_buffer_count));
+        }
+        cameraHolder.startBurst(burstCapture, getResources().getInteger(R.integer.burst_frames_per_second),
+                new CameraHolder.OnBurstShotListener() {
+                    @Override
+                    public void onBurstShot(int queued, int dropped) {
+                        superButton.burstShotAnimation();
+                    }
+                });
+    }
+
+    /**
+     * Queue picture that is requested while another one is being taken
+     */
+    private void queuePicture() {
+        if (queueCapture == null) {
+            queueCapture = new BurstCapture(getActivity(), getResources().getInteger(R.integer.burst_buffer_count));
+        }
+        cameraHolder.queuePicture(queueCapture, new CameraHolder.OnBurstShotListener() {
+            @Override
+            public void onBurstShot(int queued, int dropped) {
+                superButton.burstShotAnimation();
+            }
+        });
+    }
+
+    /**
+     * Stop taking pictures in burst. Writer continues until all taken pictures are saved
+     */
+    private void stopBurst() {
+        if (cameraHolder != null) {
+            cameraHolder.stopBurst();
+        }
+        if (burstCapture != null) {
+            burstCapture.release();
+            burstCapture = null;
+        }
+    }
+
     @Override
     public void onPause() {
         super.onPause();
+        stopBurst();
+        if (queueCapture != null) {
+            queueCapture.release();
+            queueCapture = null;
+        }
         if (superButton.mode == MODE_VIDEO_RECORD) {
             cameraHolder.setRecordVideoCallback(null);
             cameraHolder.stopRecording();
@@ -236,6 +325,10 @@ public class CameraFragment extends Fragment implements Animated {
             @Override
             public void onClick(View v) {
                 if (!superButton.isClickable()){
+                    // Picture is being taken, next one is queued instead of dropped
+                    if (superButton.mode == MODE_CAMERA && cameraHolder != null) {
+                        queuePicture();
+                    }
                     return;
                 }
                 superButton.startAnimation(superButton.mode);
@@ -243,7 +336,8 @@ public class CameraFragment extends Fragment implements Animated {
                 switch (superButton.mode) {
                     case SuperButton.MODE_CAMERA:
                         if (cameraHolder != null) {
-                            cameraHolder.takePicture((MainActivity) getActivity());
+                            cameraHolder.takePicture((MainActivity) getActivity(),
+                                    LatencyTracker.start(LatencyTracker.PICTURE));
                         }
                         break;
                     case SuperButton.MODE_RECORD:
@@ -252,11 +346,11 @@ public class CameraFragment extends Fragment implements Animated {
                         }
                         cameraHolder.record(new CameraHolder.RecordVideoCallback() {
                             @Override
-                            public void onVideoRecorded(final File videoFile) {
+                            public void onVideoRecorded(final File videoFile, final LatencyTracker.Trace trace) {
                                 superButton.stopToRecordAnimation(new EndAnimationListener() {
                                     @Override
                                     public void onAnimationEnd() {
-                                        ((MainActivity) getActivity()).onVideoRecorded(videoFile);
+                                        ((MainActivity) getActivity()).onVideoRecorded(videoFile, trace);
                                     }
                                 });
                             }
@@ -272,27 +366,49 @@ public class CameraFragment extends Fragment implements Animated {
         });
 
         OnLongPressListener longPressListener = new OnLongPressListener() {
+            private boolean burst, pressed;
+
             @Override
             public void onPressed() {
                 if (cameraHolder == null) return;
-                if (cameraHolder.prepareForVideo(cameraView)) {
-                    changeVideoRecordingMode(MODE_VIDEO_RECORD);
-                    superButton.longTapAnimation(new EndAnimationListener() {
-                        @Override
-                        public void onAnimationEnd() {
-                            cameraHolder.record(new CameraHolder.RecordVideoCallback() {
-                                @Override
-                                public void onVideoRecorded(final File videoFile) {
-                                    ((MainActivity) getActivity()).onVideoRecorded(videoFile);
-                                }
-                            });
-                        }
-                    });
+                burst = superButton.mode == MODE_CAMERA && getResources().getBoolean(R.bool.burst_on_long_press);
+                if (burst) {
+                    startBurst();
+                    return;
                 }
+                pressed = true;
+                final CameraHolder holder = cameraHolder;
+                cameraHolder.prepareForVideo(cameraView, new CameraThread.Callback<Boolean>() {
+                    @Override
+                    public void onDone(Boolean prepared) {
+                        // Button could be released or camera switched while preview was prepared
+                        if (!Boolean.TRUE.equals(prepared) || !pressed || cameraHolder != holder) {
+                            return;
+                        }
+                        changeVideoRecordingMode(MODE_VIDEO_RECORD);
+                        superButton.longTapAnimation(new EndAnimationListener() {
+                            @Override
+                            public void onAnimationEnd() {
+                                cameraHolder.record(new CameraHolder.RecordVideoCallback() {
+                                    @Override
+                                    public void onVideoRecorded(File videoFile, LatencyTracker.Trace trace) {
+                                        ((MainActivity) getActivity()).onVideoRecorded(videoFile, trace);
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
             }
 
             @Override
             public void onReleased() {
+                pressed = false;
+                if (burst) {
+                    burst = false;
+                    stopBurst();
+                    return;
+                }
                 if (cameraHolder == null) return;
                 cameraHolder.stopRecording();
                 changeVideoRecordingMode(MODE_CAMERA);
@@ -332,9 +448,14 @@ public class CameraFragment extends Fragment implements Animated {
                 if (cameraHolder != null && superButton.mode == MODE_VIDEO) {
                     cameraHolder.releaseRecorder();
                     changeMode(MODE_CAMERA);
-                    if (!cameraHolder.prepareForPhoto(cameraView)) {
-                        changeMode(MODE_VIDEO);
-                    }
+                    cameraHolder.prepareForPhoto(cameraView, new CameraThread.Callback<Boolean>() {
+                        @Override
+                        public void onDone(Boolean prepared) {
+                            if (!Boolean.TRUE.equals(prepared)) {
+                                changeMode(MODE_VIDEO);
+                            }
+                        }
+                    });
                 }
             }
 
@@ -342,37 +463,74 @@ public class CameraFragment extends Fragment implements Animated {
             public void onSwipeLeft() {
                 if (cameraHolder != null && superButton.mode == MODE_CAMERA) {
                     changeMode(MODE_VIDEO);
-                    if (!cameraHolder.prepareForVideo(cameraView)) {
-                        changeMode(MODE_CAMERA);
-                    }
+                    cameraHolder.prepareForVideo(cameraView, new CameraThread.Callback<Boolean>() {
+                        @Override
+                        public void onDone(Boolean prepared) {
+                            if (!Boolean.TRUE.equals(prepared)) {
+                                changeMode(MODE_CAMERA);
+                            }
+                        }
+                    });
                 }
             }
         });
     }
 
     /**
-     * Acquire camera
+     * Acquire camera. Camera can be already opened by activity, while the layout was inflated
      *
      * @param facing True, is front camera is required, false, otherwise
-     * @see org.telegram.camera.utils.CameraUtils.LoadCameraTask
+     * @see CameraStartup
      */
     private void loadCamera(boolean facing) {
         cameraHolder = null;
-        new CameraUtils.LoadCameraTask(new CameraUtils.CameraLoadedListener() {
+        ((MainActivity) getActivity()).getCameraStartup().get(facing, new CameraUtils.CameraLoadedListener() {
             @Override
-            public void onCameraLoaded(CameraHolder cameraHolder) {
+            public void onCameraLoaded(final CameraHolder cameraHolder) {
                 if (cameraHolder == null) {
                     MainActivity.showNoCameraMessage(getActivity());
                     return;
                 }
                 if (getActivity() != null) {
                     CameraFragment.this.cameraHolder = cameraHolder;
+                    cameraHolder.setZeroShutterLag(getResources().getBoolean(R.bool.zsl_enabled),
+                            getResources().getInteger(R.integer.zsl_frame_count));
                     checkFeaturesAvailability();
                     cameraHolder.updateCameraOrientation(getActivity());
-                    showPreview();
+                    whenLaidOut(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Camera could be released or switched while layout was waited
+                            if (CameraFragment.this.cameraHolder == cameraHolder) {
+                                showPreview();
+                            }
+                        }
+                    });
                 }
             }
-        }).execute(facing);
+        });
+    }
+
+    /**
+     * Run action when the preview is laid out, size of the preview is chosen by the size of its parent
+     *
+     * @param action Action to run on the main thread
+     */
+    private void whenLaidOut(final Runnable action) {
+        final View parent = (View) cameraView.getParent();
+        if (parent.getWidth() > 0 && parent.getHeight() > 0) {
+            action.run();
+            return;
+        }
+        parent.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom, int oldLeft, int oldTop,
+                                       int oldRight, int oldBottom) {
+                parent.removeOnLayoutChangeListener(this);
+                // Preview changes layout params, so it's started after this layout pass
+                parent.post(action);
+            }
+        });
     }
 
 }
@@ -1,8 +1,11 @@
 package org.telegram.camera.components.fragments;
 
 import android.app.Fragment;
+import android.content.Context;
 import android.graphics.*;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.*;
 import android.widget.Button;
@@ -13,9 +16,24 @@ import org.telegram.camera.R;
 import org.telegram.camera.components.SpinnerView;
 import org.telegram.camera.components.buttons.CircleButton;
 import org.telegram.camera.ui.MainActivity;
+import org.telegram.camera.utils.BitmapPool;
+import org.telegram.camera.utils.CapturePipeline;
+import org.telegram.camera.utils.EditGraph;
 import org.telegram.camera.utils.FileUtils;
+import org.telegram.camera.utils.FrameTimeMonitor;
+import org.telegram.camera.utils.ImageRegistry;
+import org.telegram.camera.utils.PreviewDecoder;
+import org.telegram.camera.utils.RegionCrop;
+import org.telegram.camera.utils.RotationEngine;
+import org.telegram.camera.utils.image.Rotator;
+import org.telegram.camera.utils.jpeg.ExifWriter;
 
-import static org.telegram.camera.components.fragments.PictureDoneFragment.BITMAP_FIELD;
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormatSymbols;
+
+import static org.telegram.camera.components.fragments.PictureDoneFragment.FILE_FIELD;
+import static org.telegram.camera.components.fragments.PictureDoneFragment.ORIENTATION_FIELD;
 
 /**
  * Fragment which appears when user click edit button on {@link PictureDoneFragment}
@@ -24,7 +42,30 @@ import static org.telegram.camera.components.fragments.PictureDoneFragment.BITMA
 
 public class ImageEditFragment extends Fragment {
     private static final float SPINNER_MAX_DEGREE = 90;
-    private Bitmap bitmap, smallBitmap;
+    /**
+     * File with original picture and its EXIF orientation, picture is edited without full decoding
+     */
+    private File sourceFile;
+    private int sourceOrientation;
+    /**
+     * Screen-sized copy of a picture, all previews are made from it
+     */
+    private Bitmap previewBitmap;
+    /**
+     * Rotated preview that is shown now. It's taken from {@link BitmapPool} and returned to it,
+     * when it's replaced
+     */
+    private Bitmap rotatedBitmap;
+    private float shownAngle;
+    private RotationEngine rotationEngine;
+    private final EditGraph editGraph = new EditGraph();
+    /**
+     * Transformation of low-res image while spinner is dragged, it's reused for every event
+     */
+    private final Matrix previewMatrix = new Matrix();
+    private final char[] angleText = new char[16];
+    private final char decimalSeparator = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+    private FrameTimeMonitor dragMonitor;
     private static final String TAG = "IMAGE_EDIT";
     private CropImageView cropImageView;
     private ImageView imageView;
@@ -45,7 +86,12 @@ public class ImageEditFragment extends Fragment {
         spinner = (SpinnerView)group.findViewById(R.id.spinner);
         angle = (TextView)group.findViewById(R.id.angle_label);
         rotate = (CircleButton) group.findViewById(R.id.rotate_button);
+        imageView.setScaleType(ImageView.ScaleType.MATRIX);
+        dragMonitor = new FrameTimeMonitor("spinner drag",
+                getActivity().getWindowManager().getDefaultDisplay().getRefreshRate());
         setListeners();
+        // Controls are enabled when preview is ready
+        setControlsEnabled(false);
         cropImageView.setScaleType(CropImageView.ScaleType.FIT_CENTER);
         cropImageView.setAutoZoomEnabled(true);
         currentAngle = 0;
@@ -60,23 +106,39 @@ public class ImageEditFragment extends Fragment {
         cancel.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                ((MainActivity)getActivity()).hideImageEditFragment(bitmap);
+                ((MainActivity)getActivity()).hideImageEditFragment();
             }
         });
 
         done.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                Bitmap bm = cropImageView.getCroppedImage();
-                ((MainActivity)getActivity()).hideImageEditFragment(bm);
+                if (rotationEngine == null) {
+                    return;
+                }
+                rotationEngine.cancel();
+                // Edits are applied to the preview that user sees
+                Bitmap shown = rotatedBitmap != null ? rotatedBitmap : previewBitmap;
+                editGraph.rotate(shownAngle - editGraph.getRotation());
+                editGraph.crop(cropImageView.getCropRect(), shown.getWidth(), shown.getHeight());
+                done.setClickable(false);
+                cancel.setClickable(false);
+                new CropTask(new EditGraph(editGraph)).execute();
             }
         });
 
         reset.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                cropImageView.setImageBitmap(bitmap);
-                cropImageView.getCropRect();
+                if (rotationEngine == null) {
+                    return;
+                }
+                rotationEngine.cancel();
+                editGraph.clear();
+                cropImageView.setImageBitmap(previewBitmap);
+                BitmapPool.getDefault().put(rotatedBitmap);
+                rotatedBitmap = null;
+                shownAngle = 0;
                 spinner.setValue(0);
                 currentAngle = 0;
                 baseAngle = 0;
@@ -93,7 +155,15 @@ public class ImageEditFragment extends Fragment {
                 }
                 currentAngle = baseAngle + spinner.getValue() * SPINNER_MAX_DEGREE;
                 setAngle(currentAngle);
-                rotateBig(currentAngle);
+                rotatePreview(currentAngle);
+            }
+        });
+        imageView.addOnLayoutChangeListener(new View.OnLayoutChangeListener() {
+            @Override
+            public void onLayoutChange(View v, int left, int top, int right, int bottom,
+                                       int oldLeft, int oldTop, int oldRight, int oldBottom) {
+                // Low-res image is shown before its view is laid out for the first time
+                updatePreviewMatrix();
             }
         });
         spinner.setListener(new SpinnerView.OnValueChangedListener() {
@@ -105,10 +175,11 @@ public class ImageEditFragment extends Fragment {
         spinner.setTouchListener(new SpinnerView.OnSpinnerTouchedListener() {
             @Override
             public void onTouch() {
-                int newHeight = cropImageView.getMeasuredHeight();
-                int newWidth = newHeight * bitmap.getWidth() / bitmap.getHeight();
-                // Make low-res image
-                smallBitmap = Bitmap.createScaledBitmap(bitmap, newWidth, newHeight, false);
+                if (rotationEngine == null) {
+                    return;
+                }
+                rotationEngine.cancel();
+                dragMonitor.start();
                 cropImageView.setVisibility(View.GONE);
                 imageView.setVisibility(View.VISIBLE);
                 rotate(currentAngle - baseAngle);
@@ -116,37 +187,102 @@ public class ImageEditFragment extends Fragment {
 
             @Override
             public void onRelease() {
-                spinner.setClickable(false);
-                // Replace image with rotated hi-res
-                rotateBig(currentAngle);
-                cropImageView.setVisibility(View.VISIBLE);
-                imageView.setVisibility(View.GONE);
-                spinner.setClickable(true);
+                dragMonitor.stop();
+                // Transformed preview is shown until rotated one is ready
+                rotatePreview(currentAngle);
             }
         });
     }
 
     /**
-     * Setting bitmap to a fragment from old one {@link PictureDoneFragment}
-     * @see PictureDoneFragment#bitmap
+     * Enable or disable controls that edit a picture
+     *
+     * @param enabled True, if controls can be used
+     */
+    private void setControlsEnabled(boolean enabled) {
+        done.setEnabled(enabled);
+        reset.setEnabled(enabled);
+        rotate.setEnabled(enabled);
+        spinner.setEnabled(enabled);
+    }
+
+    /**
+     * Getting file with a picture from old fragment {@link PictureDoneFragment}. Only screen-sized
+     * preview is decoded from the file in background
+     * @see PictureDoneFragment#FILE_FIELD
+     */
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        Bundle arguments = getArguments();
+        if (arguments == null || arguments.getString(FILE_FIELD) == null) {
+            setPreview(null);
+            return;
+        }
+        sourceFile = new File(arguments.getString(FILE_FIELD));
+        sourceOrientation = arguments.getInt(ORIENTATION_FIELD);
+        new DecodeTask().execute();
+    }
+
+    /**
+     * Show preview and enable editing of it
+     *
+     * @param preview Screen-sized copy of a picture, or null, if picture can't be shown
+     */
+    private void setPreview(Bitmap preview) {
+        if (preview == null) {
+            // There is nothing to edit, picture is left unchanged
+            Log.w(TAG, "Picture can't be shown, editing is cancelled");
+            ((MainActivity) getActivity()).hideImageEditFragment();
+            return;
+        }
+        previewBitmap = preview;
+        imageView.setImageBitmap(previewBitmap);
+        updatePreviewMatrix();
+        if (isResumed()) {
+            cropImageView.setImageBitmap(previewBitmap);
+        }
+        rotationEngine = new RotationEngine(previewBitmap, Rotator.Interpolation.BILINEAR);
+        setControlsEnabled(true);
+    }
+
+    /**
+     * Setting preview of a bitmap from old fragment {@link PictureDoneFragment}
      */
     @Override
     public void onResume() {
         super.onResume();
-        if (getArguments() != null) {
-            bitmap = getArguments().getParcelable(BITMAP_FIELD);
-            cropImageView.setImageBitmap(bitmap);
+        if (previewBitmap != null) {
+            cropImageView.setImageBitmap(rotatedBitmap != null ? rotatedBitmap : previewBitmap);
         }
     }
 
     /**
-     * Setting angle of image rotation
+     * Setting angle of image rotation. Text is formatted to a reused buffer, because it's changed
+     * on every event of spinner
      * @param angle finite number of which image will be rotate
      * @see #rotate(float)
      */
     private void setAngle(float angle) {
-        String text = String.format("%.1f°", angle);
-        this.angle.setText(text);
+        int tenths = Math.round(angle * 10);
+        int length = 0;
+        if (tenths < 0) {
+            angleText[length++] = '-';
+            tenths = -tenths;
+        }
+        int degrees = tenths / 10;
+        int digits = 1;
+        for (int rest = degrees / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--, degrees /= 10) {
+            angleText[length + i] = (char) ('0' + degrees % 10);
+        }
+        length += digits;
+        angleText[length++] = decimalSeparator;
+        angleText[length++] = (char) ('0' + tenths % 10);
+        angleText[length++] = '°';
+        this.angle.setText(angleText, 0, length);
     }
 
     @Override
@@ -155,25 +291,179 @@ public class ImageEditFragment extends Fragment {
     }
 
     /**
-     * Rotates image on current degree
+     * Return intermediate bitmaps to {@link BitmapPool}, when they aren't shown anymore
+     */
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        dragMonitor.stop();
+        if (rotationEngine != null) {
+            rotationEngine.release();
+            rotationEngine = null;
+        }
+        BitmapPool pool = BitmapPool.getDefault();
+        pool.put(previewBitmap);
+        pool.put(rotatedBitmap);
+        previewBitmap = rotatedBitmap = null;
+        shownAngle = 0;
+        editGraph.clear();
+        Log.d(TAG, pool.toString());
+    }
+
+    /**
+     * Rotates preview on current degree. Image isn't redrawn to a new bitmap,
+     * only matrix of its view is changed
      * @param degree amount of degrees of which image will be rotated
-     * @see FileUtils#rotate(Bitmap, float)
+     * @see #updatePreviewMatrix()
      */
     private void rotate(float degree){
         currentAngle = baseAngle + degree;
-        Bitmap rotatedBitmap = FileUtils.rotate(smallBitmap, currentAngle);
         setAngle(currentAngle);
-        imageView.setImageBitmap(rotatedBitmap);
+        updatePreviewMatrix();
+    }
+
+    /**
+     * Set matrix that rotates preview on current angle and fits it to the view
+     */
+    private void updatePreviewMatrix() {
+        if (previewBitmap == null) {
+            return;
+        }
+        float viewWidth = imageView.getWidth() - imageView.getPaddingLeft() - imageView.getPaddingRight();
+        float viewHeight = imageView.getHeight() - imageView.getPaddingTop() - imageView.getPaddingBottom();
+        float width = previewBitmap.getWidth(), height = previewBitmap.getHeight();
+        double radians = Math.toRadians(currentAngle);
+        float cos = (float) Math.abs(Math.cos(radians)), sin = (float) Math.abs(Math.sin(radians));
+        float scale = Math.min(viewWidth / (width * cos + height * sin), viewHeight / (width * sin + height * cos));
+        previewMatrix.setTranslate(-width / 2, -height / 2);
+        previewMatrix.postRotate(-currentAngle);
+        previewMatrix.postScale(scale, scale);
+        previewMatrix.postTranslate(viewWidth / 2, viewHeight / 2);
+        imageView.setImageMatrix(previewMatrix);
     }
 
     /**
-     * Rotates hi-res bitmap
+     * Records rotation and rotates screen-sized preview in background with {@link RotationEngine}.
+     * Full-size picture isn't rotated until editing is done
      * @param degree amount of degrees of which image will be rotate
      * @see #rotate(float)
      */
-    private void rotateBig(float degree){
-        Bitmap rotatedBitmap = FileUtils.rotate(bitmap, degree);
-        cropImageView.setImageBitmap(rotatedBitmap);
+    private void rotatePreview(float degree){
+        if (rotationEngine == null) {
+            return;
+        }
+        editGraph.rotate(degree - editGraph.getRotation());
+        rotationEngine.rotate(degree, new RotationEngine.OnRotatedListener() {
+            @Override
+            public void onRotated(Bitmap rotated, float degrees) {
+                cropImageView.setImageBitmap(rotated);
+                BitmapPool.getDefault().put(rotatedBitmap);
+                rotatedBitmap = rotated;
+                shownAngle = degrees;
+                cropImageView.setVisibility(View.VISIBLE);
+                imageView.setVisibility(View.GONE);
+            }
+        });
+    }
+
+    /**
+     * Task that decodes screen-sized preview of the original file, like decode stage of
+     * {@link CapturePipeline}, so the file isn't read on the UI thread
+     */
+    private class DecodeTask extends AsyncTask<Object, Object, Bitmap> {
+        private final File source = sourceFile;
+        private final int orientation = sourceOrientation;
+        private final int width, height;
+        private final boolean lowColor;
+
+        private DecodeTask() {
+            DisplayMetrics metrics = getResources().getDisplayMetrics();
+            width = metrics.widthPixels;
+            height = metrics.heightPixels;
+            lowColor = PreviewDecoder.shouldUseLowColor(getActivity());
+        }
+
+        @Override
+        protected Bitmap doInBackground(Object... params) {
+            try {
+                return PreviewDecoder.decode(FileUtils.readFile(source), orientation, width, height, lowColor);
+            } catch (IOException e) {
+                Log.e(TAG, "Can't read " + source, e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap result) {
+            if (!isAdded() || getView() == null) {
+                BitmapPool.getDefault().put(result);
+                return;
+            }
+            setPreview(result);
+        }
     }
 
+    /**
+     * Task that crops only needed region of the original file with {@link RegionCrop}, writes result
+     * to a new pending file and gives it to {@link PictureDoneFragment} with a screen-sized preview
+     */
+    private class CropTask extends AsyncTask<Object, Object, File> {
+        private final File source = sourceFile;
+        private final int orientation = sourceOrientation;
+        private final EditGraph graph;
+        private final Context context;
+        private final int width, height;
+        private final boolean lowColor;
+        private Bitmap preview;
+
+        private CropTask(EditGraph graph) {
+            this.graph = graph;
+            context = getActivity().getApplicationContext();
+            DisplayMetrics metrics = getResources().getDisplayMetrics();
+            width = metrics.widthPixels;
+            height = metrics.heightPixels;
+            lowColor = PreviewDecoder.shouldUseLowColor(context);
+        }
+
+        @Override
+        protected File doInBackground(Object... params) {
+            if (graph.isEmpty()) {
+                return null;
+            }
+            File output = CapturePipeline.createPending(context);
+            if (output == null) {
+                return null;
+            }
+            try {
+                long start = System.currentTimeMillis();
+                RegionCrop.crop(source, orientation, graph, output, FileUtils.getJpegEncoder(context));
+                preview = PreviewDecoder.decode(FileUtils.readFile(output), ExifWriter.ORIENTATION_NORMAL,
+                        width, height, lowColor);
+                Log.d(TAG, graph + " cropped in " + (System.currentTimeMillis() - start) + " ms");
+                return output;
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Can't crop " + source, e);
+                FileUtils.deleteFile(output);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File result) {
+            if (!isAdded() || result == null || preview == null) {
+                if (result != null) {
+                    FileUtils.deleteFile(result);
+                }
+                BitmapPool.getDefault().put(preview);
+                if (isAdded()) {
+                    // Picture is left unchanged
+                    ((MainActivity) getActivity()).hideImageEditFragment();
+                }
+                return;
+            }
+            MainActivity activity = (MainActivity) getActivity();
+            long edited = ImageRegistry.getInstance(activity).register(preview);
+            activity.hideImageEditFragment(edited, result);
+        }
+    }
 }
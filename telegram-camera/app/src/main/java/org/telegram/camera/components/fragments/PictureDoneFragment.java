@@ -4,6 +4,7 @@ import android.app.Fragment;
 import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -14,6 +15,11 @@ import org.telegram.camera.components.Animated;
 import org.telegram.camera.components.ButtonsBar;
 import org.telegram.camera.ui.MainActivity;
 import org.telegram.camera.utils.FileUtils;
+import org.telegram.camera.utils.ImageRegistry;
+import org.telegram.camera.utils.ReviewSessionStore;
+import org.telegram.camera.utils.jpeg.ExifWriter;
+
+import java.io.File;
 
 /**
  * Fragment for showing captured or edited picture
@@ -21,11 +27,17 @@ import org.telegram.camera.utils.FileUtils;
  * @author Danil Kolikov
  */
 public class PictureDoneFragment extends Fragment implements Animated {
-    public static final String BITMAP_FIELD = "bitmap";
+    private static final String TAG = "PICTURE_DONE";
+    public static final String IMAGE_FIELD = "image";
+    public static final String FILE_FIELD = "file";
+    public static final String ORIENTATION_FIELD = "orientation";
     private ButtonsBar bar;
     private Button cancel, ok;
     private ImageView picture, edit;
+    private long imageId = ImageRegistry.NO_IMAGE;
     private Bitmap bitmap;
+    private File pictureFile;   // Pending file with original picture
+    private int orientation;
 
     @Nullable
     @Override
@@ -41,12 +53,20 @@ public class PictureDoneFragment extends Fragment implements Animated {
     }
 
     /**
-     * Set new image to show
-     * @param bitmap Bitmap of a new image
+     * Set new picture that is written to a file, e.g. cropped from the original one. It will be saved
+     * from the file, like a captured picture
+     * @param imageId ID of a preview in {@link ImageRegistry}, fragment takes the reference to it
+     * @param file    Pending file with a picture, it replaces the original one
      */
-    public void setBitmap(Bitmap bitmap) {
-        this.bitmap = bitmap;
+    public void setPicture(long imageId, File file) {
+        ImageRegistry registry = ImageRegistry.getInstance(getActivity());
+        registry.release(this.imageId);
+        this.imageId = imageId;
+        bitmap = registry.get(imageId);
         picture.setImageBitmap(bitmap);
+        deletePictureFile();
+        pictureFile = file;
+        orientation = ExifWriter.ORIENTATION_NORMAL;
     }
 
     /**
@@ -56,6 +76,8 @@ public class PictureDoneFragment extends Fragment implements Animated {
         cancel.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
+                deletePictureFile();
+                new ReviewSessionStore(getActivity()).clear();
                 closeFragment();
             }
         });
@@ -63,7 +85,12 @@ public class PictureDoneFragment extends Fragment implements Animated {
         ok.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                new FileUtils.SaveFileTask(getActivity(), bitmap).execute();
+                if (pictureFile != null) {
+                    // Task deletes pending file itself
+                    new FileUtils.SaveFileTask(getActivity(), pictureFile, orientation).execute();
+                    pictureFile = null;
+                }
+                new ReviewSessionStore(getActivity()).clear();
                 closeFragment();
             }
         });
@@ -71,11 +98,24 @@ public class PictureDoneFragment extends Fragment implements Animated {
         edit.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                ((MainActivity) getActivity()).showImageEditFragment(bitmap);
+                // Original picture isn't decoded, editor crops only needed region of the file
+                if (pictureFile != null) {
+                    ((MainActivity) getActivity()).showImageEditFragment(pictureFile, orientation);
+                }
             }
         });
     }
 
+    /**
+     * Delete pending file with original picture, it isn't needed anymore
+     */
+    private void deletePictureFile() {
+        if (pictureFile != null) {
+            FileUtils.deleteFile(pictureFile);
+            pictureFile = null;
+        }
+    }
+
     /**
      * Play animation and close fragment
      */
@@ -88,12 +128,18 @@ public class PictureDoneFragment extends Fragment implements Animated {
         });
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        if (bitmap == null && imageId != ImageRegistry.NO_IMAGE) {
+            // Image was evicted in background, it's restored from spill file
+            bitmap = ImageRegistry.getInstance(getActivity()).get(imageId);
+        }
+    }
+
     @Override
     public void onResume() {
         super.onResume();
-        if (bitmap == null && getArguments() != null) {
-            bitmap = getArguments().getParcelable(BITMAP_FIELD);
-        }
         if (bitmap != null) {
             picture.setImageBitmap(bitmap);
             show(null);
@@ -106,17 +152,75 @@ public class PictureDoneFragment extends Fragment implements Animated {
         hide(null);
     }
 
+    @Override
+    public void onStop() {
+        super.onStop();
+        if (isRemoving()) {
+            return;
+        }
+        saveSession();
+        // Drop pixels from the heap while application is in background
+        ImageRegistry.getInstance(getActivity()).evict(imageId);
+        picture.setImageBitmap(null);
+        bitmap = null;
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putParcelable(BITMAP_FIELD, bitmap);
+        saveSession();
+        // Only ID is parceled, pixels are spilled to a file in case the process is killed
+        outState.putLong(IMAGE_FIELD, imageId);
+        outState.putString(FILE_FIELD, pictureFile == null ? null : pictureFile.getPath());
+        outState.putInt(ORIENTATION_FIELD, orientation);
+    }
+
+    /**
+     * Write state of the picture to {@link ReviewSessionStore}, so it can be recovered even if process
+     * is killed without saved state
+     */
+    private void saveSession() {
+        ImageRegistry.getInstance(getActivity()).spill(imageId);
+        new ReviewSessionStore(getActivity())
+                .save(new ReviewSessionStore.Session(imageId, orientation, pictureFile));
+    }
+
+    /**
+     * Restore original picture from bundle
+     *
+     * @param bundle Arguments or saved state
+     */
+    private void restorePicture(Bundle bundle) {
+        String path = bundle.getString(FILE_FIELD);
+        pictureFile = path == null ? null : new File(path);
+        orientation = bundle.getInt(ORIENTATION_FIELD);
     }
 
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
+        ImageRegistry registry = ImageRegistry.getInstance(getActivity());
         if (savedInstanceState != null) {
-            bitmap = savedInstanceState.getParcelable(BITMAP_FIELD);
+            imageId = savedInstanceState.getLong(IMAGE_FIELD);
+            if (!registry.reattach(imageId)) {
+                Log.w(TAG, "Image " + imageId + " is lost");
+            }
+            restorePicture(savedInstanceState);
+        } else if (getArguments() != null) {
+            imageId = getArguments().getLong(IMAGE_FIELD);
+            restorePicture(getArguments());
+        }
+        bitmap = registry.get(imageId);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Reference is kept if fragment is only recreated
+        if (isRemoving() || getActivity().isFinishing()) {
+            new ReviewSessionStore(getActivity()).clear();
+            ImageRegistry.getInstance(getActivity()).release(imageId);
+            imageId = ImageRegistry.NO_IMAGE;
         }
     }
 
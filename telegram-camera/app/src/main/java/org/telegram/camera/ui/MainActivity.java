@@ -6,7 +6,6 @@ import android.app.Fragment;
 import android.app.FragmentManager;
 import android.content.DialogInterface;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
@@ -14,6 +13,7 @@ import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import org.telegram.camera.R;
 import org.telegram.camera.components.Animated;
@@ -23,7 +23,14 @@ import org.telegram.camera.components.fragments.ImageEditFragment;
 import org.telegram.camera.components.fragments.PictureDoneFragment;
 import org.telegram.camera.components.fragments.VideoDoneFragment;
 import org.telegram.camera.utils.CameraHolder;
+import org.telegram.camera.utils.CameraStartup;
+import org.telegram.camera.utils.CaptureJournal;
+import org.telegram.camera.utils.CapturePipeline;
 import org.telegram.camera.utils.FileUtils;
+import org.telegram.camera.utils.ImageRegistry;
+import org.telegram.camera.utils.LatencyTracker;
+import org.telegram.camera.utils.ReviewSessionStore;
+import org.telegram.camera.utils.jpeg.ExifWriter;
 
 import java.io.File;
 
@@ -31,7 +38,7 @@ import java.io.File;
  * Main activity of the TelegramCamera
  */
 public class MainActivity extends AppCompatActivity implements CameraHolder.OnTakePictureListener,
-        FragmentManager.OnBackStackChangedListener, CameraHolder.RecordVideoCallback {
+        FragmentManager.OnBackStackChangedListener, CameraHolder.RecordVideoCallback, CapturePipeline.Listener {
     private static final String TAG = "MainCameraActivity";
     private static final String FRAGMENT_CAMERA_TAG = "camera";
     private static final String FRAGMENT_PICTURE_DONE_TAG = "picture_done";
@@ -41,6 +48,12 @@ public class MainActivity extends AppCompatActivity implements CameraHolder.OnTa
 
     private SuperButton superButton;
     private boolean permissionsGranted;
+    /**
+     * Picture of a review session is decoded by pipeline, camera isn't shown until it's ready
+     */
+    private boolean recovering;
+    private CapturePipeline capturePipeline;
+    private CameraStartup cameraStartup;
 
     /**
      * Show message if there is no available camera
@@ -67,18 +80,94 @@ public class MainActivity extends AppCompatActivity implements CameraHolder.OnTa
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        cameraStartup = new CameraStartup(this);
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.CAMERA) == PackageManager.PERMISSION_GRANTED) {
+            // Open camera while layout is inflated, it's the one that CameraFragment chooses by default
+            cameraStartup.prefetchDefault();
+        }
         if (getSupportActionBar() != null) {
             getSupportActionBar().hide();
         }
         setContentView(R.layout.default_layout);
         superButton = (SuperButton) findViewById(R.id.super_button);
         getFragmentManager().addOnBackStackChangedListener(this);
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        capturePipeline = new CapturePipeline(this, metrics.widthPixels, metrics.heightPixels, this);
+        if (savedInstanceState == null) {
+            recoverJournal();
+            if (!recoverReviewSession()) {
+                CapturePipeline.clearPending(this);
+                ImageRegistry.clearSpilled(this);
+            }
+        }
+        if (getFragmentManager().getBackStackEntryCount() > 0 || recovering) {
+            // Recovered picture is shown, camera isn't needed yet
+            cameraStartup.cancel();
+        }
         if (!FileUtils.isExternalStorageMounted()) {
             showNoFreeSpaceErrorMessage();
         }
         grantPermissions();
     }
 
+    /**
+     * Finish pictures that were being saved when process was killed
+     */
+    private void recoverJournal() {
+        for (File file : new CaptureJournal(this).recover()) {
+            FileUtils.addFileToGallery(Uri.fromFile(file), this);
+        }
+    }
+
+    /**
+     * Show picture that was reviewed when process was killed. If shown image is lost, preview is decoded
+     * from the original picture by {@link CapturePipeline} and picture is shown when it's ready
+     *
+     * @return True, if picture is shown or is being decoded, False, if there is no picture to recover
+     */
+    private boolean recoverReviewSession() {
+        ReviewSessionStore store = new ReviewSessionStore(this);
+        ReviewSessionStore.Session session = store.restore();
+        if (session == null || !session.isRecoverable()) {
+            store.clear();
+            return false;
+        }
+        if (!ImageRegistry.getInstance(this).reattach(session.getImageId())) {
+            recovering = capturePipeline.resubmit(session.getPictureFile(), session.getOrientation(),
+                    LatencyTracker.start(LatencyTracker.REVIEW_RECOVERY));
+            if (!recovering) {
+                store.clear();
+            }
+            return recovering;
+        }
+        showRecoveredPicture(session.getImageId(), session.getPictureFile(), session.getOrientation());
+        return true;
+    }
+
+    /**
+     * Show fragment with recovered picture instead of camera
+     *
+     * @param imageId     ID of a preview in {@link ImageRegistry}, fragment takes the reference to it
+     * @param file        Pending file with a picture
+     * @param orientation EXIF orientation of a picture
+     */
+    private void showRecoveredPicture(long imageId, File file, int orientation) {
+        Log.d(TAG, "Review session recovered");
+        Bundle bundle = new Bundle();
+        bundle.putLong(PictureDoneFragment.IMAGE_FIELD, imageId);
+        bundle.putString(PictureDoneFragment.FILE_FIELD, file.getPath());
+        bundle.putInt(PictureDoneFragment.ORIENTATION_FIELD, orientation);
+
+        Fragment fragment = new PictureDoneFragment();
+        fragment.setArguments(bundle);
+        getFragmentManager().beginTransaction()
+                .add(android.R.id.content, fragment, FRAGMENT_PICTURE_DONE_TAG)
+                .addToBackStack(FRAGMENT_PICTURE_DONE_TAG)
+                .commit();
+        // Camera mustn't be shown in onResume
+        getFragmentManager().executePendingTransactions();
+    }
+
     /**
      * Check permissions in runtime. Special fix for Android Marshmallow+ devices
      */
@@ -165,32 +254,61 @@ public class MainActivity extends AppCompatActivity implements CameraHolder.OnTa
             return;
         }
         // If there are no other fragments, load camera
-        if (getFragmentManager().getBackStackEntryCount() == 0) {
+        if (getFragmentManager().getBackStackEntryCount() == 0 && !recovering) {
             showCameraFragment();
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        cameraStartup.cancel();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        capturePipeline.release();
+        Log.d(TAG, "Latencies:\n" + LatencyTracker.getMetrics());
+    }
+
     /**
      * Load camera fragment. It will load camera and prepare it for taking photos
      */
     private void showCameraFragment() {
         Log.e(TAG, "showCameraFragment: shown");
         CameraFragment cameraFragment = (CameraFragment) getFragmentManager().findFragmentByTag(FRAGMENT_CAMERA_TAG);
+        if (cameraFragment.needsCamera()) {
+            cameraStartup.prefetch(cameraFragment.isFront());
+        }
         cameraFragment.show(null);
     }
 
+    /**
+     * Get startup of a camera, that can be opened before {@link CameraFragment} needs it
+     *
+     * @return Startup of a camera
+     */
+    public CameraStartup getCameraStartup() {
+        return cameraStartup;
+    }
+
     /**
      * Show fragment for choosing save or decline picture
      *
-     * @param bitmap A bitmap of a picture
+     * @param capture Processed picture
      */
-    private void showPictureDoneFragment(final Bitmap bitmap) {
+    private void showPictureDoneFragment(final CapturePipeline.Capture capture) {
         CameraFragment cameraFragment = (CameraFragment) getFragmentManager().findFragmentByTag(FRAGMENT_CAMERA_TAG);
         cameraFragment.hide(new Animated.EndAnimationListener() {
             @Override
             public void onAnimationEnd() {
                 Bundle bundle = new Bundle();
-                bundle.putParcelable(PictureDoneFragment.BITMAP_FIELD, bitmap);
+                bundle.putLong(PictureDoneFragment.IMAGE_FIELD,
+                        ImageRegistry.getInstance(MainActivity.this).register(capture.getPreview()));
+                // Ready picture is always persisted, so only a path is parceled
+                bundle.putString(PictureDoneFragment.FILE_FIELD, capture.getFile().getPath());
+                bundle.putInt(PictureDoneFragment.ORIENTATION_FIELD, capture.getOrientation());
 
                 Fragment fragment = new PictureDoneFragment();
                 fragment.setArguments(bundle);
@@ -199,6 +317,7 @@ public class MainActivity extends AppCompatActivity implements CameraHolder.OnTa
                         .add(android.R.id.content, fragment, FRAGMENT_PICTURE_DONE_TAG)
                         .addToBackStack(FRAGMENT_PICTURE_DONE_TAG)
                         .commit();
+                markShown(capture.getTrace());
             }
         });
     }
@@ -207,8 +326,9 @@ public class MainActivity extends AppCompatActivity implements CameraHolder.OnTa
      * Show fragment with choosing what to do with a video
      *
      * @param video Uri of a video file
+     * @param trace Trace of latency from the stop of recording, can be null
      */
-    private void showVideoDoneFragment(final Uri video) {
+    private void showVideoDoneFragment(final Uri video, final LatencyTracker.Trace trace) {
         CameraFragment cameraFragment = (CameraFragment) getFragmentManager().findFragmentByTag(FRAGMENT_CAMERA_TAG);
         cameraFragment.hide(new Animated.EndAnimationListener() {
             @Override
@@ -223,24 +343,45 @@ public class MainActivity extends AppCompatActivity implements CameraHolder.OnTa
                         .add(android.R.id.content, fragment, FRAGMENT_VIDEO_DONE_TAG)
                         .addToBackStack(FRAGMENT_VIDEO_DONE_TAG)
                         .commit();
+                markShown(trace);
             }
         });
     }
 
     /**
-     * Show a fragment for editing an image
+     * Finish trace when committed fragment is added. Transaction is executed by a message on the main
+     * thread, so a message that is posted after it comes when fragment is already in the layout
      *
-     * @param bitmap A bitmap of an image
+     * @param trace Trace of latency, can be null
      */
-    public void showImageEditFragment(final Bitmap bitmap) {
+    private void markShown(final LatencyTracker.Trace trace) {
+        if (trace == null) {
+            return;
+        }
+        superButton.post(new Runnable() {
+            @Override
+            public void run() {
+                trace.finish("fragment shown");
+            }
+        });
+    }
+
+    /**
+     * Show a fragment for editing a picture that is written to a file. Picture isn't decoded fully,
+     * only cropped region of it is decoded when editing is done
+     *
+     * @param file        Pending file with a picture
+     * @param orientation EXIF orientation of a picture
+     */
+    public void showImageEditFragment(File file, int orientation) {
+        final Bundle bundle = new Bundle();
+        bundle.putString(PictureDoneFragment.FILE_FIELD, file.getPath());
+        bundle.putInt(PictureDoneFragment.ORIENTATION_FIELD, orientation);
         PictureDoneFragment pictureDoneFragment = (PictureDoneFragment) getFragmentManager().
                 findFragmentByTag(FRAGMENT_PICTURE_DONE_TAG);
         pictureDoneFragment.hide(new Animated.EndAnimationListener() {
             @Override
             public void onAnimationEnd() {
-                Bundle bundle = new Bundle();
-                bundle.putParcelable(PictureDoneFragment.BITMAP_FIELD, bitmap);
-
                 Fragment fragment = new ImageEditFragment();
                 fragment.setArguments(bundle);
 
@@ -253,19 +394,24 @@ public class MainActivity extends AppCompatActivity implements CameraHolder.OnTa
     }
 
     /**
-     * Hide image edit fragment. It's a invariant that below it on a backstack will be PictureEditFragment,
-     * so it's possible to set new image to it here
-     *
-     * @param bitmap Edited image
+     * Hide image edit fragment without changes, picture below it is left as it was
      */
-    public void hideImageEditFragment(final Bitmap bitmap) {
+    public void hideImageEditFragment() {
         Log.e(TAG, "finished");
-        Bundle bundle = new Bundle();
-        bundle.putParcelable(PictureDoneFragment.BITMAP_FIELD, bitmap);
+        getFragmentManager().popBackStack();
+    }
 
+    /**
+     * Hide image edit fragment and give cropped picture to PictureDoneFragment. It's a invariant that
+     * below it on a backstack will be PictureDoneFragment, so it's possible to set new picture to it here
+     *
+     * @param imageId ID of a preview of cropped picture in {@link ImageRegistry}
+     * @param file    Pending file with cropped picture
+     */
+    public void hideImageEditFragment(long imageId, File file) {
         PictureDoneFragment pictureDone = (PictureDoneFragment) getFragmentManager()
                 .findFragmentByTag(FRAGMENT_PICTURE_DONE_TAG);
-        pictureDone.setBitmap(bitmap);
+        pictureDone.setPicture(imageId, file);
         getFragmentManager().popBackStack();
     }
 
@@ -292,18 +438,58 @@ public class MainActivity extends AppCompatActivity implements CameraHolder.OnTa
     }
 
     @Override
-    public void onPictureTaken(byte[] data, int width, int height, int orientation, boolean front) {
-        Bitmap picture = FileUtils.getPicture(data, width, height, orientation, front);
+    public void onPictureTaken(byte[] data, int width, int height, int orientation, boolean front,
+                               LatencyTracker.Trace trace) {
+        // Picture is decoded and saved by pipeline, main thread only passes bytes
+        if (!capturePipeline.submit(data, ExifWriter.orientationFor(orientation, front), trace)) {
+            restartCameraPreview();
+        }
         superButton.setClickable(true);
-        showPictureDoneFragment(picture);
         Log.d(TAG, "Image taken");
     }
 
     @Override
-    public void onVideoRecorded(File videoFile) {
+    public void onCaptureReady(CapturePipeline.Capture capture) {
+        if (recovering) {
+            recovering = false;
+            showRecoveredPicture(ImageRegistry.getInstance(this).register(capture.getPreview()),
+                    capture.getFile(), capture.getOrientation());
+            markShown(capture.getTrace());
+            return;
+        }
+        showPictureDoneFragment(capture);
+        Log.d(TAG, "Image processed");
+    }
+
+    @Override
+    public void onCaptureFailed(CapturePipeline.Capture capture) {
+        if (recovering) {
+            recovering = false;
+            Log.e(TAG, "Can't recover picture");
+            new ReviewSessionStore(this).clear();
+            CapturePipeline.clearPending(this);
+            ImageRegistry.clearSpilled(this);
+            if (permissionsGranted) {
+                showCameraFragment();
+            }
+            return;
+        }
+        restartCameraPreview();
+    }
+
+    /**
+     * Return preview to camera fragment if taken picture can't be shown
+     */
+    private void restartCameraPreview() {
+        CameraFragment cameraFragment = (CameraFragment) getFragmentManager().findFragmentByTag(FRAGMENT_CAMERA_TAG);
+        cameraFragment.restartPreview();
+    }
+
+    @Override
+    public void onVideoRecorded(File videoFile, LatencyTracker.Trace trace) {
         if (videoFile == null) return;
         Uri videoURI = Uri.fromFile(videoFile);
-        showVideoDoneFragment(videoURI);
+        showVideoDoneFragment(videoURI, trace);
         Log.d(TAG, "Video taken");
     }
 }
@@ -0,0 +1,265 @@
+package org.telegram.camera.utils;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+import org.telegram.camera.utils.jpeg.ProbeEncoder;
+import org.telegram.camera.utils.jpeg.QualitySearch;
+import org.telegram.camera.utils.jpeg.StreamingJpegEncoder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Encoder of bitmaps to JPEG, that chooses quality to fit a budget of bits per pixel or a target size.
+ * Quality is found on a downscaled probe of a bitmap with {@link QualitySearch}, then bitmap is encoded once.
+ * Pictures can be encoded by bands straight to a channel with {@link StreamingJpegEncoder}
+ *
+ * @author Danil Kolikov
+ */
+public class AdaptiveJpegEncoder {
+    private static final String TAG = "ADAPTIVE_JPEG";
+    /**
+     * Approximate number of pixels in a probe
+     */
+    public static final int PROBE_PIXELS = 512 * 384;
+    /**
+     * Rows that are taken from a source at once, it's a few MCU rows
+     */
+    public static final int BAND_ROWS = 64;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Direct buffer for compressed data of every thread that encodes pictures
+     */
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    /**
+     * Search is shared, so calibration of probes is kept between pictures
+     */
+    private static final QualitySearch search = new QualitySearch();
+
+    private final double bitsPerPixel;
+    private final long targetSize;
+
+    private AdaptiveJpegEncoder(double bitsPerPixel, long targetSize) {
+        this.bitsPerPixel = bitsPerPixel;
+        this.targetSize = targetSize;
+    }
+
+    /**
+     * Create encoder with a budget of bits per pixel
+     *
+     * @param bitsPerPixel Budget
+     * @return New encoder
+     */
+    public static AdaptiveJpegEncoder forBitsPerPixel(double bitsPerPixel) {
+        return new AdaptiveJpegEncoder(bitsPerPixel, 0);
+    }
+
+    /**
+     * Create encoder with a target size of a file
+     *
+     * @param bytes Target size in bytes
+     * @return New encoder
+     */
+    public static AdaptiveJpegEncoder forTargetSize(long bytes) {
+        return new AdaptiveJpegEncoder(0, bytes);
+    }
+
+    /**
+     * Encode bitmap
+     *
+     * @param bitmap Bitmap to encode
+     * @param output Stream to write JPEG
+     * @return Quality that was used
+     * @throws IOException If bitmap can't be encoded or written
+     */
+    public int compress(Bitmap bitmap, OutputStream output) throws IOException {
+        long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+        long start = System.currentTimeMillis();
+        int quality = findQuality(bitmap);
+        long searched = System.currentTimeMillis();
+
+        CountingOutputStream counter = new CountingOutputStream(output);
+        if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, counter)) {
+            throw new IOException("Can't encode bitmap");
+        }
+        search.calibrate(counter.count, pixels);
+        Log.d(TAG, "quality " + quality + " after " + search.getLastProbeCount() + " probes in "
+                + (searched - start) + " ms, " + counter.count + " bytes in "
+                + (System.currentTimeMillis() - searched) + " ms, probe ratio " + search.getRatio());
+        return quality;
+    }
+
+    /**
+     * Encode bitmap by bands straight to a channel, compressed data isn't buffered in memory
+     *
+     * @param bitmap  Bitmap to encode
+     * @param channel Channel to write JPEG, it isn't closed
+     * @return Quality that was used
+     * @throws IOException If channel can't be written
+     */
+    public int compress(final Bitmap bitmap, WritableByteChannel channel) throws IOException {
+        final int width = bitmap.getWidth();
+        return compress(findQuality(bitmap), width, bitmap.getHeight(), new BandSource() {
+            @Override
+            public void getRows(int top, int count, int[] pixels) {
+                bitmap.getPixels(pixels, 0, width, 0, top, width, count);
+            }
+        }, channel);
+    }
+
+    /**
+     * Encode picture, that is rendered by bands, straight to a channel. Whole picture is never kept in memory,
+     * so quality is found on a low-resolution probe of it
+     *
+     * @param probe   Low-resolution copy of a picture, it isn't changed
+     * @param width   Width of a picture
+     * @param height  Height of a picture
+     * @param source  Source of bands of a picture
+     * @param channel Channel to write JPEG, it isn't closed
+     * @return Quality that was used
+     * @throws IOException If picture can't be rendered or channel can't be written
+     */
+    public int compress(Bitmap probe, int width, int height, BandSource source, WritableByteChannel channel)
+            throws IOException {
+        return compress(findQuality(probe, (long) width * height), width, height, source, channel);
+    }
+
+    private int compress(int quality, int width, int height, BandSource source, WritableByteChannel channel)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        StreamingJpegEncoder encoder = new StreamingJpegEncoder(channel, buffers.get(), width, height, quality);
+        int[] band = new int[width * Math.min(BAND_ROWS, height)];
+        for (int top = 0; top < height; top += BAND_ROWS) {
+            int count = Math.min(BAND_ROWS, height - top);
+            source.getRows(top, count, band);
+            encoder.writeRows(band, 0, width, count);
+        }
+        long bytes = encoder.finish();
+        search.calibrate(bytes, (long) width * height);
+        Log.d(TAG, "quality " + quality + ", " + width + "x" + height + " streamed in "
+                + (System.currentTimeMillis() - start) + " ms, " + bytes + " bytes");
+        return quality;
+    }
+
+    /**
+     * Find quality for a bitmap on its downscaled copy
+     *
+     * @param bitmap Bitmap to encode
+     * @return Quality
+     * @throws IOException If probe can't be encoded
+     */
+    private int findQuality(Bitmap bitmap) throws IOException {
+        long pixels = (long) bitmap.getWidth() * bitmap.getHeight();
+        Bitmap probe = bitmap;
+        if (pixels > 2 * PROBE_PIXELS) {
+            double factor = Math.sqrt((double) pixels / PROBE_PIXELS);
+            probe = FileUtils.scale(bitmap, Math.max(1, (int) (bitmap.getWidth() / factor)),
+                    Math.max(1, (int) (bitmap.getHeight() / factor)));
+        }
+        try {
+            return findQuality(probe, pixels);
+        } finally {
+            if (probe != bitmap) {
+                BitmapPool.getDefault().put(probe);
+            }
+        }
+    }
+
+    /**
+     * Find quality on a probe
+     *
+     * @param probe  Probe, it may be a downscaled copy of a picture
+     * @param pixels Number of pixels in a picture
+     * @return Quality
+     * @throws IOException If probe can't be encoded
+     */
+    private int findQuality(Bitmap probe, long pixels) throws IOException {
+        double target = targetSize > 0 ? QualitySearch.bitsPerPixel(targetSize, pixels) : bitsPerPixel;
+        return search.find(new BitmapProbeEncoder(probe), target,
+                (long) probe.getWidth() * probe.getHeight() < pixels);
+    }
+
+    /**
+     * Source of a picture that is encoded by bands
+     */
+    public interface BandSource {
+        /**
+         * Get rows of a picture
+         *
+         * @param top    Index of the first row
+         * @param count  Number of rows
+         * @param pixels Array to put ARGB pixels, rows follow each other without gaps
+         * @throws IOException If rows can't be rendered
+         */
+        void getRows(int top, int count, int[] pixels) throws IOException;
+    }
+
+    /**
+     * Probe that is encoded with {@link Bitmap#compress(Bitmap.CompressFormat, int, OutputStream)}
+     */
+    private static class BitmapProbeEncoder implements ProbeEncoder {
+        private final Bitmap probe;
+
+        private BitmapProbeEncoder(Bitmap probe) {
+            this.probe = probe;
+        }
+
+        @Override
+        public int getPixelCount() {
+            return probe.getWidth() * probe.getHeight();
+        }
+
+        @Override
+        public long encode(int quality) throws IOException {
+            CountingOutputStream counter = new CountingOutputStream(null);
+            if (!probe.compress(Bitmap.CompressFormat.JPEG, quality, counter)) {
+                throw new IOException("Can't encode probe");
+            }
+            return counter.count;
+        }
+    }
+
+    /**
+     * Stream that counts written bytes and passes them to another stream, if it's set
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream output;
+        private long count;
+
+        private CountingOutputStream(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+            if (output != null) {
+                output.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            if (output != null) {
+                output.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (output != null) {
+                output.flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package org.telegram.camera.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Pool of mutable bitmaps that can be reused for decoding and drawing instead of allocating new ones.
+ * Pool keeps bitmaps until their total size reaches the budget, then the least recently used bitmaps
+ * are recycled. Before KitKat bitmap can be reused only for the same size and config,
+ * since KitKat any bitmap that is big enough is reconfigured
+ *
+ * @author Danil Kolikov
+ */
+public class BitmapPool {
+    private static final String TAG = "BITMAP_POOL";
+    /**
+     * Part of a heap that default pool may keep
+     */
+    private static final int HEAP_PART = 8;
+
+    private static BitmapPool defaultPool;
+
+    private final long budget;
+    /**
+     * Pooled bitmaps, the least recently used is the first
+     */
+    private final LinkedList<Bitmap> bitmaps;
+    private long size;
+    private int hits, misses, evictions;
+
+    /**
+     * Create pool
+     *
+     * @param budget Maximal total size of pooled bitmaps in bytes
+     */
+    public BitmapPool(long budget) {
+        this.budget = budget;
+        bitmaps = new LinkedList<Bitmap>();
+    }
+
+    /**
+     * Get pool shared by the application
+     *
+     * @return Default pool
+     */
+    public static synchronized BitmapPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new BitmapPool(Runtime.getRuntime().maxMemory() / HEAP_PART);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Get cleared mutable bitmap of specified size, from the pool if possible
+     *
+     * @param width  Width of a bitmap
+     * @param height Height of a bitmap
+     * @param config Config of a bitmap
+     * @return Bitmap with all pixels transparent
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config, true);
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Give bitmap to the pool. Caller mustn't use it after that
+     *
+     * @param bitmap Bitmap, can be null
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        if (!bitmap.isMutable() || byteCount(bitmap) > budget) {
+            bitmap.recycle();
+            return;
+        }
+        for (Bitmap pooled : bitmaps) {
+            if (pooled == bitmap) {
+                return;
+            }
+        }
+        bitmaps.addLast(bitmap);
+        size += byteCount(bitmap);
+        trim(budget);
+    }
+
+    /**
+     * Decode bytes into a bitmap from the pool if possible
+     *
+     * @param data    Bytes of a picture
+     * @param options Options of decoding, can be null
+     * @return Decoded bitmap or null, if bytes can't be decoded
+     */
+    public Bitmap decode(byte[] data, BitmapFactory.Options options) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, bounds);
+        options = prepareOptions(bounds, options);
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // Bitmap from the pool doesn't fit, so give it back
+            Log.w(TAG, "Can't reuse bitmap", e);
+            put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    /**
+     * Decode file into a bitmap from the pool if possible
+     *
+     * @param path    Path to a picture
+     * @param options Options of decoding, can be null
+     * @return Decoded bitmap or null, if file can't be decoded
+     */
+    public Bitmap decode(String path, BitmapFactory.Options options) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, bounds);
+        options = prepareOptions(bounds, options);
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Can't reuse bitmap", e);
+            put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    /**
+     * Recycle all pooled bitmaps
+     */
+    public synchronized void clear() {
+        trim(0);
+    }
+
+    /**
+     * Get number of requests that were served by the pool
+     *
+     * @return Number of hits
+     */
+    public synchronized int getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Get number of requests that required new bitmap
+     *
+     * @return Number of misses
+     */
+    public synchronized int getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Get number of bitmaps that were recycled to keep the pool within the budget
+     *
+     * @return Number of evictions
+     */
+    public synchronized int getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Get total size of pooled bitmaps
+     *
+     * @return Size in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool{size=" + size + ", budget=" + budget + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + "}";
+    }
+
+    /**
+     * Set bitmap from the pool and mutability to decoding options
+     *
+     * @param bounds  Bounds of a picture
+     * @param options Options of decoding, can be null
+     * @return Options to use
+     */
+    private BitmapFactory.Options prepareOptions(BitmapFactory.Options bounds, BitmapFactory.Options options) {
+        if (options == null) {
+            options = new BitmapFactory.Options();
+        }
+        options.inMutable = true;
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            return options;
+        }
+        int sampleSize = Math.max(1, options.inSampleSize);
+        boolean canReuse = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT || sampleSize == 1;
+        if (canReuse && options.inBitmap == null) {
+            Bitmap.Config config = options.inPreferredConfig == null
+                    ? Bitmap.Config.ARGB_8888 : options.inPreferredConfig;
+            int width = (bounds.outWidth + sampleSize - 1) / sampleSize;
+            int height = (bounds.outHeight + sampleSize - 1) / sampleSize;
+            // Decoder reconfigures bitmap itself, so it mustn't be reconfigured here
+            options.inBitmap = take(width, height, config, false);
+        }
+        return options;
+    }
+
+    /**
+     * Find bitmap that can be reused and remove it from the pool
+     *
+     * @param width       Required width
+     * @param height      Required height
+     * @param config      Required config
+     * @param reconfigure True, if bitmap that is big enough should be reconfigured to required size
+     * @return Bitmap or null, if there is no suitable bitmap
+     */
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config, boolean reconfigure) {
+        Bitmap result = null;
+        long required = (long) width * height * bytesPerPixel(config);
+        boolean canReconfigure = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        for (Bitmap bitmap : bitmaps) {
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+                result = bitmap;
+                break;
+            }
+            // Take the smallest bitmap that fits, but not twice bigger than required
+            long byteCount = byteCount(bitmap);
+            if (canReconfigure && byteCount >= required && byteCount <= 2 * required
+                    && (result == null || byteCount < byteCount(result))) {
+                result = bitmap;
+            }
+        }
+        if (result == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        for (Iterator<Bitmap> iterator = bitmaps.iterator(); iterator.hasNext(); ) {
+            if (iterator.next() == result) {
+                iterator.remove();
+                break;
+            }
+        }
+        size -= byteCount(result);
+        if (reconfigure && (result.getWidth() != width || result.getHeight() != height
+                || result.getConfig() != config)) {
+            reconfigure(result, width, height, config);
+        }
+        return result;
+    }
+
+    /**
+     * Recycle least recently used bitmaps until pool fits to specified size
+     *
+     * @param maxSize Maximal size in bytes
+     */
+    private void trim(long maxSize) {
+        while (size > maxSize && !bitmaps.isEmpty()) {
+            Bitmap bitmap = bitmaps.removeFirst();
+            size -= byteCount(bitmap);
+            bitmap.recycle();
+            evictions++;
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        bitmap.reconfigure(width, height, config);
+    }
+
+    /**
+     * Get size of memory that is allocated for bitmap
+     *
+     * @param bitmap Bitmap
+     * @return Size in bytes
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static long byteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getByteCount();
+    }
+
+    private static int bytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
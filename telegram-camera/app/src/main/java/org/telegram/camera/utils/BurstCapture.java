@@ -0,0 +1,199 @@
+package org.telegram.camera.utils;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+import org.telegram.camera.utils.jpeg.ExifWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.provider.MediaStore.Files.FileColumns.MEDIA_TYPE_IMAGE;
+
+/**
+ * Queue of pictures taken in burst mode. Pictures are copied to a fixed pool of reusable buffers
+ * and written to storage by background writer thread. If all buffers are busy, picture is dropped,
+ * so camera never waits for storage
+ *
+ * @author Danil Kolikov
+ * @see CameraHolder#startBurst(BurstCapture, int, CameraHolder.OnBurstShotListener)
+ */
+public class BurstCapture {
+    private static final String TAG = "BURST_CAPTURE";
+    /**
+     * Initial size of a buffer. Buffers grow if picture doesn't fit
+     */
+    private static final int INITIAL_BUFFER_SIZE = 2 * 1024 * 1024;
+    /**
+     * Writer checks if capture is released this often
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private final Context context;
+    private final CaptureJournal journal;
+    private final BlockingQueue<Frame> free, filled;
+    private final AtomicInteger queued, dropped, written, sequence;
+    private final Thread writer;
+    private volatile boolean released;
+
+    /**
+     * Create queue and start writer thread
+     *
+     * @param context     Current context
+     * @param bufferCount Number of buffers in pool
+     */
+    public BurstCapture(Context context, int bufferCount) {
+        this.context = context.getApplicationContext();
+        journal = new CaptureJournal(context);
+        free = new ArrayBlockingQueue<Frame>(bufferCount);
+        filled = new ArrayBlockingQueue<Frame>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            free.add(new Frame());
+        }
+        queued = new AtomicInteger();
+        dropped = new AtomicInteger();
+        written = new AtomicInteger();
+        sequence = new AtomicInteger();
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "Burst writer");
+        writer.start();
+    }
+
+    /**
+     * Put picture to the queue. Picture is copied, so array can be reused by caller
+     *
+     * @param jpeg        Bytes of a picture
+     * @param orientation EXIF orientation of a picture
+     * @return True, if picture was queued, False, if all buffers are busy and picture was dropped
+     */
+    public boolean offer(byte[] jpeg, int orientation) {
+        Frame frame = released ? null : free.poll();
+        if (frame == null) {
+            dropped.incrementAndGet();
+            Log.w(TAG, "No free buffer, picture is dropped");
+            return false;
+        }
+        if (frame.data.length < jpeg.length) {
+            frame.data = new byte[jpeg.length];
+        }
+        System.arraycopy(jpeg, 0, frame.data, 0, jpeg.length);
+        frame.length = jpeg.length;
+        frame.orientation = orientation;
+        filled.add(frame);
+        queued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Get number of pictures that were put to the queue
+     *
+     * @return Number of queued pictures
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Get number of pictures that were dropped because writer didn't keep up
+     *
+     * @return Number of dropped pictures
+     */
+    public int getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Get number of pictures that were written to storage
+     *
+     * @return Number of written pictures
+     */
+    public int getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Get number of pictures that are waiting for writer
+     *
+     * @return Number of pending pictures
+     */
+    public int getPendingCount() {
+        return filled.size();
+    }
+
+    /**
+     * Stop accepting pictures. Writer thread finishes after all queued pictures are written
+     */
+    public void release() {
+        released = true;
+    }
+
+    /**
+     * Loop of writer thread
+     */
+    private void drain() {
+        while (true) {
+            // Writer isn't interrupted, since interrupt closes the channel of a journal
+            boolean finishing = released;
+            Frame frame;
+            try {
+                frame = filled.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (frame == null) {
+                if (finishing) {
+                    break;
+                }
+                continue;
+            }
+            write(frame);
+            free.add(frame);
+        }
+        Log.d(TAG, "Burst finished: queued " + queued.get() + ", dropped " + dropped.get()
+                + ", written " + written.get());
+    }
+
+    /**
+     * Write picture to external storage
+     *
+     * @param frame Picture
+     */
+    private void write(Frame frame) {
+        File file = FileUtils.getOutputMediaFile(MEDIA_TYPE_IMAGE, sequence.incrementAndGet());
+        if (file == null) {
+            Log.e(TAG, "Error creating media file");
+            return;
+        }
+        CaptureJournal.Entry entry = null;
+        try {
+            entry = journal.begin(file);
+            ExifWriter.write(frame.data, frame.length, frame.orientation, entry.getOutput());
+            entry.commit();
+            written.incrementAndGet();
+            FileUtils.addFileToGallery(Uri.fromFile(file), context);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't write picture", e);
+        } finally {
+            if (entry != null) {
+                entry.abort();
+            }
+        }
+    }
+
+    /**
+     * Reusable buffer for a picture
+     */
+    private static class Frame {
+        private byte[] data = new byte[INITIAL_BUFFER_SIZE];
+        private int length;
+        private int orientation;
+    }
+}
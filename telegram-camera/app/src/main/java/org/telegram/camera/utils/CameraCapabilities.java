@@ -0,0 +1,488 @@
+package org.telegram.camera.utils;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.media.CamcorderProfile;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Registry of capabilities of cameras: facing, orientation, supported sizes, flash modes and video
+ * profiles. Facing and orientation of all cameras are queried once, capabilities that need
+ * {@link Camera.Parameters} are taken when a camera is opened for the first time. Snapshot is written to
+ * an app-private file with build fingerprint of the device, so next runs serve all lookups from memory
+ * without HAL calls, until system is updated
+ *
+ * @author Danil Kolikov
+ */
+@SuppressWarnings("deprecation")
+public class CameraCapabilities {
+    private static final String TAG = "CAMERA_CAPABILITIES";
+    private static final String CAPABILITIES_FILE = "camera.capabilities";
+    private static final int MAGIC = 0x54474343;    // "TGCC"
+    private static final int VERSION = 1;
+    /**
+     * Video profiles that are kept, if camera has them
+     */
+    private static final int[] PROFILE_QUALITIES = {
+            CamcorderProfile.QUALITY_LOW, CamcorderProfile.QUALITY_HIGH, CamcorderProfile.QUALITY_480P,
+            CamcorderProfile.QUALITY_720P, CamcorderProfile.QUALITY_1080P
+    };
+
+    private static CameraCapabilities instance;
+
+    private final File file;
+    private final Info[] cameras;
+
+    private CameraCapabilities(Context context) {
+        file = new File(context.getFilesDir(), CAPABILITIES_FILE);
+        Info[] restored = restore(file);
+        if (restored == null) {
+            restored = new Info[Camera.getNumberOfCameras()];
+            for (int i = 0; i < restored.length; i++) {
+                Camera.CameraInfo info = CameraUtils.getCameraInfo(i);
+                restored[i] = new Info(i, info.facing, info.orientation);
+            }
+            save(file, restored);
+        }
+        cameras = restored;
+    }
+
+    /**
+     * Get registry. It's read from a file or made on the first call
+     *
+     * @param context Current context
+     * @return Registry
+     */
+    public static synchronized CameraCapabilities getInstance(Context context) {
+        if (instance == null) {
+            instance = new CameraCapabilities(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Get number of cameras
+     *
+     * @return Number of cameras
+     */
+    public int getCameraCount() {
+        return cameras.length;
+    }
+
+    /**
+     * Get capabilities of a camera
+     *
+     * @param cameraId ID of a camera
+     * @return Capabilities, sizes and flash modes are known only if {@link Info#hasParameters()}
+     */
+    public synchronized Info getInfo(int cameraId) {
+        return cameras[cameraId];
+    }
+
+    /**
+     * Get ID of the first camera with given facing
+     *
+     * @param facing Facing of camera. See constants in {@link android.hardware.Camera.CameraInfo}
+     * @return Id of camera or -1, if there is no such camera
+     */
+    public synchronized int getCameraId(int facing) {
+        for (Info info : cameras) {
+            if (info.facing == facing) {
+                return info.id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check if phone has front camera
+     *
+     * @return True, if has, False, otherwise
+     */
+    public boolean hasFrontCamera() {
+        return getCameraId(Camera.CameraInfo.CAMERA_FACING_FRONT) != -1;
+    }
+
+    /**
+     * Check if phone has back camera
+     *
+     * @return True, if has, False, otherwise
+     */
+    public boolean hasBackCamera() {
+        return getCameraId(Camera.CameraInfo.CAMERA_FACING_BACK) != -1;
+    }
+
+    /**
+     * Check if phone has any camera
+     *
+     * @return True, if has, False, otherwise
+     */
+    public boolean hasCamera() {
+        return cameras.length > 0;
+    }
+
+    /**
+     * Check if phone has both cameras
+     *
+     * @return True, if has, False, otherwise
+     */
+    public boolean hasTwoCameras() {
+        return hasFrontCamera() && hasBackCamera();
+    }
+
+    /**
+     * Take capabilities of an opened camera, if they aren't known yet, and write them to the file
+     *
+     * @param cameraId ID of a camera
+     * @param camera   Opened camera
+     * @return Capabilities of a camera with parameters
+     */
+    public synchronized Info update(int cameraId, Camera camera) {
+        Info info = cameras[cameraId];
+        if (info.hasParameters()) {
+            return info;
+        }
+        long start = System.currentTimeMillis();
+        Camera.Parameters parameters = camera.getParameters();
+        List<Size> previewSizes = toSizes(parameters.getSupportedPreviewSizes());
+        List<Size> videoSizes = parameters.getSupportedVideoSizes() == null
+                ? previewSizes : toSizes(parameters.getSupportedVideoSizes());
+        List<String> flashModes = parameters.getSupportedFlashModes() == null
+                ? Collections.<String>emptyList() : parameters.getSupportedFlashModes();
+        List<Profile> profiles = new ArrayList<Profile>();
+        for (int quality : PROFILE_QUALITIES) {
+            if (CamcorderProfile.hasProfile(cameraId, quality)) {
+                CamcorderProfile profile = CamcorderProfile.get(cameraId, quality);
+                profiles.add(new Profile(quality, profile.videoFrameWidth, profile.videoFrameHeight,
+                        profile.videoFrameRate, profile.videoBitRate));
+            }
+        }
+        info = new Info(info.id, info.facing, info.orientation, previewSizes,
+                toSizes(parameters.getSupportedPictureSizes()), videoSizes, flashModes, profiles);
+        cameras[cameraId] = info;
+        save(file, cameras);
+        Log.d(TAG, "Camera " + cameraId + " queried in " + (System.currentTimeMillis() - start) + " ms");
+        return info;
+    }
+
+    private static List<Size> toSizes(List<Camera.Size> sizes) {
+        List<Size> result = new ArrayList<Size>();
+        if (sizes != null) {
+            for (Camera.Size size : sizes) {
+                result.add(new Size(size.width, size.height));
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Write snapshot. It's written to a temporary file first, so the old one is replaced only
+     * when the new one is complete
+     *
+     * @param file    File of a snapshot
+     * @param cameras Capabilities of all cameras
+     */
+    private static void save(File file, Info[] cameras) {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeUTF(Build.FINGERPRINT);
+            output.writeByte(cameras.length);
+            for (Info info : cameras) {
+                output.writeByte(info.facing);
+                output.writeShort(info.orientation);
+                output.writeBoolean(info.hasParameters());
+                if (!info.hasParameters()) {
+                    continue;
+                }
+                writeSizes(output, info.previewSizes);
+                writeSizes(output, info.pictureSizes);
+                writeSizes(output, info.videoSizes);
+                output.writeByte(info.flashModes.size());
+                for (String mode : info.flashModes) {
+                    output.writeUTF(mode);
+                }
+                output.writeByte(info.profiles.size());
+                for (Profile profile : info.profiles) {
+                    output.writeByte(profile.quality);
+                    output.writeShort(profile.width);
+                    output.writeShort(profile.height);
+                    output.writeShort(profile.frameRate);
+                    output.writeInt(profile.bitRate);
+                }
+            }
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp.getName());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't save capabilities", e);
+            FileUtils.closeQuietly(output);
+            FileUtils.deleteFile(temp);
+        }
+    }
+
+    /**
+     * Read snapshot
+     *
+     * @param file File of a snapshot
+     * @return Capabilities of all cameras or null, if there is no snapshot, it's corrupted or it was
+     * written on another build of the system
+     */
+    private static Info[] restore(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                Log.w(TAG, "Unknown capabilities format");
+                return null;
+            }
+            if (!Build.FINGERPRINT.equals(input.readUTF())) {
+                Log.d(TAG, "System is updated, capabilities are queried again");
+                return null;
+            }
+            Info[] cameras = new Info[input.readUnsignedByte()];
+            for (int id = 0; id < cameras.length; id++) {
+                int facing = input.readByte();
+                int orientation = input.readShort();
+                if (!input.readBoolean()) {
+                    cameras[id] = new Info(id, facing, orientation);
+                    continue;
+                }
+                List<Size> previewSizes = readSizes(input);
+                List<Size> pictureSizes = readSizes(input);
+                List<Size> videoSizes = readSizes(input);
+                List<String> flashModes = new ArrayList<String>();
+                for (int i = input.readUnsignedByte(); i > 0; i--) {
+                    flashModes.add(input.readUTF());
+                }
+                List<Profile> profiles = new ArrayList<Profile>();
+                for (int i = input.readUnsignedByte(); i > 0; i--) {
+                    profiles.add(new Profile(input.readByte(), input.readUnsignedShort(),
+                            input.readUnsignedShort(), input.readUnsignedShort(), input.readInt()));
+                }
+                cameras[id] = new Info(id, facing, orientation, previewSizes, pictureSizes, videoSizes,
+                        flashModes, profiles);
+            }
+            return cameras;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Can't restore capabilities", e);
+            return null;
+        } finally {
+            FileUtils.closeQuietly(input);
+        }
+    }
+
+    private static void writeSizes(DataOutputStream output, List<Size> sizes) throws IOException {
+        output.writeShort(sizes.size());
+        for (Size size : sizes) {
+            output.writeShort(size.width);
+            output.writeShort(size.height);
+        }
+    }
+
+    private static List<Size> readSizes(DataInputStream input) throws IOException {
+        Size[] sizes = new Size[input.readUnsignedShort()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = new Size(input.readUnsignedShort(), input.readUnsignedShort());
+        }
+        return Collections.unmodifiableList(Arrays.asList(sizes));
+    }
+
+    /**
+     * Size of a preview, a picture or a video. Unlike {@link Camera.Size}, it doesn't need an opened camera
+     */
+    public static class Size {
+        public final int width, height;
+
+        /**
+         * Create size
+         *
+         * @param width  Width
+         * @param height Height
+         */
+        public Size(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Size)) {
+                return false;
+            }
+            Size size = (Size) o;
+            return width == size.width && height == size.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return width * 32713 + height;
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height;
+        }
+    }
+
+    /**
+     * Video profile of a camera, it's a part of {@link CamcorderProfile} that is needed to choose sizes
+     */
+    public static class Profile {
+        public final int quality, width, height, frameRate, bitRate;
+
+        Profile(int quality, int width, int height, int frameRate, int bitRate) {
+            this.quality = quality;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.bitRate = bitRate;
+        }
+    }
+
+    /**
+     * Capabilities of one camera
+     */
+    public static class Info {
+        private final int id, facing, orientation;
+        private final List<Size> previewSizes, pictureSizes, videoSizes;
+        private final List<String> flashModes;
+        private final List<Profile> profiles;
+
+        private Info(int id, int facing, int orientation) {
+            this(id, facing, orientation, null, null, null, null, null);
+        }
+
+        Info(int id, int facing, int orientation, List<Size> previewSizes, List<Size> pictureSizes,
+             List<Size> videoSizes, List<String> flashModes, List<Profile> profiles) {
+            this.id = id;
+            this.facing = facing;
+            this.orientation = orientation;
+            this.previewSizes = previewSizes;
+            this.pictureSizes = pictureSizes;
+            this.videoSizes = videoSizes;
+            this.flashModes = flashModes == null ? null : Collections.unmodifiableList(flashModes);
+            this.profiles = profiles == null ? null : Collections.unmodifiableList(profiles);
+        }
+
+        /**
+         * Get ID of a camera
+         *
+         * @return ID of a camera
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Get facing of a camera
+         *
+         * @return Facing, see constants in {@link Camera.CameraInfo}
+         */
+        public int getFacing() {
+            return facing;
+        }
+
+        /**
+         * Is this camera front
+         *
+         * @return True, if it's front, False otherwise
+         */
+        public boolean isFront() {
+            return facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+        }
+
+        /**
+         * Get orientation of a sensor
+         *
+         * @return Angle in degrees, see {@link Camera.CameraInfo#orientation}
+         */
+        public int getOrientation() {
+            return orientation;
+        }
+
+        /**
+         * Check if capabilities that need opened camera are known
+         *
+         * @return True, if sizes, flash modes and profiles are known, False otherwise
+         */
+        public boolean hasParameters() {
+            return previewSizes != null;
+        }
+
+        /**
+         * Get supported sizes of a preview
+         *
+         * @return Sizes or null, if they aren't known
+         */
+        public List<Size> getPreviewSizes() {
+            return previewSizes;
+        }
+
+        /**
+         * Get supported sizes of a picture
+         *
+         * @return Sizes or null, if they aren't known
+         */
+        public List<Size> getPictureSizes() {
+            return pictureSizes;
+        }
+
+        /**
+         * Get supported sizes of a video
+         *
+         * @return Sizes or null, if they aren't known. If camera doesn't tell them, they're sizes of a preview
+         */
+        public List<Size> getVideoSizes() {
+            return videoSizes;
+        }
+
+        /**
+         * Get supported flash modes
+         *
+         * @return Modes, see constants in {@link Camera.Parameters}, or null, if they aren't known
+         */
+        public List<String> getFlashModes() {
+            return flashModes;
+        }
+
+        /**
+         * Get video profile of given quality
+         *
+         * @param quality Quality, see constants in {@link CamcorderProfile}
+         * @return Profile or null, if camera doesn't have it or profiles aren't known
+         */
+        public Profile getProfile(int quality) {
+            if (profiles != null) {
+                for (Profile profile : profiles) {
+                    if (profile.quality == quality) {
+                        return profile;
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -4,22 +4,30 @@ import android.app.Activity;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
+import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
 import android.view.ViewGroup;
+import org.telegram.camera.utils.jpeg.ExifWriter;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static android.provider.MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO;
 
 /**
- * Holder of a camera and it's state. It takes pictures, records videos and can be released when isn't required
+ * Holder of a camera and it's state. It takes pictures, records videos and can be released when isn't required.
+ * Public methods are called on the main thread, they put commands to {@link CameraThread} and return at once.
+ * Listeners are called on the main thread
  *
  * @author Danil Kolikov
  * @author Gleb Zernov
@@ -41,13 +49,19 @@ public class CameraHolder {
 
     private static final int VIDEO_QUALITY = CamcorderProfile.QUALITY_HIGH;
     private static final String TAG = "CAMERA_HOLDER";
+    /**
+     * Changes that are committed within this time after the first one are applied at once
+     */
+    private static final long FRAME_MILLIS = 16;
+    private static final String KEY_FLASH_MODE = "flash-mode";
+    private static final String KEY_PICTURE_SIZE = "picture-size";
+    private static final String KEY_PREVIEW_SIZE = "preview-size";
 
-    private final List<Camera.Size> supportedPreviewSizes, supportedPictureSizes;
+    private final CameraCapabilities.Info info;
     /**
      * ID of camera
      *
-     * @see CameraUtils#getCameraId(int)
-     * @see CameraUtils#getCameraId(int)
+     * @see CameraCapabilities#getCameraId(int)
      */
     public int id;
 
@@ -56,14 +70,47 @@ public class CameraHolder {
     private RecordVideoCallback callback;
     private int orientationDegree;
     private File savedVideo;
+    private CameraCapabilities.Size videoSize;
     private boolean isShowingPreview;
+    private BurstCapture burst;
+    private OnBurstShotListener burstListener;
+    private Runnable burstShot;
+    /**
+     * Picture from camera is being taken, so queued pictures wait for it
+     */
+    private boolean shooting;
+    private int queuedPictures;
+    private BurstCapture queueCapture;
+    private OnBurstShotListener queueListener;
+    /**
+     * Buffer of zero shutter lag, it's changed on the main thread, commands take the one that was
+     * current when they were issued
+     */
+    private ZslBuffer zsl;
+    private volatile Runnable firstFrameListener;
+    /**
+     * Parameters that were applied last, null if they must be read from camera
+     */
+    private Camera.Parameters parameters;
+    private final Map<String, String> pendingChanges = new LinkedHashMap<String, String>();
+    private final Handler parametersHandler = CameraThread.getHandler();
+    private final Runnable applyPending = new Runnable() {
+        @Override
+        public void run() {
+            applyChanges();
+        }
+    };
 
-    public CameraHolder(int id, Camera camera) {
-        this.id = id;
+    /**
+     * Create holder of an opened camera
+     *
+     * @param info   Capabilities of a camera with parameters, see {@link CameraCapabilities#update(int, Camera)}
+     * @param camera Opened camera
+     */
+    public CameraHolder(CameraCapabilities.Info info, Camera camera) {
+        this.info = info;
+        this.id = info.getId();
         this.camera = camera;
-
-        supportedPreviewSizes = camera.getParameters().getSupportedPreviewSizes();
-        supportedPictureSizes = camera.getParameters().getSupportedPictureSizes();
         isShowingPreview = false;
     }
 
@@ -73,7 +120,7 @@ public class CameraHolder {
      * @return True, if it's front, False otherwise
      */
     public boolean isFront() {
-        return CameraUtils.getCameraInfo(id).facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+        return info.isFront();
     }
 
     /**
@@ -86,11 +133,7 @@ public class CameraHolder {
      */
     public List<Integer> getFlashStates() {
         List<Integer> result = new ArrayList<Integer>();
-        List<String> modes = camera.getParameters().getSupportedFlashModes();
-        if (modes == null) {
-            return Collections.emptyList();
-        }
-        for (String s : modes) {
+        for (String s : info.getFlashModes()) {
             switch (s) {
                 case Camera.Parameters.FLASH_MODE_AUTO:
                     result.add(CameraHolder.FLASH_AUTO);
@@ -115,7 +158,7 @@ public class CameraHolder {
      * @param flashMode new mode of a flash
      */
     public void setFlashMode(int flashMode) {
-        String mode;
+        final String mode;
         switch (flashMode) {
             case FLASH_AUTO:
                 mode = Camera.Parameters.FLASH_MODE_AUTO;
@@ -127,61 +170,198 @@ public class CameraHolder {
                 mode = Camera.Parameters.FLASH_MODE_OFF;
                 break;
         }
-        Camera.Parameters parameters = camera.getParameters();
-        parameters.setFlashMode(mode);
-        camera.setParameters(parameters);
+        CameraThread.execute("set flash mode", new Runnable() {
+            @Override
+            public void run() {
+                edit().setFlashMode(mode).commit();
+            }
+        });
+    }
+
+    /**
+     * Get parameters of a camera. They're read once and then updated by transactions, so the same
+     * object is returned every time. It mustn't be changed, use {@link #edit()} instead.
+     * Must be called on the camera thread
+     *
+     * @return Parameters of a camera
+     */
+    public Camera.Parameters getParameters() {
+        if (parameters == null) {
+            parameters = camera.getParameters();
+        }
+        return parameters;
+    }
+
+    /**
+     * Start transaction of parameters. Must be called on the camera thread
+     *
+     * @return New transaction
+     */
+    public Transaction edit() {
+        return new Transaction();
+    }
+
+    /**
+     * Apply committed changes of parameters now. Parameters are set only if some of them really differ
+     */
+    private void applyChanges() {
+        parametersHandler.removeCallbacks(applyPending);
+        if (pendingChanges.isEmpty()) {
+            return;
+        }
+        Camera.Parameters parameters = getParameters();
+        boolean changed = false;
+        for (Map.Entry<String, String> change : pendingChanges.entrySet()) {
+            if (!change.getValue().equals(parameters.get(change.getKey()))) {
+                parameters.set(change.getKey(), change.getValue());
+                changed = true;
+            }
+        }
+        pendingChanges.clear();
+        if (!changed) {
+            return;
+        }
+        try {
+            camera.setParameters(parameters);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Can't set parameters", e);
+            // Snapshot doesn't match camera anymore
+            this.parameters = null;
+        }
     }
 
     /**
-     * Start preview from this camera. Note that {@link CameraHolder#prepareForPhoto(SurfaceView)} or
-     * {@link CameraHolder#prepareForVideo(SurfaceView)} should be called first
+     * Start preview from this camera. Note that
+     * {@link CameraHolder#prepareForPhoto(SurfaceView, CameraThread.Callback)} or
+     * {@link CameraHolder#prepareForVideo(SurfaceView, CameraThread.Callback)} should be called first
      */
     public void startPreview() {
+        CameraThread.execute("start preview", new Runnable() {
+            @Override
+            public void run() {
+                startPreviewNow();
+            }
+        });
+    }
+
+    private void startPreviewNow() {
         if (!isShowingPreview) {
+            if (firstFrameListener != null) {
+                camera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
+                    @Override
+                    public void onPreviewFrame(byte[] data, Camera camera) {
+                        notifyFirstFrame();
+                    }
+                });
+            }
             camera.startPreview();
             isShowingPreview = true;
         }
     }
 
+    /**
+     * Set listener of the first frame of preview, it's called once on the main thread, when preview
+     * that is started next shows its first frame
+     *
+     * @param listener Listener or null
+     */
+    public void setOnFirstFrameListener(Runnable listener) {
+        firstFrameListener = listener;
+    }
+
+    /**
+     * Call listener of the first frame on the main thread, if it wasn't called yet
+     */
+    private void notifyFirstFrame() {
+        CameraThread.postToMain(new Runnable() {
+            @Override
+            public void run() {
+                if (firstFrameListener != null) {
+                    Runnable listener = firstFrameListener;
+                    firstFrameListener = null;
+                    listener.run();
+                }
+            }
+        });
+    }
+
     /**
      * Stop preview from this camera
      */
     public void stopPreview() {
-        if (isShowingPreview) {
-            camera.stopPreview();
-            isShowingPreview = false;
-        }
+        final ZslBuffer zsl = this.zsl;
+        CameraThread.execute("stop preview", new Runnable() {
+            @Override
+            public void run() {
+                // Queued pictures are dropped, preview isn't restarted after the one that is being taken
+                queuedPictures = 0;
+                if (isShowingPreview) {
+                    camera.stopPreview();
+                    isShowingPreview = false;
+                    if (zsl != null) {
+                        zsl.clear();
+                    }
+                }
+            }
+        });
     }
 
     /**
-     * Initialise preview
+     * Enable or disable zero shutter lag. If it's enabled, pictures are taken from the last preview
+     * frames instead of still capture, so they are taken instantly, but have preview resolution.
+     * Takes effect on next {@link #prepareForPhoto(SurfaceView, CameraThread.Callback)}
      *
-     * @param width   Width of a preview
-     * @param height  Height of a preview
-     * @param preview Surface to show preview
-     * @throws IOException If some errors with camera occured
+     * @param enabled    True, if zero shutter lag should be used
+     * @param frameCount Number of preview frames to keep
+     * @see ZslBuffer
      */
-    private void setPreview(int width, int height, SurfaceView preview) throws IOException {
-        Camera.Size pictureSize = CameraUtils.getOptimalPreviewSize(supportedPictureSizes, width, height);
-        Camera.Size previewSize = CameraUtils.getOptimalPreviewSize(supportedPreviewSizes, width, height);
-
-        Camera.Parameters parameters = camera.getParameters();
-        parameters.setPictureSize(pictureSize.width, pictureSize.height);
-        parameters.setPreviewSize(previewSize.width, previewSize.height);
+    public void setZeroShutterLag(boolean enabled, int frameCount) {
+        final ZslBuffer old = zsl;
+        zsl = enabled ? new ZslBuffer(frameCount) : null;
+        if (old != null) {
+            CameraThread.execute("stop zero shutter lag", new Runnable() {
+                @Override
+                public void run() {
+                    old.stop();
+                }
+            });
+        }
+    }
 
-        // Resize preview
+    /**
+     * Resize view according to the size of preview, it's done on the main thread
+     *
+     * @param selection Sizes of a preview and a picture
+     * @param preview   Surface to show preview
+     */
+    private static void resizePreview(SizeSelector.Selection selection, SurfaceView preview) {
+        CameraCapabilities.Size previewSize = selection.getPreview();
         double ratio = (double) previewSize.width / previewSize.height;
         ViewGroup.LayoutParams params = preview.getLayoutParams();
         int newHeight = (int) (ratio * preview.getMeasuredWidth());
         params.height = newHeight;
         params.width = preview.getMeasuredWidth();
         preview.setLayoutParams(params);
+    }
 
-        camera.setParameters(parameters);
+    /**
+     * Initialise preview, it's done on the camera thread
+     *
+     * @param selection Sizes of a preview and a picture, if it's needed
+     * @param holder    Holder of a surface to show preview
+     * @throws IOException If some errors with camera occured
+     */
+    private void setPreview(SizeSelector.Selection selection, SurfaceHolder holder) throws IOException {
+        CameraCapabilities.Size pictureSize = selection.getPicture();
+        Transaction transaction = edit().setPreviewSize(selection.getPreview());
+        if (pictureSize != null) {
+            transaction.setPictureSize(pictureSize);
+        }
+        transaction.apply();
         if (!isShowingPreview) {
-            camera.setPreviewDisplay(preview.getHolder());
+            camera.setPreviewDisplay(holder);
         }
-        startPreview();
+        startPreviewNow();
     }
 
     /**
@@ -208,73 +388,324 @@ public class CameraHolder {
                 degrees = 270;
                 break;
         }
-        Camera.CameraInfo info = CameraUtils.getCameraInfo(id);
         int result;
         if (isFront()) {
-            result = (info.orientation + degrees) % 360;
+            result = (info.getOrientation() + degrees) % 360;
             result = (360 - result) % 360;  // compensate the mirror
         } else {  // back-facing
-            result = (info.orientation - degrees + 360) % 360;
+            result = (info.getOrientation() - degrees + 360) % 360;
         }
 
-        orientationDegree = result;
-        camera.setDisplayOrientation(result);
+        final int orientation = result;
+        CameraThread.execute("set display orientation", new Runnable() {
+            @Override
+            public void run() {
+                orientationDegree = orientation;
+                camera.setDisplayOrientation(orientation);
+            }
+        });
     }
 
     /**
      * Prepare specified view to capturing photo from camera
      *
-     * @param view Surface to show preview
-     * @return True, if view was successfully prepared, False otherwise
+     * @param view     Surface to show preview
+     * @param callback Callback that gets True, if view was successfully prepared, False otherwise. Can be null
      */
-    public boolean prepareForPhoto(SurfaceView view) {
-        try {
-            setPreview(((View) view.getParent()).getWidth(), ((View) view.getParent()).getHeight(), view);
-            return true;
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage(), e);
-            return false;
-        }
+    public void prepareForPhoto(SurfaceView view, CameraThread.Callback<Boolean> callback) {
+        final ZslBuffer zsl = this.zsl;
+        View parent = (View) view.getParent();
+        final SizeSelector.Selection selection = SizeSelector.getDefault().forPhoto(info, parent.getWidth(),
+                parent.getHeight(), zsl != null ? zsl.getBufferCount() : 1);
+        resizePreview(selection, view);
+        final SurfaceHolder holder = view.getHolder();
+        CameraThread.execute("prepare for photo", new CameraThread.Command<Boolean>() {
+            @Override
+            public Boolean run() {
+                try {
+                    setPreview(selection, holder);
+                    if (zsl != null && zsl.start(camera, getParameters()) && firstFrameListener != null) {
+                        // Preview callback belongs to buffer now
+                        zsl.setOnNextFrameListener(new Runnable() {
+                            @Override
+                            public void run() {
+                                notifyFirstFrame();
+                            }
+                        });
+                    }
+                    return true;
+                } catch (Exception e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    return false;
+                }
+            }
+        }, callback);
     }
 
     /**
      * Take picture from camera
      *
      * @param listener Callback that will be called when picture will be ready
+     * @param trace    Trace of latency of a picture, it's marked when camera passes stages
      */
-    public void takePicture(final OnTakePictureListener listener) {
-        final Camera.Size size = camera.getParameters().getPictureSize();
+    public void takePicture(final OnTakePictureListener listener, final LatencyTracker.Trace trace) {
+        final ZslBuffer zsl = this.zsl;
+        // Time of the press, not of the command, chooses the frame of zero shutter lag
+        final long time = SystemClock.uptimeMillis();
+        CameraThread.execute("take picture", new Runnable() {
+            @Override
+            public void run() {
+                takePicture(zsl, time, listener, trace);
+            }
+        });
+    }
+
+    private void takePicture(ZslBuffer zsl, long time, final OnTakePictureListener listener,
+                             final LatencyTracker.Trace trace) {
         final int orientation = orientationDegree;
         final boolean front = isFront();
+        if (zsl != null && zsl.capture(time, new ZslBuffer.OnFrameEncodedListener() {
+            @Override
+            public void onFrameEncoded(byte[] jpeg, int width, int height) {
+                trace.mark("jpeg");
+                if (listener != null) {
+                    listener.onPictureTaken(jpeg, width, height, orientation, front, trace);
+                }
+            }
+        })) {
+            return;
+        }
+        // Flash that was just switched must be set before shutter
+        applyChanges();
+        final Camera.Size size = getParameters().getPictureSize();
         try {
-            camera.takePicture(null, null, new Camera.PictureCallback() {
+            camera.takePicture(new Camera.ShutterCallback() {
                 @Override
-                public void onPictureTaken(byte[] data, Camera camera) {
+                public void onShutter() {
+                    trace.mark("shutter");
+                }
+            }, null, new Camera.PictureCallback() {
+                @Override
+                public void onPictureTaken(final byte[] data, Camera camera) {
+                    trace.mark("jpeg");
+                    shooting = false;
                     if (listener != null) {
-                        listener.onPictureTaken(data, size.width, size.height, orientation, front);
+                        CameraThread.postToMain(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onPictureTaken(data, size.width, size.height, orientation, front, trace);
+                            }
+                        });
                     }
+                    takeQueuedPicture();
                 }
             });
+            shooting = true;
+            trace.mark("take picture issued");
         } catch (RuntimeException e) {
             Log.e(TAG, "Can't take picture", e);
         }
     }
 
     /**
-     * Prepare specified view to capturing video from camera
+     * Queue picture that is requested while another one is being taken, e.g. by rapid taps on the shutter.
+     * Queued pictures are taken one after another right after the current one and are written to storage
+     * through {@link BurstCapture} without review. With zero shutter lag picture is taken from the frame
+     * of a tap at once. If no picture is being taken, request is ignored
      *
-     * @param view Surface to show preview
-     * @return True, if view was successfully prepared, False otherwise
+     * @param capture  Queue of taken pictures
+     * @param listener Callback that will be called after every queued picture, can be null
      */
-    public boolean prepareForVideo(SurfaceView view) {
-        CamcorderProfile profile = CamcorderProfile.get(id, VIDEO_QUALITY);
+    public void queuePicture(final BurstCapture capture, final OnBurstShotListener listener) {
+        final ZslBuffer zsl = this.zsl;
+        final long time = SystemClock.uptimeMillis();
+        CameraThread.execute("queue picture", new Runnable() {
+            @Override
+            public void run() {
+                final int orientation = ExifWriter.orientationFor(orientationDegree, isFront());
+                if (zsl != null && zsl.capture(time, new ZslBuffer.OnFrameEncodedListener() {
+                    @Override
+                    public void onFrameEncoded(byte[] jpeg, int width, int height) {
+                        capture.offer(jpeg, orientation);
+                        if (listener != null) {
+                            listener.onBurstShot(capture.getQueuedCount(), capture.getDroppedCount());
+                        }
+                    }
+                })) {
+                    return;
+                }
+                if (!shooting) {
+                    Log.d(TAG, "No picture is being taken, queued picture is ignored");
+                    return;
+                }
+                queuedPictures++;
+                queueCapture = capture;
+                queueListener = listener;
+            }
+        });
+    }
+
+    /**
+     * Take the next queued picture, if there is one and preview wasn't stopped meanwhile.
+     * Preview is stopped after previous picture, so it's restarted first
+     */
+    private void takeQueuedPicture() {
+        if (queuedPictures == 0 || burst != null) {
+            queuedPictures = 0;
+            return;
+        }
+        queuedPictures--;
+        final BurstCapture capture = queueCapture;
+        final OnBurstShotListener listener = queueListener;
+        final int orientation = ExifWriter.orientationFor(orientationDegree, isFront());
         try {
-            setPreview(profile.videoFrameWidth, profile.videoFrameHeight, view);
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage(), e);
-            return false;
+            camera.startPreview();
+            camera.takePicture(null, null, new Camera.PictureCallback() {
+                @Override
+                public void onPictureTaken(byte[] data, Camera camera) {
+                    shooting = false;
+                    capture.offer(data, orientation);
+                    if (listener != null) {
+                        final int queued = capture.getQueuedCount(), dropped = capture.getDroppedCount();
+                        CameraThread.postToMain(new Runnable() {
+                            @Override
+                            public void run() {
+                                listener.onBurstShot(queued, dropped);
+                            }
+                        });
+                    }
+                    takeQueuedPicture();
+                }
+            });
+            shooting = true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Can't take queued picture", e);
+            queuedPictures = 0;
+        }
+    }
+
+    /**
+     * Start taking pictures one after another until {@link #stopBurst()} is called. Next picture is taken
+     * right after preview is restarted, but not earlier than frame interval after previous one.
+     * Pictures are passed to {@link BurstCapture}, so camera never waits for storage
+     *
+     * @param burst           Queue of taken pictures
+     * @param framesPerSecond Target rate of pictures
+     * @param listener        Callback that will be called after every picture, can be null
+     */
+    public void startBurst(final BurstCapture burst, final int framesPerSecond, final OnBurstShotListener listener) {
+        CameraThread.execute("start burst", new Runnable() {
+            @Override
+            public void run() {
+                startBurstNow(burst, framesPerSecond, listener);
+            }
+        });
+    }
+
+    private void startBurstNow(final BurstCapture burst, int framesPerSecond, OnBurstShotListener listener) {
+        stopBurstNow();
+        final Handler burstHandler = CameraThread.getHandler();
+        this.burst = burst;
+        this.burstListener = listener;
+        final long interval = 1000 / Math.max(1, framesPerSecond);
+        final int orientation = ExifWriter.orientationFor(orientationDegree, isFront());
+        burstShot = new Runnable() {
+            @Override
+            public void run() {
+                if (CameraHolder.this.burst != burst) {
+                    return;
+                }
+                final Runnable shot = this;
+                final long started = SystemClock.uptimeMillis();
+                try {
+                    camera.takePicture(null, null, new Camera.PictureCallback() {
+                        @Override
+                        public void onPictureTaken(byte[] data, Camera camera) {
+                            // Preview is restarted even if burst is stopped, otherwise viewfinder freezes
+                            camera.startPreview();
+                            isShowingPreview = true;
+                            if (CameraHolder.this.burst != burst) {
+                                return;
+                            }
+                            burst.offer(data, orientation);
+                            if (burstListener != null) {
+                                final OnBurstShotListener listener = burstListener;
+                                final int queued = burst.getQueuedCount(), dropped = burst.getDroppedCount();
+                                CameraThread.postToMain(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        listener.onBurstShot(queued, dropped);
+                                    }
+                                });
+                            }
+                            long elapsed = SystemClock.uptimeMillis() - started;
+                            burstHandler.postDelayed(shot, Math.max(0, interval - elapsed));
+                        }
+                    });
+                    // Camera stops preview until picture is taken
+                    isShowingPreview = false;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Can't take picture in burst", e);
+                    CameraHolder.this.burst = null;
+                }
+            }
+        };
+        burstHandler.post(burstShot);
+    }
+
+    /**
+     * Stop taking pictures in burst. Picture that is being taken now will be dropped
+     */
+    public void stopBurst() {
+        CameraThread.execute("stop burst", new Runnable() {
+            @Override
+            public void run() {
+                stopBurstNow();
+            }
+        });
+    }
+
+    private void stopBurstNow() {
+        if (burstShot != null) {
+            CameraThread.getHandler().removeCallbacks(burstShot);
+        }
+        if (burst != null) {
+            Log.d(TAG, "burst stopped: queued " + burst.getQueuedCount() + ", dropped " + burst.getDroppedCount());
         }
-        return true;
+        burst = null;
+        burstShot = null;
+        burstListener = null;
+    }
+
+    /**
+     * Prepare specified view to capturing video from camera
+     *
+     * @param view     Surface to show preview
+     * @param callback Callback that gets True, if view was successfully prepared, False otherwise. Can be null
+     */
+    public void prepareForVideo(SurfaceView view, CameraThread.Callback<Boolean> callback) {
+        final ZslBuffer zsl = this.zsl;
+        View parent = (View) view.getParent();
+        final SizeSelector.Selection selection = SizeSelector.getDefault().forVideo(info, parent.getWidth(),
+                parent.getHeight(), VIDEO_QUALITY);
+        resizePreview(selection, view);
+        final SurfaceHolder holder = view.getHolder();
+        CameraThread.execute("prepare for video", new CameraThread.Command<Boolean>() {
+            @Override
+            public Boolean run() {
+                if (zsl != null) {
+                    zsl.stop();
+                }
+                videoSize = selection.getVideo();
+                try {
+                    setPreview(selection, holder);
+                } catch (Exception e) {
+                    Log.e(TAG, e.getMessage(), e);
+                    return false;
+                }
+                return true;
+            }
+        }, callback);
     }
 
     /**
@@ -283,6 +714,7 @@ public class CameraHolder {
      * @return True, if recorder was successfully prepared, False otherwise
      */
     private boolean prepareRecorder() {
+        applyChanges();
         camera.unlock();
 
         MediaRecorder recorder = new MediaRecorder();
@@ -291,8 +723,13 @@ public class CameraHolder {
         recorder.setAudioSource(MediaRecorder.AudioSource.CAMCORDER);
         recorder.setVideoSource(MediaRecorder.VideoSource.CAMERA);
 
-        recorder.setProfile(CamcorderProfile.get(id, VIDEO_QUALITY));
-        recorder.setOrientationHint(CameraUtils.getCameraInfo(id).orientation);
+        CamcorderProfile profile = CamcorderProfile.get(id, VIDEO_QUALITY);
+        recorder.setProfile(profile);
+        if (videoSize != null
+                && (videoSize.width != profile.videoFrameWidth || videoSize.height != profile.videoFrameHeight)) {
+            recorder.setVideoSize(videoSize.width, videoSize.height);
+        }
+        recorder.setOrientationHint(info.getOrientation());
         savedVideo = FileUtils.getOutputMediaFile(MEDIA_TYPE_VIDEO);
         recorder.setOutputFile(savedVideo.getPath());
 
@@ -303,7 +740,7 @@ public class CameraHolder {
             return true;
         } catch (IOException e) {
             Log.e(TAG, e.getMessage(), e);
-            releaseRecorder();
+            releaseRecorderNow();
             return false;
         }
     }
@@ -313,11 +750,19 @@ public class CameraHolder {
      *
      * @param callback Callback that will be called when video will be ready
      */
-    public void record(RecordVideoCallback callback) {
-        if (prepareRecorder()) {
-            recorder.start();
-            this.callback = callback;
-        }
+    public void record(final RecordVideoCallback callback) {
+        final LatencyTracker.Trace trace = LatencyTracker.start(LatencyTracker.RECORDER_START);
+        CameraThread.execute("record", new Runnable() {
+            @Override
+            public void run() {
+                if (prepareRecorder()) {
+                    trace.mark("prepared");
+                    recorder.start();
+                    CameraHolder.this.callback = callback;
+                    trace.finish("started");
+                }
+            }
+        });
     }
 
     /**
@@ -326,32 +771,72 @@ public class CameraHolder {
      * @param callback New callback
      * @see RecordVideoCallback
      */
-    public void setRecordVideoCallback(RecordVideoCallback callback) {
-        this.callback = callback;
+    public void setRecordVideoCallback(final RecordVideoCallback callback) {
+        CameraThread.execute("set record video callback", new Runnable() {
+            @Override
+            public void run() {
+                CameraHolder.this.callback = callback;
+            }
+        });
     }
 
     /**
      * Stop recording of video
      */
     public void stopRecording() {
-        if (recorder != null) {
-            try {
-                recorder.stop();
-            } catch (RuntimeException e) {
-                FileUtils.deleteFile(savedVideo);
-                savedVideo = null;
-            }
-            releaseRecorder();
-            if (callback != null) {
-                callback.onVideoRecorded(savedVideo);
+        final LatencyTracker.Trace trace = LatencyTracker.start(LatencyTracker.VIDEO);
+        CameraThread.execute("stop recording", new Runnable() {
+            @Override
+            public void run() {
+                if (recorder == null) {
+                    return;
+                }
+                try {
+                    recorder.stop();
+                } catch (RuntimeException e) {
+                    FileUtils.deleteFile(savedVideo);
+                    savedVideo = null;
+                }
+                releaseRecorderNow();
+                trace.mark("recorder stopped");
+                if (callback != null) {
+                    final RecordVideoCallback callback = CameraHolder.this.callback;
+                    final File video = savedVideo;
+                    CameraThread.postToMain(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onVideoRecorded(video, trace);
+                        }
+                    });
+                }
             }
-        }
+        });
     }
 
     /**
      * Release camera. Note that camera must be released when you don't use it
      */
     public void releaseCamera() {
+        final ZslBuffer zsl = this.zsl;
+        CameraThread.execute("release camera", new Runnable() {
+            @Override
+            public void run() {
+                if (zsl != null) {
+                    zsl.stop();
+                }
+                release();
+            }
+        });
+    }
+
+    /**
+     * Release camera now, it must be called on the camera thread
+     */
+    void release() {
+        stopBurstNow();
+        queuedPictures = 0;
+        parametersHandler.removeCallbacks(applyPending);
+        pendingChanges.clear();
         camera.stopPreview();
         camera.release();
     }
@@ -360,6 +845,15 @@ public class CameraHolder {
      * Release recorder. Note that recorder must be released when you don't use it
      */
     public void releaseRecorder() {
+        CameraThread.execute("release recorder", new Runnable() {
+            @Override
+            public void run() {
+                releaseRecorderNow();
+            }
+        });
+    }
+
+    private void releaseRecorderNow() {
         if (recorder != null) {
             recorder.reset();
             recorder.release();
@@ -370,6 +864,81 @@ public class CameraHolder {
                 Log.e(TAG, e.getMessage(), e);
             }
             camera.lock();
+            // Recorder could change parameters
+            parameters = null;
+        }
+    }
+
+    /**
+     * Transaction of parameters. Changes are staged and then applied in one call of
+     * {@link Camera#setParameters(Camera.Parameters)}, changes that are the same as current parameters
+     * don't make a call at all. Transaction is used on the camera thread
+     */
+    public class Transaction {
+        private final Map<String, String> changes = new LinkedHashMap<String, String>();
+
+        private Transaction() {
+        }
+
+        /**
+         * Stage change of a parameter
+         *
+         * @param key   Key of a parameter, as in {@link Camera.Parameters#flatten()}
+         * @param value New value
+         * @return This transaction
+         */
+        public Transaction set(String key, String value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        /**
+         * Stage change of a flash mode
+         *
+         * @param mode Mode, see constants in {@link Camera.Parameters}
+         * @return This transaction
+         */
+        public Transaction setFlashMode(String mode) {
+            return set(KEY_FLASH_MODE, mode);
+        }
+
+        /**
+         * Stage change of a picture size
+         *
+         * @param size Size of a picture
+         * @return This transaction
+         */
+        public Transaction setPictureSize(CameraCapabilities.Size size) {
+            return set(KEY_PICTURE_SIZE, size.width + "x" + size.height);
+        }
+
+        /**
+         * Stage change of a preview size
+         *
+         * @param size Size of a preview
+         * @return This transaction
+         */
+        public Transaction setPreviewSize(CameraCapabilities.Size size) {
+            return set(KEY_PREVIEW_SIZE, size.width + "x" + size.height);
+        }
+
+        /**
+         * Apply changes within a frame, together with other committed changes. Changes are applied
+         * earlier, if camera needs them, e.g. before picture is taken
+         */
+        public void commit() {
+            if (pendingChanges.isEmpty()) {
+                parametersHandler.postDelayed(applyPending, FRAME_MILLIS);
+            }
+            pendingChanges.putAll(changes);
+        }
+
+        /**
+         * Apply changes now, together with other committed changes
+         */
+        public void apply() {
+            pendingChanges.putAll(changes);
+            applyChanges();
         }
     }
 
@@ -385,8 +954,23 @@ public class CameraHolder {
          * @param height      Height of a picture
          * @param orientation Orientation of a picture
          * @param front       Is picture was taken with a front camera
+         * @param trace       Trace of latency of a picture
+         */
+        void onPictureTaken(byte[] data, int width, int height, int orientation, boolean front,
+                            LatencyTracker.Trace trace);
+    }
+
+    /**
+     * Callback for burst mode
+     */
+    public interface OnBurstShotListener {
+        /**
+         * Will be called on the main thread after every picture taken in burst
+         *
+         * @param queued  Number of pictures that were queued for writing
+         * @param dropped Number of pictures that were dropped because writer didn't keep up
          */
-        void onPictureTaken(byte[] data, int width, int height, int orientation, boolean front);
+        void onBurstShot(int queued, int dropped);
     }
 
     /**
@@ -397,8 +981,9 @@ public class CameraHolder {
          * Will be called when video is recorder
          *
          * @param videoFile File with video
+         * @param trace     Trace of latency from the stop of recording
          */
-        void onVideoRecorded(File videoFile);
+        void onVideoRecorded(File videoFile, LatencyTracker.Trace trace);
     }
 
 }
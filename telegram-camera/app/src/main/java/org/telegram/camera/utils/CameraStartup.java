@@ -0,0 +1,244 @@
+package org.telegram.camera.utils;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.util.Log;
+
+/**
+ * Orchestrator of camera startup. Camera is opened and released on {@link CameraThread}, so opening
+ * isn't queued behind other tasks of the serial executor of AsyncTask and can be started
+ * in {@link android.app.Activity#onCreate(android.os.Bundle)}, while layout is inflated. Fragment requests
+ * the camera with {@link #get(boolean, CameraUtils.CameraLoadedListener)} and gets the one that is already
+ * opened or being opened. Startups that are started with {@link #prefetch(boolean)} are traced up to the
+ * first preview frame, the first one in a process is cold, the next ones are warm. Camera that nobody
+ * took is released on the camera thread before the next one is opened. {@link CameraCapabilities} are
+ * read on the camera thread too, so the default camera is chosen without HAL and disk calls on the main
+ * thread. <br>
+ * All methods must be called on the main thread
+ *
+ * @author Danil Kolikov
+ */
+public class CameraStartup {
+    private static final String TAG = "CAMERA_STARTUP";
+
+    private static boolean started;
+
+    private final Context context;
+    private Request pending;
+
+    /**
+     * Create startup
+     *
+     * @param context Current context
+     */
+    public CameraStartup(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Start to open camera that is chosen by default: the back one, or the front one, if there is no back
+     * camera. Facing is resolved on the camera thread
+     */
+    public void prefetchDefault() {
+        if (pending != null) {
+            return;
+        }
+        open(false, false, startTrace());
+    }
+
+    /**
+     * Start to open camera before anybody needs it. Does nothing if this camera is already being opened
+     *
+     * @param front True, if front camera is required, False, otherwise
+     */
+    public void prefetch(boolean front) {
+        // Default camera is checked when it's taken
+        if (pending != null && (!pending.resolved || pending.front == front)) {
+            return;
+        }
+        // If camera with another facing is being opened, startup is still the same
+        LatencyTracker.Trace trace = pending != null ? pending.trace : null;
+        open(front, true, trace != null ? trace : startTrace());
+    }
+
+    private static LatencyTracker.Trace startTrace() {
+        LatencyTracker.Trace trace = LatencyTracker.start(
+                started ? LatencyTracker.STARTUP_WARM : LatencyTracker.STARTUP_COLD);
+        started = true;
+        return trace;
+    }
+
+    /**
+     * Get camera. If it's already opened or being opened, it's taken, otherwise it's opened now
+     *
+     * @param front    True, if front camera is required, False, otherwise
+     * @param listener Listener that is called when camera is opened, now or later
+     */
+    public void get(boolean front, CameraUtils.CameraLoadedListener listener) {
+        if (pending == null || (pending.resolved && pending.front != front)) {
+            open(front, true, null);
+        }
+        pending.listener = listener;
+        pending.wanted = front;
+        if (pending.opened) {
+            deliver();
+        }
+    }
+
+    /**
+     * Forget camera that wasn't taken yet, e.g. when activity is paused. Opened camera is released
+     */
+    public void cancel() {
+        if (pending != null) {
+            discard(pending);
+            pending = null;
+        }
+    }
+
+    /**
+     * Start to open camera, camera that was opened with another facing is released
+     *
+     * @param front    True, if front camera is required, False, otherwise
+     * @param resolved True, if facing is required, False, if default camera is opened instead of the back
+     *                 one, when there is no back camera
+     * @param trace    Trace of startup or null, if it isn't traced
+     */
+    private void open(boolean front, boolean resolved, LatencyTracker.Trace trace) {
+        cancel();
+        final Request request = new Request(front, resolved, trace);
+        pending = request;
+        CameraThread.execute("open", new CameraThread.Command<CameraHolder>() {
+            @Override
+            public CameraHolder run() {
+                CameraCapabilities capabilities = CameraCapabilities.getInstance(context);
+                boolean front;
+                synchronized (request) {
+                    if (!request.resolved) {
+                        request.front = !capabilities.hasBackCamera();
+                    }
+                    front = request.front;
+                }
+                CameraHolder cameraHolder = openCamera(capabilities, front);
+                synchronized (request) {
+                    if (request.cancelled) {
+                        if (cameraHolder != null) {
+                            // Release it before the next camera is opened
+                            cameraHolder.release();
+                        }
+                        return null;
+                    }
+                    request.cameraHolder = cameraHolder;
+                }
+                if (request.trace != null) {
+                    request.trace.mark("camera opened");
+                }
+                return cameraHolder;
+            }
+        }, new CameraThread.Callback<CameraHolder>() {
+            @Override
+            public void onDone(CameraHolder cameraHolder) {
+                onOpened(request);
+            }
+        });
+    }
+
+    /**
+     * Open camera and read its parameters, it's done on the camera thread
+     *
+     * @param capabilities Registry of capabilities
+     * @param front        True, if front camera is required, False, otherwise
+     * @return New CameraHolder, or null, if camera was blocked
+     */
+    private static CameraHolder openCamera(CameraCapabilities capabilities, boolean front) {
+        LatencyTracker.Trace trace = LatencyTracker.start(LatencyTracker.CAMERA_OPEN);
+        int cameraId = capabilities.getCameraId(
+                front ? Camera.CameraInfo.CAMERA_FACING_FRONT : Camera.CameraInfo.CAMERA_FACING_BACK);
+        Camera camera = cameraId == -1 ? null : CameraUtils.getCameraById(cameraId);
+        if (camera == null) {
+            return null;
+        }
+        trace.mark("opened");
+        // Parameters are queried only when this camera is opened for the first time on this system
+        CameraHolder cameraHolder = new CameraHolder(capabilities.update(cameraId, camera), camera);
+        trace.finish("capabilities read");
+        return cameraHolder;
+    }
+
+    private void onOpened(Request request) {
+        synchronized (request) {
+            // Facing of the default camera is known now
+            request.resolved = true;
+        }
+        request.opened = true;
+        if (request == pending && request.listener != null) {
+            deliver();
+        }
+    }
+
+    /**
+     * Pass opened camera to the listener, the listener owns it then
+     */
+    private void deliver() {
+        final Request request = pending;
+        if (request.front != request.wanted) {
+            // Default camera isn't the one that is needed
+            CameraUtils.CameraLoadedListener listener = request.listener;
+            open(request.wanted, true, request.trace);
+            pending.listener = listener;
+            pending.wanted = request.wanted;
+            return;
+        }
+        pending = null;
+        if (request.cameraHolder != null && request.trace != null) {
+            request.cameraHolder.setOnFirstFrameListener(new Runnable() {
+                @Override
+                public void run() {
+                    request.trace.finish("first frame");
+                }
+            });
+        }
+        request.listener.onCameraLoaded(request.cameraHolder);
+    }
+
+    /**
+     * Release camera of a request that nobody needs. If it's still being opened, it's released when opened
+     */
+    private static void discard(Request request) {
+        request.listener = null;
+        CameraHolder cameraHolder;
+        synchronized (request) {
+            request.cancelled = true;
+            cameraHolder = request.cameraHolder;
+            request.cameraHolder = null;
+        }
+        if (cameraHolder == null) {
+            return;
+        }
+        Log.d(TAG, "Camera wasn't taken, releasing");
+        cameraHolder.releaseCamera();
+    }
+
+    /**
+     * Camera that is opened or being opened
+     */
+    private static class Request {
+        private final LatencyTracker.Trace trace;
+        /**
+         * Facing that is opened, it's final for the main thread when it's resolved
+         */
+        private boolean front, resolved;
+        /**
+         * Facing that listener needs
+         */
+        private boolean wanted;
+        private CameraUtils.CameraLoadedListener listener;
+        private CameraHolder cameraHolder;
+        private boolean opened, cancelled;
+
+        private Request(boolean front, boolean resolved, LatencyTracker.Trace trace) {
+            this.front = front;
+            this.resolved = resolved;
+            this.trace = trace;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.telegram.camera.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Thread that owns cameras. Every call of {@link android.hardware.Camera} and
+ * {@link android.media.MediaRecorder} is a command in the queue of this thread, so slow calls of HAL,
+ * e.g. start of preview, preparing of recorder or reconnection of camera, don't stall the main thread,
+ * and commands never run at the same time. Camera is opened on this thread too, so its callbacks come
+ * to this thread, not to the main one. Results of commands come back to the main thread through
+ * {@link Callback}. Every command is traced: time in the queue, time of execution and time until
+ * result is delivered are recorded to {@link LatencyTracker}
+ *
+ * @author Danil Kolikov
+ */
+public class CameraThread {
+    private static final String TAG = "CAMERA_THREAD";
+    /**
+     * Commands that run longer are logged
+     */
+    private static final long SLOW_COMMAND_NANOS = 100 * 1000000L;
+
+    private static Handler handler;
+    private static final Handler MAIN = new Handler(Looper.getMainLooper());
+
+    /**
+     * Get handler of the camera thread, thread is started on the first call
+     *
+     * @return Handler
+     */
+    public static synchronized Handler getHandler() {
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread("Camera", Process.THREAD_PRIORITY_DISPLAY);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+
+    /**
+     * Put command to the end of the queue
+     *
+     * @param name    Name of a command for metrics, e.g. "start preview"
+     * @param command Command
+     */
+    public static void execute(String name, final Runnable command) {
+        execute(name, new Command<Void>() {
+            @Override
+            public Void run() {
+                command.run();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Put command to the end of the queue
+     *
+     * @param name     Name of a command for metrics, e.g. "prepare for photo"
+     * @param command  Command
+     * @param callback Callback that is called on the main thread with the result, can be null
+     * @param <T>      Type of a result
+     */
+    public static <T> void execute(final String name, final Command<T> command, final Callback<T> callback) {
+        final LatencyTracker.Trace trace = LatencyTracker.start("camera " + name);
+        getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                trace.mark("started");
+                long start = System.nanoTime();
+                T result = null;
+                try {
+                    result = command.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Command " + name + " failed", e);
+                }
+                long time = System.nanoTime() - start;
+                trace.mark("executed");
+                if (time > SLOW_COMMAND_NANOS) {
+                    Log.w(TAG, "Slow command " + name + ", " + time / 1000000 + " ms");
+                }
+                if (callback != null) {
+                    final T delivered = result;
+                    MAIN.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            trace.mark("delivered");
+                            callback.onDone(delivered);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Run action on the main thread, e.g. to call listener from a callback of camera
+     *
+     * @param action Action
+     */
+    public static void postToMain(Runnable action) {
+        MAIN.post(action);
+    }
+
+    /**
+     * Command that is run on the camera thread
+     *
+     * @param <T> Type of a result
+     */
+    public interface Command<T> {
+        /**
+         * Run command
+         *
+         * @return Result that is passed to callback
+         */
+        T run();
+    }
+
+    /**
+     * Callback of a command
+     *
+     * @param <T> Type of a result
+     */
+    public interface Callback<T> {
+        /**
+         * Called on the main thread after command
+         *
+         * @param result Result of a command, or null, if it failed
+         */
+        void onDone(T result);
+    }
+}
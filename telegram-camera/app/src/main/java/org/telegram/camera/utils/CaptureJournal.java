@@ -0,0 +1,416 @@
+package org.telegram.camera.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-ahead journal of saved pictures. Before a picture is written, a record with its target path is
+ * written to an app-private folder. Picture is written to a temporary file next to the target through a
+ * buffered channel, synced, marked as committed in the record and renamed to the target. If the process
+ * dies meanwhile, {@link #recover()} finishes committed pictures and removes unfinished ones,
+ * so the gallery never gets truncated files
+ *
+ * @author Danil Kolikov
+ */
+public class CaptureJournal {
+    private static final String TAG = "CAPTURE_JOURNAL";
+    private static final String JOURNAL_FOLDER = "journal";
+    private static final String RECORD_EXTENSION = ".entry";
+    private static final String TEMP_EXTENSION = ".part";
+    private static final int MAGIC = 0x54474a52;    // "TGJR"
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte STATE_BEGUN = 0, STATE_COMMITTED = 1;
+    /**
+     * Offset of state in a record, after magic
+     */
+    private static final int STATE_OFFSET = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final AtomicLong ids = new AtomicLong(System.currentTimeMillis());
+    /**
+     * Entries that are written by this process now, they mustn't be recovered
+     */
+    private static final Set<Long> active = new HashSet<Long>();
+
+    private static long bytesWritten, writeNanos, syncs, syncNanos, maxSyncNanos;
+
+    private final File directory;
+
+    /**
+     * Create journal
+     *
+     * @param context Current context
+     */
+    public CaptureJournal(Context context) {
+        directory = new File(context.getFilesDir(), JOURNAL_FOLDER);
+    }
+
+    /**
+     * Start writing of a file. Caller must either {@link Entry#commit()} or {@link Entry#abort()} the entry
+     *
+     * @param target File to write
+     * @return Entry with stream to write
+     * @throws IOException If record or temporary file can't be created
+     */
+    public Entry begin(File target) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Can't create journal folder");
+        }
+        long id = ids.incrementAndGet();
+        synchronized (active) {
+            active.add(id);
+        }
+        Entry entry = new Entry(id, target);
+        try {
+            byte[] path = target.getPath().getBytes(UTF_8);
+            ByteBuffer record = ByteBuffer.allocate(4 + 1 + 4 + path.length);
+            record.putInt(MAGIC).put(STATE_BEGUN).putInt(path.length).put(path);
+            record.flip();
+            FileOutputStream output = new FileOutputStream(entry.record);
+            try {
+                FileChannel channel = output.getChannel();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                sync(channel);
+            } finally {
+                FileUtils.closeQuietly(output);
+            }
+            entry.output = new ChannelOutputStream(new FileOutputStream(entry.temp).getChannel());
+            return entry;
+        } catch (IOException e) {
+            entry.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Finish entries that were left by previous run of the application. Committed pictures are renamed
+     * to their targets, unfinished ones are deleted
+     *
+     * @return Files that were finished
+     */
+    public List<File> recover() {
+        List<File> finished = new ArrayList<File>();
+        File[] records = directory.listFiles();
+        if (records == null) {
+            return finished;
+        }
+        for (File record : records) {
+            String name = record.getName();
+            if (!name.endsWith(RECORD_EXTENSION)) {
+                continue;
+            }
+            long id;
+            try {
+                id = Long.parseLong(name.substring(0, name.length() - RECORD_EXTENSION.length()));
+            } catch (NumberFormatException e) {
+                FileUtils.deleteFile(record);
+                continue;
+            }
+            synchronized (active) {
+                if (active.contains(id)) {
+                    continue;
+                }
+            }
+            File target = recover(record);
+            if (target != null) {
+                finished.add(target);
+            }
+            FileUtils.deleteFile(record);
+        }
+        Log.d(TAG, "recovered " + finished.size() + " pictures");
+        return finished;
+    }
+
+    /**
+     * Get average speed of writing pictures, without syncs
+     *
+     * @return Throughput in bytes per second
+     */
+    public static synchronized double getWriteThroughput() {
+        return writeNanos == 0 ? 0 : bytesWritten * 1e9 / writeNanos;
+    }
+
+    /**
+     * Get average latency of sync of a file
+     *
+     * @return Latency in milliseconds
+     */
+    public static synchronized double getAverageSyncMillis() {
+        return syncs == 0 ? 0 : syncNanos / 1e6 / syncs;
+    }
+
+    /**
+     * Get maximal latency of sync of a file
+     *
+     * @return Latency in milliseconds
+     */
+    public static synchronized double getMaxSyncMillis() {
+        return maxSyncNanos / 1e6;
+    }
+
+    /**
+     * Get metrics for logs
+     *
+     * @return Description of metrics
+     */
+    public static synchronized String getMetrics() {
+        return String.format("written %d bytes at %.1f KB/s, %d syncs, average %.1f ms, max %.1f ms",
+                bytesWritten, getWriteThroughput() / 1024, syncs, getAverageSyncMillis(), getMaxSyncMillis());
+    }
+
+    /**
+     * Finish one entry
+     *
+     * @param record Record of an entry
+     * @return Target, if picture was committed and renamed, null otherwise
+     */
+    private static File recover(File record) {
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(record, "r");
+            if (input.readInt() != MAGIC) {
+                Log.w(TAG, "Unknown record " + record.getName());
+                return null;
+            }
+            boolean committed = input.readByte() == STATE_COMMITTED;
+            int length = input.readInt();
+            if (length < 0 || length > input.length() - input.getFilePointer()) {
+                throw new IOException("Length of path is " + length);
+            }
+            byte[] path = new byte[length];
+            input.readFully(path);
+            File target = new File(new String(path, UTF_8));
+            File temp = getTempFile(target);
+            if (!temp.exists()) {
+                return null;
+            }
+            if (committed && !target.exists() && temp.renameTo(target)) {
+                return target;
+            }
+            FileUtils.deleteFile(temp);
+            return null;
+        } catch (IOException e) {
+            // Record itself is truncated or corrupted, so picture wasn't written
+            Log.e(TAG, "Can't read record " + record.getName(), e);
+            return null;
+        } finally {
+            FileUtils.closeQuietly(input);
+        }
+    }
+
+    private static File getTempFile(File target) {
+        return new File(target.getPath() + TEMP_EXTENSION);
+    }
+
+    /**
+     * Sync channel to the storage, measuring latency
+     *
+     * @param channel Channel of a file
+     * @throws IOException If channel can't be synced
+     */
+    private static void sync(FileChannel channel) throws IOException {
+        long start = System.nanoTime();
+        channel.force(true);
+        long time = System.nanoTime() - start;
+        synchronized (CaptureJournal.class) {
+            syncs++;
+            syncNanos += time;
+            maxSyncNanos = Math.max(maxSyncNanos, time);
+        }
+    }
+
+    private static synchronized void addWrite(long bytes, long nanos) {
+        bytesWritten += bytes;
+        writeNanos += nanos;
+    }
+
+    /**
+     * File that is being written
+     */
+    public class Entry {
+        private final long id;
+        private final File target, temp, record;
+        private ChannelOutputStream output;
+        private boolean committed, finished;
+
+        private Entry(long id, File target) {
+            this.id = id;
+            this.target = target;
+            temp = getTempFile(target);
+            record = new File(directory, id + RECORD_EXTENSION);
+        }
+
+        /**
+         * Get stream to write content of a file. Stream is buffered
+         *
+         * @return Stream
+         */
+        public OutputStream getOutput() {
+            return output;
+        }
+
+        /**
+         * Get channel to write content of a file with caller's own buffer. It can be mixed with
+         * {@link #getOutput()}, bytes are written in order
+         *
+         * @return Channel
+         */
+        public WritableByteChannel getChannel() {
+            return output;
+        }
+
+        /**
+         * Sync written content and move it to the target
+         *
+         * @return Target file
+         * @throws IOException If content can't be synced or moved
+         */
+        public File commit() throws IOException {
+            output.flush();
+            sync(output.channel);
+            output.close();
+            RandomAccessFile state = new RandomAccessFile(record, "rw");
+            try {
+                state.seek(STATE_OFFSET);
+                state.writeByte(STATE_COMMITTED);
+                sync(state.getChannel());
+                committed = true;
+            } finally {
+                FileUtils.closeQuietly(state);
+            }
+            if (!temp.renameTo(target)) {
+                throw new IOException("Can't rename " + temp.getName());
+            }
+            finish(false);
+            Log.d(TAG, target.getName() + " committed: " + getMetrics());
+            return target;
+        }
+
+        /**
+         * Drop written content. Does nothing if entry is finished. If entry is committed, but its content
+         * isn't moved, content and record are kept, so the picture is finished by {@link #recover()}
+         */
+        public void abort() {
+            if (finished) {
+                return;
+            }
+            FileUtils.closeQuietly(output);
+            if (committed) {
+                Log.w(TAG, target.getName() + " is left for recovery");
+                finish(true);
+                return;
+            }
+            if (temp.exists()) {
+                FileUtils.deleteFile(temp);
+            }
+            finish(false);
+        }
+
+        /**
+         * Forget entry
+         *
+         * @param keepRecord True, if record should be left for {@link #recover()}
+         */
+        private void finish(boolean keepRecord) {
+            finished = true;
+            if (!keepRecord && record.exists()) {
+                FileUtils.deleteFile(record);
+            }
+            synchronized (active) {
+                active.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Stream that collects bytes in a direct buffer and writes it to a channel when it's full.
+     * Buffers written as a channel go to the file directly
+     */
+    private static class ChannelOutputStream extends OutputStream implements WritableByteChannel {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private boolean closed;
+
+        private ChannelOutputStream(FileChannel channel) {
+            this.channel = channel;
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int count = Math.min(len, buffer.remaining());
+                buffer.put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            long start = System.nanoTime();
+            int bytes = buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            addWrite(bytes, System.nanoTime() - start);
+            buffer.clear();
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (buffer.position() > 0) {
+                flush();
+            }
+            long start = System.nanoTime();
+            int bytes = source.remaining();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            addWrite(bytes, System.nanoTime() - start);
+            return bytes;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !closed;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package org.telegram.camera.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pipeline that processes taken pictures off the main thread. Picture passes stages:
+ * <ol>
+ *     <li>receive - bytes from camera are checked and size of a picture is read</li>
+ *     <li>decode - screen-sized preview is decoded with {@link PreviewDecoder}</li>
+ *     <li>persist - original bytes are written to a pending file in cache directory</li>
+ *     <li>notify - {@link Listener} is called on the main thread</li>
+ * </ol>
+ * Picture that is already persisted, e.g. one that was reviewed when process was killed, is read from its file
+ * by decode stage and skips persist stage.
+ * Every stage has its own thread and bounded queue. If queue of the next stage is full, the stage waits,
+ * so a slow stage stops the whole pipeline and {@link #submit(byte[], int, LatencyTracker.Trace)} starts
+ * to reject pictures. Every stage marks {@link LatencyTracker.Trace} of a picture when it's done
+ *
+ * @author Danil Kolikov
+ */
+public class CapturePipeline {
+    private static final String TAG = "CAPTURE_PIPELINE";
+    private static final int QUEUE_CAPACITY = 2;
+    private static final String PENDING_FOLDER = "captures";
+
+    /**
+     * Next stage is full, so wait until it takes the task
+     */
+    private static final RejectedExecutionHandler WAIT_POLICY = new RejectedExecutionHandler() {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Stage is shut down");
+            }
+            try {
+                executor.getQueue().put(r);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    };
+
+    private final ThreadPoolExecutor receiveStage, decodeStage, persistStage;
+    private final Handler notifyStage;
+    private final File pendingDirectory;
+    private final int previewWidth, previewHeight;
+    private final boolean lowColor;
+    private final AtomicLong ids;
+    private volatile Listener listener;
+
+    /**
+     * Create new pipeline
+     *
+     * @param context       Current context
+     * @param previewWidth  Width of a view that shows preview
+     * @param previewHeight Height of a view that shows preview
+     * @param listener      Listener of processed pictures
+     */
+    public CapturePipeline(Context context, int previewWidth, int previewHeight, Listener listener) {
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.listener = listener;
+        lowColor = PreviewDecoder.shouldUseLowColor(context);
+        pendingDirectory = new File(context.getCacheDir(), PENDING_FOLDER);
+        ids = new AtomicLong(System.currentTimeMillis());
+
+        // Camera callback mustn't wait, so the first stage rejects pictures when it's full
+        receiveStage = makeStage("receive", new ThreadPoolExecutor.AbortPolicy());
+        decodeStage = makeStage("decode", WAIT_POLICY);
+        persistStage = makeStage("persist", WAIT_POLICY);
+        notifyStage = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Remove pending files that were left after previous run of the application
+     *
+     * @param context Current context
+     */
+    public static void clearPending(Context context) {
+        File[] files = new File(context.getCacheDir(), PENDING_FOLDER).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            FileUtils.deleteFile(file);
+        }
+    }
+
+    /**
+     * Get new pending file, e.g. for an edited picture that is written by parts
+     *
+     * @param context Current context
+     * @return Pending file that doesn't exist yet or null, if directory can't be created
+     */
+    public static File createPending(Context context) {
+        File directory = new File(context.getCacheDir(), PENDING_FOLDER);
+        if (!directory.exists() && !directory.mkdirs()) {
+            return null;
+        }
+        return new File(directory, "CAP_" + System.nanoTime() + ".jpg");
+    }
+
+    /**
+     * Put taken picture to the pipeline. Can be called from the main thread, it never waits
+     *
+     * @param jpeg        Bytes of a picture
+     * @param orientation EXIF orientation of a picture
+     * @param trace       Trace of latency of a picture, it's marked after every stage
+     * @return True, if picture was accepted, False, if pipeline is full or released
+     */
+    public boolean submit(byte[] jpeg, int orientation, LatencyTracker.Trace trace) {
+        final Capture capture = new Capture(ids.incrementAndGet(), jpeg, orientation, trace);
+        try {
+            receiveStage.execute(new Runnable() {
+                @Override
+                public void run() {
+                    receive(capture);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Pipeline is full, picture " + capture.id + " is dropped");
+            return false;
+        }
+    }
+
+    /**
+     * Put persisted picture to the pipeline. Its file is read and decoded by decode stage, so it's never
+     * read on the main thread
+     *
+     * @param file        Pending file with a picture
+     * @param orientation EXIF orientation of a picture
+     * @param trace       Trace of latency of a picture, it's marked after every stage
+     * @return True, if picture was accepted, False, if pipeline is released
+     */
+    public boolean resubmit(File file, int orientation, LatencyTracker.Trace trace) {
+        final Capture capture = new Capture(ids.incrementAndGet(), null, orientation, trace);
+        capture.file = file;
+        try {
+            decodeStage.execute(new Runnable() {
+                @Override
+                public void run() {
+                    load(capture);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Picture " + capture.id + " is dropped: pipeline is released");
+            return false;
+        }
+    }
+
+    /**
+     * Stop all stages. Pictures that are processed now won't be delivered to listener
+     */
+    public void release() {
+        listener = null;
+        receiveStage.shutdownNow();
+        decodeStage.shutdownNow();
+        persistStage.shutdownNow();
+    }
+
+    /**
+     * Check picture and read its size
+     *
+     * @param capture Picture
+     */
+    private void receive(final Capture capture) {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(capture.jpeg, 0, capture.jpeg.length, bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            Log.e(TAG, "Picture " + capture.id + " isn't a JPEG");
+            notifyFailed(capture);
+            return;
+        }
+        capture.width = bounds.outWidth;
+        capture.height = bounds.outHeight;
+        execute(decodeStage, capture, new Runnable() {
+            @Override
+            public void run() {
+                decode(capture);
+            }
+        });
+    }
+
+    /**
+     * Read persisted picture and decode its preview
+     *
+     * @param capture Picture with a file
+     */
+    private void load(Capture capture) {
+        try {
+            capture.jpeg = FileUtils.readFile(capture.file);
+        } catch (IOException e) {
+            Log.e(TAG, "Can't read picture " + capture.id, e);
+            notifyFailed(capture);
+            return;
+        }
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(capture.jpeg, 0, capture.jpeg.length, bounds);
+        capture.width = bounds.outWidth;
+        capture.height = bounds.outHeight;
+        decode(capture);
+    }
+
+    /**
+     * Decode preview of a picture. Picture that is already persisted is ready after it
+     *
+     * @param capture Picture
+     */
+    private void decode(final Capture capture) {
+        capture.preview = PreviewDecoder.decode(capture.jpeg, capture.orientation, previewWidth, previewHeight,
+                lowColor);
+        if (capture.preview == null) {
+            Log.e(TAG, "Can't decode preview of " + capture.id);
+            notifyFailed(capture);
+            return;
+        }
+        capture.trace.mark("decoded");
+        if (capture.file != null) {
+            capture.jpeg = null;
+            notifyReady(capture);
+            return;
+        }
+        execute(persistStage, capture, new Runnable() {
+            @Override
+            public void run() {
+                persist(capture);
+            }
+        });
+    }
+
+    /**
+     * Write original bytes of a picture to a pending file. If it fails, capture fails, since bytes
+     * of a picture in memory would have to be parceled to survive death of the process
+     *
+     * @param capture Picture
+     */
+    private void persist(final Capture capture) {
+        File file = writePending(pendingDirectory, capture.id, capture.jpeg);
+        capture.jpeg = null;
+        if (file == null) {
+            notifyFailed(capture);
+            return;
+        }
+        capture.file = file;
+        capture.trace.mark("persisted");
+        notifyReady(capture);
+    }
+
+    /**
+     * Write bytes of a picture to a pending file
+     *
+     * @param directory Directory of pending files
+     * @param id        ID of a picture
+     * @param jpeg      Bytes of a picture
+     * @return Pending file or null, if picture can't be written
+     */
+    private static File writePending(File directory, long id, byte[] jpeg) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return null;
+        }
+        File file = new File(directory, "CAP_" + id + ".jpg");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(file);
+            output.write(jpeg);
+            output.close();
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Can't persist picture " + id, e);
+            FileUtils.closeQuietly(output);
+            FileUtils.deleteFile(file);
+            return null;
+        }
+    }
+
+    /**
+     * Pass picture to the next stage
+     *
+     * @param stage   Next stage
+     * @param capture Picture
+     * @param task    Task of the stage
+     */
+    private void execute(ThreadPoolExecutor stage, Capture capture, Runnable task) {
+        try {
+            stage.execute(task);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Picture " + capture.id + " is dropped: pipeline is released");
+        }
+    }
+
+    /**
+     * Tell listener that picture is ready
+     *
+     * @param capture Picture
+     */
+    private void notifyReady(final Capture capture) {
+        notifyStage.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = CapturePipeline.this.listener;
+                if (listener != null) {
+                    listener.onCaptureReady(capture);
+                }
+            }
+        });
+    }
+
+    /**
+     * Tell listener that picture can't be processed
+     *
+     * @param capture Picture
+     */
+    private void notifyFailed(final Capture capture) {
+        notifyStage.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = CapturePipeline.this.listener;
+                if (listener != null) {
+                    listener.onCaptureFailed(capture);
+                }
+            }
+        });
+    }
+
+    /**
+     * Make single-threaded stage with bounded queue
+     *
+     * @param name    Name of a stage
+     * @param handler Policy for the full queue
+     * @return New stage
+     */
+    private static ThreadPoolExecutor makeStage(final String name, RejectedExecutionHandler handler) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_CAPACITY), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Capture " + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, handler);
+    }
+
+    /**
+     * Picture that passes through the pipeline
+     */
+    public static class Capture {
+        private final long id;
+        private final int orientation;
+        private final LatencyTracker.Trace trace;
+        private volatile byte[] jpeg;
+        private volatile int width, height;
+        private volatile Bitmap preview;
+        private volatile File file;
+
+        private Capture(long id, byte[] jpeg, int orientation, LatencyTracker.Trace trace) {
+            this.id = id;
+            this.jpeg = jpeg;
+            this.orientation = orientation;
+            this.trace = trace;
+        }
+
+        /**
+         * Get ID of a picture
+         *
+         * @return Unique ID
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Get EXIF orientation of a picture
+         *
+         * @return EXIF orientation
+         */
+        public int getOrientation() {
+            return orientation;
+        }
+
+        /**
+         * Get width of a picture as it was taken by camera
+         *
+         * @return Width of a picture
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Get height of a picture as it was taken by camera
+         *
+         * @return Height of a picture
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * Get screen-sized oriented preview
+         *
+         * @return Preview or null, if it wasn't decoded
+         */
+        public Bitmap getPreview() {
+            return preview;
+        }
+
+        /**
+         * Get pending file with original bytes
+         *
+         * @return File, it's always set when picture is ready
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Get trace of latency of a picture
+         *
+         * @return Trace that was passed to {@link #submit(byte[], int, LatencyTracker.Trace)}
+         */
+        public LatencyTracker.Trace getTrace() {
+            return trace;
+        }
+    }
+
+    /**
+     * Listener of processed pictures. All methods are called on the main thread
+     */
+    public interface Listener {
+        /**
+         * Will be called when preview is decoded and picture is persisted
+         *
+         * @param capture Processed picture
+         */
+        void onCaptureReady(Capture capture);
+
+        /**
+         * Will be called when picture can't be processed
+         *
+         * @param capture Failed picture
+         */
+        void onCaptureFailed(Capture capture);
+    }
+}
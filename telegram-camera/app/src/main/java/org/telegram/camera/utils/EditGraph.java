@@ -0,0 +1,207 @@
+package org.telegram.camera.utils;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import org.telegram.camera.utils.image.Rotator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Deferred edits of a picture. Operations are only recorded, then they're composed into one affine
+ * transformation and size of a result, so a picture of any resolution is rendered with one resampling.
+ * Crops are kept relative to the size of an image they were made on, so the same graph renders
+ * a screen-sized preview and a full-size picture
+ *
+ * @author Danil Kolikov
+ */
+public class EditGraph {
+    private final List<Operation> operations;
+
+    /**
+     * Create graph without edits
+     */
+    public EditGraph() {
+        operations = new ArrayList<Operation>();
+    }
+
+    /**
+     * Create copy of a graph, e.g. to render it in background while the original is edited
+     *
+     * @param graph Graph to copy
+     */
+    public EditGraph(EditGraph graph) {
+        operations = new ArrayList<Operation>(graph.operations);
+    }
+
+    /**
+     * Record rotation. Rotation that follows another one is merged with it
+     *
+     * @param degrees Angle of rotation, counter-clockwise, like {@link Rotator}
+     */
+    public void rotate(float degrees) {
+        if (!operations.isEmpty() && operations.get(operations.size() - 1) instanceof Rotation) {
+            Rotation last = (Rotation) operations.remove(operations.size() - 1);
+            degrees += last.degrees;
+        }
+        if (degrees % 360 != 0) {
+            operations.add(new Rotation(degrees));
+        }
+    }
+
+    /**
+     * Record crop
+     *
+     * @param rect   Rectangle to keep
+     * @param width  Width of an image, that rectangle was selected on
+     * @param height Height of an image, that rectangle was selected on
+     */
+    public void crop(Rect rect, int width, int height) {
+        if (rect.left <= 0 && rect.top <= 0 && rect.right >= width && rect.bottom >= height) {
+            return;
+        }
+        operations.add(new Crop((float) rect.left / width, (float) rect.top / height,
+                (float) rect.right / width, (float) rect.bottom / height));
+    }
+
+    /**
+     * Get total angle of rotations
+     *
+     * @return Angle in degrees
+     */
+    public float getRotation() {
+        float degrees = 0;
+        for (Operation operation : operations) {
+            if (operation instanceof Rotation) {
+                degrees += ((Rotation) operation).degrees;
+            }
+        }
+        return degrees;
+    }
+
+    /**
+     * Check if there are no edits
+     *
+     * @return True, if picture isn't changed by the graph
+     */
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    /**
+     * Check if edits are only rotations by right angles, such picture can be transformed without loss
+     *
+     * @return True, if there are no crops and total angle is multiple of 90 degrees
+     */
+    public boolean isRightRotation() {
+        for (Operation operation : operations) {
+            if (!(operation instanceof Rotation)) {
+                return false;
+            }
+        }
+        return getRotation() % 90 == 0;
+    }
+
+    /**
+     * Remove all edits
+     */
+    public void clear() {
+        operations.clear();
+    }
+
+    /**
+     * Compose edits for a picture of specified size
+     *
+     * @param width  Width of a picture
+     * @param height Height of a picture
+     * @param matrix Matrix that is set to transformation from the picture to the result
+     * @return Size of the result: width and height
+     */
+    public float[] compose(int width, int height, Matrix matrix) {
+        float[] size = {width, height};
+        matrix.reset();
+        for (Operation operation : operations) {
+            operation.apply(matrix, size);
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "EditGraph" + operations;
+    }
+
+    /**
+     * Recorded edit
+     */
+    private static abstract class Operation {
+        /**
+         * Append operation to the transformation
+         *
+         * @param matrix Transformation from a picture to the current result
+         * @param size   Size of the current result, it's updated
+         */
+        abstract void apply(Matrix matrix, float[] size);
+    }
+
+    /**
+     * Rotation around the center, result fits whole rotated image
+     */
+    private static class Rotation extends Operation {
+        private final float degrees;
+
+        private Rotation(float degrees) {
+            this.degrees = degrees;
+        }
+
+        @Override
+        void apply(Matrix matrix, float[] size) {
+            double radians = Math.toRadians(degrees);
+            float cos = (float) Math.abs(Math.cos(radians)), sin = (float) Math.abs(Math.sin(radians));
+            if (degrees % 90 == 0) {
+                // Exact sizes for right angles
+                boolean swap = Math.round(degrees / 90) % 2 != 0;
+                cos = swap ? 0 : 1;
+                sin = swap ? 1 : 0;
+            }
+            float width = size[0] * cos + size[1] * sin;
+            float height = size[0] * sin + size[1] * cos;
+            matrix.postTranslate(-size[0] / 2, -size[1] / 2);
+            matrix.postRotate(-degrees);
+            matrix.postTranslate(width / 2, height / 2);
+            size[0] = width;
+            size[1] = height;
+        }
+
+        @Override
+        public String toString() {
+            return "rotate(" + degrees + ")";
+        }
+    }
+
+    /**
+     * Crop of a rectangle, that is kept as parts of a size of an image
+     */
+    private static class Crop extends Operation {
+        private final float left, top, right, bottom;
+
+        private Crop(float left, float top, float right, float bottom) {
+            this.left = Math.max(0, left);
+            this.top = Math.max(0, top);
+            this.right = Math.min(1, right);
+            this.bottom = Math.min(1, bottom);
+        }
+
+        @Override
+        void apply(Matrix matrix, float[] size) {
+            matrix.postTranslate(-left * size[0], -top * size[1]);
+            size[0] *= right - left;
+            size[1] *= bottom - top;
+        }
+
+        @Override
+        public String toString() {
+            return "crop(" + left + ", " + top + ", " + right + ", " + bottom + ")";
+        }
+    }
+}
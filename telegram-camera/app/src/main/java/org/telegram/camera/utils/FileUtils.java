@@ -3,12 +3,17 @@ package org.telegram.camera.utils;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Environment;
 import android.util.Log;
+import org.telegram.camera.R;
+import org.telegram.camera.utils.jpeg.ExifWriter;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
@@ -25,10 +30,6 @@ import static android.provider.MediaStore.Files.FileColumns.MEDIA_TYPE_VIDEO;
  * @author Gleb Zernov
  */
 public class FileUtils {
-    /**
-     * Current qualities of pictures. It's a value from 0 to 100
-     */
-    private final static int PICTURE_QUALITY = 90;
     /**
      * Folder to save photos and videos
      */
@@ -51,21 +52,32 @@ public class FileUtils {
      * @param type Type of a file
      */
     public static File getOutputMediaFile(int type) {
+        return getOutputMediaFile(type, 0);
+    }
+
+    /**
+     * Create a File for saving an image or video, that is one of a series taken in the same second
+     *
+     * @param type     Type of a file
+     * @param sequence Number of a file in series, 0 if file isn't a part of series
+     */
+    public static File getOutputMediaFile(int type, int sequence) {
 
         File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
                 Environment.DIRECTORY_DCIM), FOLDER);
 
-        return makeOutputFile(type, mediaStorageDir);
+        return makeOutputFile(type, sequence, mediaStorageDir);
     }
 
     /**
      * Create output file
      *
      * @param type      Type of file
+     * @param sequence  Number of a file in series, 0 if file isn't a part of series
      * @param directory Directory to place file
      * @return New file
      */
-    private static File makeOutputFile(int type, File directory) {
+    private static File makeOutputFile(int type, int sequence, File directory) {
         // Create the storage directory if it does not exist
         if (!directory.exists()) {
             if (!directory.mkdirs()) {
@@ -77,6 +89,9 @@ public class FileUtils {
         // Create a media file name
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault())
                 .format(Calendar.getInstance().getTime());
+        if (sequence > 0) {
+            timeStamp += "_" + sequence;
+        }
         File mediaFile;
         if (type == MEDIA_TYPE_IMAGE) {
             mediaFile = new File(directory, "IMG_" + timeStamp + ".jpg");
@@ -111,65 +126,133 @@ public class FileUtils {
     }
 
     /**
-     * Transform array of byte into bitmap
+     * Transform bitmap to the normal view. Source bitmap is returned to {@link BitmapPool}
      *
-     * @param data         Bytes
-     * @param screenWidth  Width of picture
-     * @param screenHeight Height of picture
-     * @param rotation     Rotation of the screen
-     * @param front        Is photo captured by front camera
-     * @return Constructed bitmap
-     */
-    public static Bitmap getPicture(byte[] data, int screenWidth, int screenHeight, int rotation, boolean front) {
-        Bitmap result = null;
-        //image rotation
-        Log.d(TAG, "width " + screenWidth + " height " + screenHeight);
-        if (data != null) {
-            Bitmap bm = BitmapFactory.decodeByteArray(data, 0, data.length);
-            Log.d(TAG, "rotation " + rotation);
-            if (!front) {
-                if (rotation != 90) {
-                    return bm;
-                }
-                Matrix mtx = new Matrix();
-                mtx.postRotate(90);
-                return Bitmap.createBitmap(bm, 0, 0, screenWidth, screenHeight, mtx, true);
-            }
-            Log.d(TAG, "rotation " + rotation);
-            Matrix mtx = new Matrix();
-            mtx.postScale(-1, 1);
-            // Setting post rotate to 90 due to portrait orientation
-            mtx.postRotate(90);
-            bm = Bitmap.createBitmap(bm, 0, 0, screenWidth, screenHeight, mtx, true);
-            result = bm;
+     * @param bm          Bitmap as it was taken by camera
+     * @param orientation EXIF orientation of a picture
+     * @return Transformed bitmap
+     */
+    static Bitmap applyOrientation(Bitmap bm, int orientation) {
+        if (bm == null || orientation == ExifWriter.ORIENTATION_NORMAL) {
+            return bm;
         }
+        Bitmap result = transform(bm, getOrientationMatrix(orientation), bm.getConfig());
+        BitmapPool.getDefault().put(bm);
+        return result;
+    }
 
+    /**
+     * Draw transformed bitmap to a bitmap from {@link BitmapPool}, that fits whole result
+     *
+     * @param bitmap Source bitmap
+     * @param matrix Transformation
+     * @param config Config of result, ARGB_8888 is used if it's null
+     * @return Transformed bitmap
+     */
+    private static Bitmap transform(Bitmap bitmap, Matrix matrix, Bitmap.Config config) {
+        RectF bounds = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.mapRect(bounds);
+        matrix.postTranslate(-bounds.left, -bounds.top);
+        if (config == null) {
+            config = Bitmap.Config.ARGB_8888;
+        }
+        Bitmap result = BitmapPool.getDefault().get(Math.round(bounds.width()), Math.round(bounds.height()), config);
+        new Canvas(result).drawBitmap(bitmap, matrix, null);
         return result;
     }
 
     /**
-     * Change quality of a bitmap
+     * Read whole file to memory
      *
-     * @param bitmap A Bitmap
-     * @return Compressed Bitmap
+     * @param file A file
+     * @return Content of a file
+     * @throws IOException If file can't be read
      */
-    public static byte[] compress(Bitmap bitmap) {
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, PICTURE_QUALITY, stream);
-        return stream.toByteArray();
+    public static byte[] readFile(File file) throws IOException {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("File " + file.getName() + " is too big");
+        }
+        byte[] data = new byte[(int) length];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int read = input.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new EOFException("File " + file.getName() + " is truncated");
+                }
+                offset += read;
+            }
+        } finally {
+            closeQuietly(input);
+        }
+        return data;
     }
 
     /**
-     * Rotate image to specified angle
+     * Make matrix that transforms picture with specified EXIF orientation to its normal view
      *
-     * @param bitmap Bitmap to rotate
-     * @param angle  Angle
-     * @return Rotated bitmap
+     * @param orientation EXIF orientation of a picture
+     * @return New Matrix
      */
-    public static Bitmap rotate(Bitmap bitmap, float angle) {
+    public static Matrix getOrientationMatrix(int orientation) {
         Matrix mtx = new Matrix();
-        mtx.postRotate(-angle);
-        return Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), mtx, true);
+        switch (orientation) {
+            case ExifWriter.ORIENTATION_FLIP_HORIZONTAL:
+                mtx.postScale(-1, 1);
+                break;
+            case ExifWriter.ORIENTATION_ROTATE_180:
+                mtx.postRotate(180);
+                break;
+            case ExifWriter.ORIENTATION_FLIP_VERTICAL:
+                mtx.postScale(1, -1);
+                break;
+            case ExifWriter.ORIENTATION_TRANSPOSE:
+                mtx.postScale(-1, 1);
+                mtx.postRotate(270);
+                break;
+            case ExifWriter.ORIENTATION_ROTATE_90:
+                mtx.postRotate(90);
+                break;
+            case ExifWriter.ORIENTATION_TRANSVERSE:
+                mtx.postScale(-1, 1);
+                mtx.postRotate(90);
+                break;
+            case ExifWriter.ORIENTATION_ROTATE_270:
+                mtx.postRotate(270);
+                break;
+            default:
+                break;
+        }
+        return mtx;
+    }
+
+    /**
+     * Get encoder of bitmaps with the budget of bits per pixel from resources
+     *
+     * @param context Current context
+     * @return Encoder
+     */
+    public static AdaptiveJpegEncoder getJpegEncoder(Context context) {
+        return AdaptiveJpegEncoder.forBitsPerPixel(
+                context.getResources().getFraction(R.fraction.jpeg_bits_per_pixel, 1, 1));
+    }
+
+    /**
+     * Scale bitmap to specified size with bilinear filter. Result is taken from {@link BitmapPool}
+     *
+     * @param bitmap Bitmap to scale
+     * @param width  Width of result
+     * @param height Height of result
+     * @return Scaled bitmap
+     */
+    public static Bitmap scale(Bitmap bitmap, int width, int height) {
+        Bitmap.Config config = bitmap.getConfig() == null ? Bitmap.Config.ARGB_8888 : bitmap.getConfig();
+        Bitmap result = BitmapPool.getDefault().get(width, height, config);
+        new Canvas(result).drawBitmap(bitmap, null, new Rect(0, 0, width, height),
+                new Paint(Paint.FILTER_BITMAP_FLAG));
+        return result;
     }
 
     /**
@@ -178,7 +261,7 @@ public class FileUtils {
      *
      * @param c A Closeable
      */
-    private static void closeQuietly(Closeable c) {
+    static void closeQuietly(Closeable c) {
         if (c == null) {
             return;
         }
@@ -202,14 +285,25 @@ public class FileUtils {
     }
 
     /**
-     * Save file to external storage
+     * Save file to external storage. Picture is saved from original bytes of camera with EXIF orientation.
+     * Share-sized variant and thumbnail are saved with it by {@link MultiResolutionSaver}
      */
     public static class SaveFileTask extends AsyncTask<Object, Object, File> {
         private final Context context;
-        private Bitmap bitmap;
+        private final File source;
+        private final int orientation;
 
-        public SaveFileTask(Context context, Bitmap bitmap) {
-            this.bitmap = bitmap;
+        /**
+         * Create task that saves picture from pending file. Pending file is deleted when picture is saved
+         *
+         * @param context     Current context
+         * @param source      Pending file with original bytes of a picture
+         * @param orientation EXIF orientation of a picture
+         * @see CapturePipeline
+         */
+        public SaveFileTask(Context context, File source, int orientation) {
+            this.source = source;
+            this.orientation = orientation;
             this.context = context;
         }
 
@@ -224,15 +318,14 @@ public class FileUtils {
 
         @Override
         protected File doInBackground(Object... params) {
-            FileOutputStream output = null;
             try {
                 File pictureFile = FileUtils.getOutputMediaFile(MEDIA_TYPE_IMAGE);
                 if (pictureFile == null) {
                     Log.d(TAG, "Error creating media file");
                     return null;
                 }
-                output = new FileOutputStream(pictureFile);
-                bitmap.compress(Bitmap.CompressFormat.JPEG, PICTURE_QUALITY, output);
+                new MultiResolutionSaver(context).save(readFile(source), orientation, pictureFile);
+                deleteFile(source);
 //                ContentValues values = new ContentValues();
 //
 //                values.put(MediaStore.Images.Media.DATE_TAKEN, System.currentTimeMillis());
@@ -243,8 +336,9 @@ public class FileUtils {
             } catch (FileNotFoundException e) {
                 Log.d(TAG, "File not found: " + e.getMessage());
                 return null;
-            } finally {
-                FileUtils.closeQuietly(output);
+            } catch (IOException e) {
+                Log.e(TAG, "Can't save picture", e);
+                return null;
             }
         }
     }
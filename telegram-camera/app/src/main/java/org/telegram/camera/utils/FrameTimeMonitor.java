@@ -0,0 +1,124 @@
+package org.telegram.camera.utils;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Monitor of time between frames, e.g. while user drags something. Times are taken from
+ * {@link Choreographer}, so they show when frames were really drawn. Frame that took longer than
+ * the vsync budget is counted as janky. Monitor doesn't allocate memory per frame
+ *
+ * @author Danil Kolikov
+ */
+public class FrameTimeMonitor implements Choreographer.FrameCallback {
+    private static final String TAG = "FRAME_TIME";
+    /**
+     * Frame is janky if it took longer than budget multiplied by this factor, small
+     * deviations of vsync aren't counted
+     */
+    private static final float JANK_FACTOR = 1.5f;
+
+    private final String name;
+    private final long budgetNanos;
+    private boolean running;
+    private long lastFrame;
+    private int frames, janky;
+    private long totalNanos, maxNanos;
+
+    /**
+     * Create monitor
+     *
+     * @param name        Name of monitored action for logs
+     * @param refreshRate Refresh rate of a display in frames per second
+     */
+    public FrameTimeMonitor(String name, float refreshRate) {
+        this.name = name;
+        budgetNanos = (long) (1e9 / (refreshRate > 0 ? refreshRate : 60));
+    }
+
+    /**
+     * Start to measure frames. Must be called on the main thread
+     */
+    public void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        lastFrame = 0;
+        frames = janky = 0;
+        totalNanos = maxNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Stop to measure frames and log results. Must be called on the main thread
+     */
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+        Log.d(TAG, toString());
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!running) {
+            return;
+        }
+        if (lastFrame != 0) {
+            long time = frameTimeNanos - lastFrame;
+            frames++;
+            totalNanos += time;
+            maxNanos = Math.max(maxNanos, time);
+            if (time > budgetNanos * JANK_FACTOR) {
+                janky++;
+            }
+        }
+        lastFrame = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Get number of measured frames
+     *
+     * @return Number of frames
+     */
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Get number of frames that didn't fit to the vsync budget
+     *
+     * @return Number of janky frames
+     */
+    public int getJankyCount() {
+        return janky;
+    }
+
+    /**
+     * Get average time of a frame
+     *
+     * @return Time in milliseconds
+     */
+    public double getAverageMillis() {
+        return frames == 0 ? 0 : totalNanos / 1e6 / frames;
+    }
+
+    /**
+     * Get maximal time of a frame
+     *
+     * @return Time in milliseconds
+     */
+    public double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d frames, average %.2f ms, max %.2f ms, %d over budget of %.2f ms",
+                name, frames, getAverageMillis(), getMaxMillis(), janky, budgetNanos / 1e6);
+    }
+}
@@ -0,0 +1,269 @@
+package org.telegram.camera.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of images shared between fragments. Fragments pass small IDs of images instead of parceling
+ * bitmaps. Every image has a counter of references, image is dropped when the last reference is released.
+ * When state is saved, pixels are spilled to a file in cache directory, so an image can be restored
+ * after the process was killed
+ *
+ * @author Danil Kolikov
+ */
+public class ImageRegistry {
+    /**
+     * ID that doesn't belong to any image
+     */
+    public static final long NO_IMAGE = 0;
+
+    private static final String TAG = "IMAGE_REGISTRY";
+    private static final String SPILL_FOLDER = "images";
+    /**
+     * Header of a spill file: width, height and ordinal of config
+     */
+    private static final int HEADER_SIZE = 3 * 4;
+
+    private static ImageRegistry instance;
+
+    private final File spillDirectory;
+    private final Map<Long, Entry> entries;
+    private final AtomicLong ids;
+
+    private ImageRegistry(Context context) {
+        spillDirectory = new File(context.getCacheDir(), SPILL_FOLDER);
+        entries = new HashMap<Long, Entry>();
+        // IDs must not repeat after the process is restarted, because spilled images are found by them
+        ids = new AtomicLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Get registry of the application
+     *
+     * @param context Current context
+     * @return Registry
+     */
+    public static synchronized ImageRegistry getInstance(Context context) {
+        if (instance == null) {
+            instance = new ImageRegistry(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Remove images that were spilled by previous run of the application
+     *
+     * @param context Current context
+     */
+    public static void clearSpilled(Context context) {
+        File[] files = new File(context.getCacheDir(), SPILL_FOLDER).listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            FileUtils.deleteFile(file);
+        }
+    }
+
+    /**
+     * Put image to the registry. Caller owns one reference to it
+     *
+     * @param bitmap Image
+     * @return ID of an image, or {@link #NO_IMAGE}, if bitmap is null
+     */
+    public synchronized long register(Bitmap bitmap) {
+        if (bitmap == null) {
+            return NO_IMAGE;
+        }
+        long id = ids.incrementAndGet();
+        entries.put(id, new Entry(bitmap, false));
+        return id;
+    }
+
+    /**
+     * Get image by ID
+     *
+     * @param id ID of an image
+     * @return Image or null, if there is no such image
+     */
+    public synchronized Bitmap get(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.bitmap == null) {
+            entry.bitmap = restore(id);
+        }
+        return entry.bitmap;
+    }
+
+    /**
+     * Spill image and drop its pixels from the heap, e.g. when application goes to background.
+     * Image is restored by next {@link #get(long)}. If image can't be spilled, it stays in memory
+     *
+     * @param id ID of an image
+     */
+    public synchronized void evict(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null || entry.bitmap == null) {
+            return;
+        }
+        spill(id);
+        if (getSpillFile(id).exists()) {
+            entry.bitmap = null;
+        }
+    }
+
+    /**
+     * Take one more reference to an image
+     *
+     * @param id ID of an image
+     * @return The same ID
+     */
+    public synchronized long acquire(long id) {
+        Entry entry = entries.get(id);
+        if (entry != null) {
+            entry.references++;
+        }
+        return id;
+    }
+
+    /**
+     * Release reference to an image. When the last reference is released, image is dropped and its
+     * spill file is deleted. Image isn't recycled, because it can still be used by a view or a saving task
+     *
+     * @param id ID of an image
+     */
+    public synchronized void release(long id) {
+        Entry entry = entries.get(id);
+        if (entry == null || --entry.references > 0) {
+            return;
+        }
+        entries.remove(id);
+        File file = getSpillFile(id);
+        if (file.exists()) {
+            FileUtils.deleteFile(file);
+        }
+    }
+
+    /**
+     * Write pixels of an image to a file, so it can be restored with {@link #reattach(long)}
+     * after the process was killed. Image is written only once
+     *
+     * @param id ID of an image
+     */
+    public synchronized void spill(long id) {
+        Entry entry = entries.get(id);
+        File file = getSpillFile(id);
+        if (entry == null || entry.bitmap == null || entry.bitmap.getConfig() == null || file.exists()
+                || !(spillDirectory.exists() || spillDirectory.mkdirs())) {
+            return;
+        }
+        Bitmap bitmap = entry.bitmap;
+        long start = System.currentTimeMillis();
+        RandomAccessFile output = null;
+        try {
+            output = new RandomAccessFile(file, "rw");
+            // Pixels are copied straight to the mapped file, without copy on the heap
+            MappedByteBuffer buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_SIZE + (long) bitmap.getRowBytes() * bitmap.getHeight());
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(bitmap.getWidth());
+            buffer.putInt(bitmap.getHeight());
+            buffer.putInt(bitmap.getConfig().ordinal());
+            bitmap.copyPixelsToBuffer(buffer);
+            buffer.force();
+            output.close();
+            output = null;
+            Log.d(TAG, "image " + id + " spilled in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException e) {
+            Log.e(TAG, "Can't spill image " + id, e);
+            FileUtils.closeQuietly(output);
+            FileUtils.deleteFile(file);
+        }
+    }
+
+    /**
+     * Attach owner that saved ID in its state to an image. If process was restarted, image is
+     * restored from a spill file and owner takes a reference to it. Otherwise owner still has its
+     * reference, so nothing is done
+     *
+     * @param id ID of an image
+     * @return True, if image is available, False, if it's lost
+     */
+    public synchronized boolean reattach(long id) {
+        Entry entry = entries.get(id);
+        if (entry != null) {
+            if (entry.restored) {
+                entry.references++;
+            }
+            return true;
+        }
+        Bitmap bitmap = restore(id);
+        if (bitmap == null) {
+            return false;
+        }
+        entries.put(id, new Entry(bitmap, true));
+        return true;
+    }
+
+    /**
+     * Read image from a spill file
+     *
+     * @param id ID of an image
+     * @return Image or null, if it can't be read
+     */
+    private Bitmap restore(long id) {
+        File file = getSpillFile(id);
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            buffer.order(ByteOrder.nativeOrder());
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int config = buffer.getInt();
+            Bitmap bitmap = BitmapPool.getDefault().get(width, height, Bitmap.Config.values()[config]);
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Can't restore image " + id, e);
+            return null;
+        } finally {
+            FileUtils.closeQuietly(input);
+        }
+    }
+
+    private File getSpillFile(long id) {
+        return new File(spillDirectory, "IMG_" + id + ".pixels");
+    }
+
+    /**
+     * Image and counter of references to it
+     */
+    private static class Entry {
+        private Bitmap bitmap;
+        private final boolean restored;
+        private int references;
+
+        private Entry(Bitmap bitmap, boolean restored) {
+            this.bitmap = bitmap;
+            this.restored = restored;
+            references = 1;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package org.telegram.camera.utils;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracker of latencies of user-visible actions, e.g. from press of a button to the shown picture.
+ * Action is a {@link Trace}: it's started with a monotonic timestamp and marked at every stage,
+ * time from the start to every stage is added to an in-memory {@link Histogram} of this stage.
+ * Trace can be passed between threads, stages are marked where they really happen
+ *
+ * @author Danil Kolikov
+ */
+public class LatencyTracker {
+    private static final String TAG = "LATENCY";
+    /**
+     * From press of a button to the shown fragment with a picture
+     */
+    public static final String PICTURE = "picture";
+    /**
+     * From press of stop to the shown fragment with a video
+     */
+    public static final String VIDEO = "video";
+    /**
+     * From request of a camera to the opened one
+     */
+    public static final String CAMERA_OPEN = "camera open";
+    /**
+     * From request to record to the started recorder
+     */
+    public static final String RECORDER_START = "recorder start";
+    /**
+     * From creation of an activity in a new process to the first preview frame
+     */
+    public static final String STARTUP_COLD = "startup cold";
+    /**
+     * From creation or resume of an activity in a running process to the first preview frame
+     */
+    public static final String STARTUP_WARM = "startup warm";
+    /**
+     * From creation of an activity to the shown fragment with a picture that was reviewed when process
+     * was killed
+     */
+    public static final String REVIEW_RECOVERY = "review recovery";
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+
+    private static final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+
+    /**
+     * Start new trace of an action. Start of a trace is the current time
+     *
+     * @param name Name of an action
+     * @return New trace
+     */
+    public static Trace start(String name) {
+        return new Trace(name, System.nanoTime());
+    }
+
+    /**
+     * Add latency of a stage
+     *
+     * @param name  Name of a stage
+     * @param nanos Latency in nanoseconds
+     */
+    public static synchronized void record(String name, long nanos) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms.put(name, histogram);
+        }
+        histogram.add(nanos);
+    }
+
+    /**
+     * Get histogram of a stage
+     *
+     * @param name Name of a stage, e.g. "picture: shutter"
+     * @return Copy of a histogram or null, if stage wasn't recorded
+     */
+    public static synchronized Histogram getHistogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram == null ? null : new Histogram(histogram);
+    }
+
+    /**
+     * Get metrics for logs, one line per stage in order they were recorded first
+     *
+     * @return Description of metrics
+     */
+    public static synchronized String getMetrics() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(entry.getKey()).append(": ").append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Forget all recorded latencies
+     */
+    public static synchronized void reset() {
+        histograms.clear();
+    }
+
+    /**
+     * Latencies of one action
+     */
+    public static class Trace {
+        private final String name;
+        private final long start;
+        private final StringBuilder stages;
+
+        private Trace(String name, long start) {
+            this.name = name;
+            this.start = start;
+            stages = new StringBuilder(name);
+        }
+
+        /**
+         * Mark that a stage is passed now
+         *
+         * @param stage Name of a stage
+         */
+        public synchronized void mark(String stage) {
+            long time = System.nanoTime() - start;
+            record(name + ": " + stage, time);
+            stages.append(stages.length() == name.length() ? ": " : ", ")
+                    .append(stage).append(' ').append(time / 1000000).append(" ms");
+        }
+
+        /**
+         * Mark the last stage and log all stages of a trace
+         *
+         * @param stage Name of a stage
+         */
+        public synchronized void finish(String stage) {
+            mark(stage);
+            Log.d(TAG, stages.toString());
+        }
+    }
+
+    /**
+     * Histogram of latencies with buckets of logarithmic size, like in HdrHistogram. Latencies are kept
+     * in microseconds, every power of two is split into {@link #SUB_BUCKETS} linear buckets, so
+     * relative error of percentiles is less than 1/{@link #SUB_BUCKETS} for any latency,
+     * and histogram takes fixed memory
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKETS = 32;
+        private static final int SUB_BUCKET_BITS = 5;
+        /**
+         * Latencies above 2^36 microseconds (about 19 hours) are counted in the last bucket
+         */
+        private static final int MAX_SHIFT = 31;
+
+        private final long[] counts;
+        private long count, total, max;
+
+        private Histogram() {
+            counts = new long[2 * SUB_BUCKETS + MAX_SHIFT * SUB_BUCKETS];
+        }
+
+        private Histogram(Histogram other) {
+            counts = other.counts.clone();
+            count = other.count;
+            total = other.total;
+            max = other.max;
+        }
+
+        private void add(long nanos) {
+            long micros = Math.max(0, nanos / 1000);
+            counts[getIndex(micros)]++;
+            count++;
+            total += micros;
+            max = Math.max(max, micros);
+        }
+
+        /**
+         * Get number of latencies
+         *
+         * @return Number of latencies
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Get average latency
+         *
+         * @return Latency in milliseconds
+         */
+        public double getAverageMillis() {
+            return count == 0 ? 0 : total / 1e3 / count;
+        }
+
+        /**
+         * Get maximal latency
+         *
+         * @return Latency in milliseconds
+         */
+        public double getMaxMillis() {
+            return max / 1e3;
+        }
+
+        /**
+         * Get latency that isn't exceeded by given part of latencies
+         *
+         * @param percentile Part of latencies, e.g. 0.99
+         * @return Upper bound of a bucket with this latency in milliseconds, but not more than maximum
+         */
+        public double getPercentileMillis(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(percentile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(getUpperBound(i), max) / 1e3;
+                }
+            }
+            return getMaxMillis();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(count).append(" times");
+            for (double percentile : PERCENTILES) {
+                builder.append(String.format(", p%d %.1f ms", Math.round(percentile * 100),
+                        getPercentileMillis(percentile)));
+            }
+            return builder.append(String.format(", max %.1f ms", getMaxMillis())).toString();
+        }
+
+        /**
+         * Get bucket of a latency. Latencies below 2 * {@link #SUB_BUCKETS} have own buckets, bigger ones
+         * share bucket with latencies that have the same {@link #SUB_BUCKET_BITS} + 1 highest bits
+         */
+        private static int getIndex(long micros) {
+            if (micros < 2 * SUB_BUCKETS) {
+                return (int) micros;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+            if (shift > MAX_SHIFT) {
+                return 2 * SUB_BUCKETS + MAX_SHIFT * SUB_BUCKETS - 1;
+            }
+            int top = (int) (micros >> shift);
+            return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + top - SUB_BUCKETS;
+        }
+
+        private static long getUpperBound(int index) {
+            if (index < 2 * SUB_BUCKETS) {
+                return index;
+            }
+            int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+            long top = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((top + 1) << shift) - 1;
+        }
+    }
+}
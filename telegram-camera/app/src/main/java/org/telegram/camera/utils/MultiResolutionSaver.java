@@ -0,0 +1,294 @@
+package org.telegram.camera.utils;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+import org.telegram.camera.R;
+import org.telegram.camera.utils.jpeg.ExifWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Saver of a picture in several resolutions: full picture, share-sized variant and thumbnail.
+ * Picture is decoded once, variants are downscaled in cascade: share variant from the source,
+ * thumbnail from share variant. Every output is written through {@link CaptureJournal} by a small pool
+ * of writers, so full picture is written while variants are downscaled
+ *
+ * @author Danil Kolikov
+ */
+public class MultiResolutionSaver {
+    private static final String TAG = "MULTI_RESOLUTION";
+    private static final String SHARE_FOLDER = "share";
+    private static final String THUMBNAIL_FOLDER = "thumbnails";
+    private static final int WRITERS = 2;
+    /**
+     * Variants are small, so they are encoded with fixed quality without search
+     */
+    private static final int SHARE_QUALITY = 87;
+    private static final int THUMBNAIL_QUALITY = 80;
+
+    private static ExecutorService writers;
+
+    private final Context context;
+    private final CaptureJournal journal;
+    private final int shareSize, thumbnailSize;
+
+    /**
+     * Create saver with sizes of variants from resources
+     *
+     * @param context Current context
+     */
+    public MultiResolutionSaver(Context context) {
+        this.context = context;
+        journal = new CaptureJournal(context);
+        shareSize = context.getResources().getInteger(R.integer.share_long_side);
+        thumbnailSize = context.getResources().getInteger(R.integer.thumbnail_long_side);
+    }
+
+    /**
+     * Save picture. Full picture is written from original bytes, variants are downscaled from one
+     * sampled decoding of them
+     *
+     * @param jpeg        Original bytes of a picture
+     * @param orientation EXIF orientation of a picture
+     * @param file        File for full picture
+     * @return Saved files
+     * @throws IOException If full picture can't be written
+     */
+    public Result save(final byte[] jpeg, final int orientation, final File file) throws IOException {
+        long start = System.currentTimeMillis();
+        ExecutorService writers = getWriters();
+        Future<File> full = writers.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                CaptureJournal.Entry entry = journal.begin(file);
+                try {
+                    ExifWriter.write(jpeg, orientation, entry.getOutput());
+                    return entry.commit();
+                } finally {
+                    entry.abort();
+                }
+            }
+        });
+
+        Future<File> share = null, thumbnail = null;
+        Bitmap source = decodeSource(jpeg, orientation);
+        if (source != null) {
+            Bitmap shareBitmap = downscale(source, shareSize);
+            if (shareBitmap != source) {
+                BitmapPool.getDefault().put(source);
+            }
+            // Thumbnail is made before share variant is written, because writer gives it back to the pool
+            Bitmap thumbnailBitmap = downscale(shareBitmap, thumbnailSize);
+            share = writeVariant(writers, shareBitmap, SHARE_QUALITY,
+                    getVariantFile(context, file, SHARE_FOLDER), true);
+            thumbnail = writeVariant(writers, thumbnailBitmap, THUMBNAIL_QUALITY,
+                    getVariantFile(context, file, THUMBNAIL_FOLDER), thumbnailBitmap != shareBitmap);
+        } else {
+            Log.w(TAG, "Can't decode picture for variants");
+        }
+
+        Result result = new Result(await(full, true), await(share, false), await(thumbnail, false));
+        Log.d(TAG, "saved " + result + " in " + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    /**
+     * Get file of a variant of a saved picture
+     *
+     * @param context Current context
+     * @param picture Saved full picture
+     * @param folder  Folder of variants
+     * @return File with the same name in the folder of variants
+     */
+    private static File getVariantFile(Context context, File picture, String folder) {
+        File directory = context.getExternalFilesDir(folder);
+        if (directory == null) {
+            directory = new File(context.getCacheDir(), folder);
+        }
+        if (!directory.exists() && !directory.mkdirs()) {
+            return null;
+        }
+        return new File(directory, picture.getName());
+    }
+
+    /**
+     * Decode original bytes with the largest sample size that keeps picture not smaller than share variant
+     *
+     * @param jpeg        Original bytes of a picture
+     * @param orientation EXIF orientation of a picture
+     * @return Oriented bitmap or null, if it can't be decoded
+     */
+    private Bitmap decodeSource(byte[] jpeg, int orientation) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        int longSide = Math.max(options.outWidth, options.outHeight);
+        if (longSide <= 0) {
+            return null;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (longSide / (options.inSampleSize * 2) >= shareSize) {
+            options.inSampleSize *= 2;
+        }
+        return FileUtils.applyOrientation(BitmapPool.getDefault().decode(jpeg, options), orientation);
+    }
+
+    /**
+     * Downscale bitmap, so its long side fits to size. Bitmap is halved while it's twice bigger than
+     * required, so every step of filtering uses all source pixels
+     *
+     * @param bitmap   Source bitmap, it isn't changed
+     * @param longSide Maximal long side of result
+     * @return Downscaled bitmap from {@link BitmapPool} or source, if it's small enough
+     */
+    private static Bitmap downscale(Bitmap bitmap, int longSide) {
+        Bitmap result = bitmap;
+        while (Math.max(result.getWidth(), result.getHeight()) > longSide) {
+            int width = result.getWidth(), height = result.getHeight();
+            float factor = Math.max(0.5f, (float) longSide / Math.max(width, height));
+            Bitmap scaled = FileUtils.scale(result, Math.max(1, Math.round(width * factor)),
+                    Math.max(1, Math.round(height * factor)));
+            if (result != bitmap) {
+                BitmapPool.getDefault().put(result);
+            }
+            result = scaled;
+        }
+        return result;
+    }
+
+    /**
+     * Write variant by a writer
+     *
+     * @param writers Pool of writers
+     * @param bitmap  Variant
+     * @param quality Quality of JPEG
+     * @param file    File for variant, can be null
+     * @param owned   True, if variant should be given back to {@link BitmapPool} when it's written
+     * @return Future with written file
+     */
+    private Future<File> writeVariant(ExecutorService writers, final Bitmap bitmap, final int quality,
+                                      final File file, final boolean owned) {
+        return writers.submit(new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                CaptureJournal.Entry entry = null;
+                try {
+                    if (file == null) {
+                        throw new IOException("Can't create folder for variant");
+                    }
+                    entry = journal.begin(file);
+                    if (!bitmap.compress(Bitmap.CompressFormat.JPEG, quality, entry.getOutput())) {
+                        throw new IOException("Can't encode " + file.getName());
+                    }
+                    return entry.commit();
+                } finally {
+                    if (entry != null) {
+                        entry.abort();
+                    }
+                    if (owned) {
+                        BitmapPool.getDefault().put(bitmap);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for the output
+     *
+     * @param future   Future of the output, can be null
+     * @param required True, if failure of output must be thrown
+     * @return Written file or null, if optional output failed
+     * @throws IOException If required output failed
+     */
+    private static File await(Future<File> future, boolean required) throws IOException {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while saving", e);
+        } catch (ExecutionException e) {
+            if (required) {
+                throw e.getCause() instanceof IOException
+                        ? (IOException) e.getCause() : new IOException("Can't save picture", e.getCause());
+            }
+            Log.w(TAG, "Can't save variant", e.getCause());
+            return null;
+        }
+    }
+
+    private static synchronized ExecutorService getWriters() {
+        if (writers == null) {
+            writers = Executors.newFixedThreadPool(WRITERS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "MultiResolutionSaver #" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return writers;
+    }
+
+    /**
+     * Files that were saved
+     */
+    public static class Result {
+        private final File picture, share, thumbnail;
+
+        private Result(File picture, File share, File thumbnail) {
+            this.picture = picture;
+            this.share = share;
+            this.thumbnail = thumbnail;
+        }
+
+        /**
+         * Get full picture
+         *
+         * @return File of full picture
+         */
+        public File getPicture() {
+            return picture;
+        }
+
+        /**
+         * Get share-sized variant
+         *
+         * @return File or null, if variant wasn't saved
+         */
+        public File getShare() {
+            return share;
+        }
+
+        /**
+         * Get thumbnail
+         *
+         * @return File or null, if thumbnail wasn't saved
+         */
+        public File getThumbnail() {
+            return thumbnail;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{picture=" + picture + ", share=" + share + ", thumbnail=" + thumbnail + "}";
+        }
+    }
+}
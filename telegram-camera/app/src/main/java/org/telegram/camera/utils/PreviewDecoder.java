@@ -0,0 +1,242 @@
+package org.telegram.camera.utils;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+import org.telegram.camera.utils.jpeg.ExifWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decoder of screen-sized previews of taken pictures. Picture is decoded with sample size chosen from
+ * size of a view, horizontal bands of a picture are decoded in parallel
+ *
+ * @author Danil Kolikov
+ */
+public class PreviewDecoder {
+    private static final String TAG = "PREVIEW_DECODER";
+    /**
+     * Maximal number of bands decoded in parallel
+     */
+    private static final int MAX_TILES = 4;
+    /**
+     * Height of a band is a multiple of this value (multiplied by sample size), so bands are aligned to MCU rows
+     */
+    private static final int TILE_ALIGNMENT = 16;
+    /**
+     * Devices with smaller heap use RGB_565 previews
+     */
+    private static final int LOW_MEMORY_CLASS = 64;
+
+    private static ExecutorService workers;
+
+    /**
+     * Check if preview should be decoded with {@link Bitmap.Config#RGB_565} to save memory
+     *
+     * @param context Current context
+     * @return True, if device has small heap, False otherwise
+     */
+    public static boolean shouldUseLowColor(Context context) {
+        ActivityManager manager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        return manager != null && manager.getMemoryClass() <= LOW_MEMORY_CLASS;
+    }
+
+    /**
+     * Decode picture to bitmap that is not much bigger than specified size and apply orientation to it
+     *
+     * @param jpeg         Bytes of a picture
+     * @param orientation  EXIF orientation of a picture
+     * @param targetWidth  Width of a view that will show picture
+     * @param targetHeight Height of a view that will show picture
+     * @param lowColor     True, if {@link Bitmap.Config#RGB_565} should be used
+     * @return Decoded bitmap or null, if picture can't be decoded
+     */
+    public static Bitmap decode(byte[] jpeg, int orientation, int targetWidth, int targetHeight, boolean lowColor) {
+        if (jpeg == null) {
+            return null;
+        }
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds);
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        if (ExifWriter.isTransposed(orientation)) {
+            int t = targetWidth;
+            targetWidth = targetHeight;
+            targetHeight = t;
+        }
+        int sampleSize = calculateSampleSize(width, height, targetWidth, targetHeight);
+        Bitmap.Config config = lowColor ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        Log.d(TAG, "decode " + width + "x" + height + " with sample size " + sampleSize);
+
+        List<Bitmap> tiles = decodeTiles(jpeg, width, height, sampleSize, config);
+        if (tiles == null) {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = config;
+            Bitmap bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+            if (bitmap == null) {
+                return null;
+            }
+            tiles = new ArrayList<Bitmap>();
+            tiles.add(bitmap);
+        }
+        return drawTiles(tiles, orientation, config);
+    }
+
+    /**
+     * Find sample size, that is a power of two and keeps picture not smaller than required size
+     *
+     * @param width     Width of a picture
+     * @param height    Height of a picture
+     * @param reqWidth  Required width
+     * @param reqHeight Required height
+     * @return Sample size
+     */
+    public static int calculateSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decode horizontal bands of a picture in parallel
+     *
+     * @param jpeg       Bytes of a picture
+     * @param width      Width of a picture
+     * @param height     Height of a picture
+     * @param sampleSize Sample size
+     * @param config     Config of bitmaps
+     * @return Decoded bands from top to bottom or null, if picture can't be decoded by bands
+     */
+    private static List<Bitmap> decodeTiles(final byte[] jpeg, final int width, int height, final int sampleSize,
+                                            final Bitmap.Config config) {
+        int count = Math.min(MAX_TILES, Runtime.getRuntime().availableProcessors());
+        int step = TILE_ALIGNMENT * sampleSize;
+        int bandHeight = ((height + count - 1) / count + step - 1) / step * step;
+        if (count < 2 || bandHeight >= height) {
+            return null;
+        }
+
+        List<Future<Bitmap>> futures = new ArrayList<Future<Bitmap>>();
+        for (int top = 0; top < height; top += bandHeight) {
+            final Rect region = new Rect(0, top, width, Math.min(top + bandHeight, height));
+            futures.add(getWorkers().submit(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws IOException {
+                    BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, true);
+                    try {
+                        BitmapFactory.Options options = new BitmapFactory.Options();
+                        options.inSampleSize = sampleSize;
+                        options.inPreferredConfig = config;
+                        return decoder.decodeRegion(region, options);
+                    } finally {
+                        decoder.recycle();
+                    }
+                }
+            }));
+        }
+
+        List<Bitmap> tiles = new ArrayList<Bitmap>();
+        boolean failed = false;
+        for (Future<Bitmap> future : futures) {
+            try {
+                Bitmap tile = future.get();
+                if (tile == null) {
+                    failed = true;
+                } else {
+                    tiles.add(tile);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed = true;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Can't decode region", e.getCause());
+                failed = true;
+            }
+        }
+        if (failed) {
+            for (Bitmap tile : tiles) {
+                tile.recycle();
+            }
+            return null;
+        }
+        return tiles;
+    }
+
+    /**
+     * Draw bands of a picture to one bitmap, applying orientation. Bands are recycled
+     *
+     * @param tiles       Bands from top to bottom
+     * @param orientation EXIF orientation of a picture
+     * @param config      Config of result
+     * @return Oriented bitmap
+     */
+    private static Bitmap drawTiles(List<Bitmap> tiles, int orientation, Bitmap.Config config) {
+        if (tiles.size() == 1 && orientation == ExifWriter.ORIENTATION_NORMAL) {
+            return tiles.get(0);
+        }
+        int width = tiles.get(0).getWidth();
+        int height = 0;
+        for (Bitmap tile : tiles) {
+            height += tile.getHeight();
+        }
+        Matrix orientationMatrix = FileUtils.getOrientationMatrix(orientation);
+        RectF bounds = new RectF(0, 0, width, height);
+        orientationMatrix.mapRect(bounds);
+        orientationMatrix.postTranslate(-bounds.left, -bounds.top);
+
+        Bitmap result = Bitmap.createBitmap(Math.round(bounds.width()), Math.round(bounds.height()), config);
+        Canvas canvas = new Canvas(result);
+        Matrix tileMatrix = new Matrix();
+        int top = 0;
+        for (Bitmap tile : tiles) {
+            tileMatrix.set(orientationMatrix);
+            tileMatrix.preTranslate(0, top);
+            canvas.drawBitmap(tile, tileMatrix, null);
+            top += tile.getHeight();
+            tile.recycle();
+        }
+        return result;
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(MAX_TILES, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PreviewDecoder #" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return workers;
+    }
+}
@@ -0,0 +1,283 @@
+package org.telegram.camera.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+import org.telegram.camera.utils.jpeg.ExifWriter;
+import org.telegram.camera.utils.jpeg.LosslessTransform;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crop of a JPEG file that doesn't load the whole picture. Result is rendered by bands of rows,
+ * every band is mapped back to coordinates of the file through {@link EditGraph}, only needed regions
+ * are decoded with {@link BitmapRegionDecoder}, transformed and encoded straight to a file by
+ * {@link AdaptiveJpegEncoder}. Memory that is needed depends on the width of a result, not on the size
+ * of a picture. Rotations by right angles without crop aren't decoded at all, they're done
+ * by {@link LosslessTransform}
+ *
+ * @author Danil Kolikov
+ */
+public class RegionCrop {
+    private static final String TAG = "REGION_CROP";
+    /**
+     * Maximal number of pixels in a region that is decoded at once, bands are split into tiles to fit it
+     */
+    private static final long MAX_REGION_PIXELS = 1024 * 1024;
+    private static final int MIN_TILE_WIDTH = 64;
+    /**
+     * Pixels around the region, so filtering of edges of a result has all neighbours
+     */
+    private static final int FILTER_MARGIN = 2;
+    private static final int WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService workers;
+
+    /**
+     * Crop picture
+     *
+     * @param source      JPEG file
+     * @param orientation EXIF orientation of a picture
+     * @param graph       Edits of an oriented picture
+     * @param output      File to write result, it's written without EXIF orientation
+     * @param encoder     Encoder of the result
+     * @throws IOException If picture can't be decoded or result can't be written
+     */
+    public static void crop(File source, int orientation, EditGraph graph, File output, AdaptiveJpegEncoder encoder)
+            throws IOException {
+        if (graph.isRightRotation() && rotateLossless(source, orientation, graph, output)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getPath(), bounds);
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Can't decode " + source.getName());
+        }
+
+        // Transformation from the file to the result: orientation, then edits
+        Matrix transform = FileUtils.getOrientationMatrix(orientation);
+        RectF oriented = new RectF(0, 0, bounds.outWidth, bounds.outHeight);
+        transform.mapRect(oriented);
+        transform.postTranslate(-oriented.left, -oriented.top);
+        Matrix edits = new Matrix();
+        float[] size = graph.compose(Math.round(oriented.width()), Math.round(oriented.height()), edits);
+        transform.postConcat(edits);
+
+        Matrix inverse = new Matrix();
+        if (!transform.invert(inverse)) {
+            throw new IOException("Edits can't be inverted: " + graph);
+        }
+        int width = Math.max(1, Math.round(size[0])), height = Math.max(1, Math.round(size[1]));
+        Rect picture = new Rect(0, 0, bounds.outWidth, bounds.outHeight);
+        BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(source.getPath(), false);
+        BitmapPool pool = BitmapPool.getDefault();
+        Bitmap probe = null, band = null;
+        FileOutputStream stream = null;
+        try {
+            probe = renderProbe(decoder, transform, inverse, picture, width, height);
+            band = pool.get(width, Math.min(AdaptiveJpegEncoder.BAND_ROWS, height), Bitmap.Config.ARGB_8888);
+            BandRenderer renderer = new BandRenderer(decoder, transform, inverse, picture, band);
+            stream = new FileOutputStream(output);
+            encoder.compress(probe, width, height, renderer, stream.getChannel());
+            stream.close();
+            stream = null;
+            Log.d(TAG, width + "x" + height + " of " + picture.toShortString() + " written in "
+                    + (System.currentTimeMillis() - start) + " ms, " + renderer.regions + " regions decoded");
+        } finally {
+            FileUtils.closeQuietly(stream);
+            decoder.recycle();
+            pool.put(probe);
+            pool.put(band);
+        }
+    }
+
+    /**
+     * Render low-resolution copy of a result to find quality of it
+     *
+     * @return Bitmap from {@link BitmapPool}
+     */
+    private static Bitmap renderProbe(BitmapRegionDecoder decoder, Matrix transform, Matrix inverse, Rect picture,
+                                      int width, int height) throws IOException {
+        float scale = (float) Math.min(1, Math.sqrt((double) AdaptiveJpegEncoder.PROBE_PIXELS / width / height));
+        Rect region = getRegion(inverse, picture, 0, 0, width, height);
+        if (region == null) {
+            throw new IOException("Crop is outside of the picture");
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (options.inSampleSize * 2 * scale <= 1) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap decoded = decodeRegion(decoder, region, options);
+        // Region pixel (x, y) is file pixel (left + x * sample, top + y * sample)
+        Matrix matrix = new Matrix();
+        matrix.setScale(options.inSampleSize, options.inSampleSize);
+        matrix.postTranslate(region.left, region.top);
+        matrix.postConcat(transform);
+        matrix.postScale(scale, scale);
+        Bitmap probe = BitmapPool.getDefault().get(Math.max(1, Math.round(width * scale)),
+                Math.max(1, Math.round(height * scale)), Bitmap.Config.ARGB_8888);
+        new Canvas(probe).drawBitmap(decoded, matrix, new Paint(Paint.FILTER_BITMAP_FLAG));
+        BitmapPool.getDefault().put(decoded);
+        return probe;
+    }
+
+    /**
+     * Get region of a file that is needed to render rectangle of a result
+     *
+     * @return Region or null, if rectangle is outside of the picture
+     */
+    private static Rect getRegion(Matrix inverse, Rect picture, int left, int top, int right, int bottom) {
+        RectF needed = new RectF(left, top, right, bottom);
+        inverse.mapRect(needed);
+        needed.inset(-FILTER_MARGIN, -FILTER_MARGIN);
+        Rect region = new Rect();
+        needed.roundOut(region);
+        return region.intersect(picture) ? region : null;
+    }
+
+    /**
+     * Apply orientation and rotation to a picture in DCT domain
+     *
+     * @return True, if picture is written, False, if it isn't baseline JPEG and should be decoded
+     * @throws IOException If picture can't be read or result can't be written
+     */
+    private static boolean rotateLossless(File source, int orientation, EditGraph graph, File output)
+            throws IOException {
+        long start = System.currentTimeMillis();
+        // Graph keeps counter-clockwise angles
+        LosslessTransform.Transform transform = LosslessTransform.Transform.forOrientation(orientation)
+                .then(LosslessTransform.Transform.forRotation(-Math.round(graph.getRotation())));
+        byte[] jpeg = FileUtils.readFile(source);
+        OutputStream stream = null;
+        try {
+            stream = new BufferedOutputStream(new FileOutputStream(output));
+            LosslessTransform.transform(jpeg, transform, ExifWriter.ORIENTATION_NORMAL, stream, getWorkers());
+            stream.close();
+            stream = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Can't transform " + source.getName() + " losslessly: " + e.getMessage());
+            return false;
+        } finally {
+            FileUtils.closeQuietly(stream);
+        }
+        Log.d(TAG, transform + " of " + jpeg.length + " bytes done losslessly in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RegionCrop #" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return workers;
+    }
+
+    private static Bitmap decodeRegion(BitmapRegionDecoder decoder, Rect region, BitmapFactory.Options options)
+            throws IOException {
+        Bitmap bitmap = decoder.decodeRegion(region, options);
+        if (bitmap == null) {
+            throw new IOException("Can't decode region " + region.toShortString());
+        }
+        return bitmap;
+    }
+
+    /**
+     * Renderer of bands of a result. Band is split into tiles, so a region of the file that is decoded
+     * at once stays small even if picture is rotated
+     */
+    private static class BandRenderer implements AdaptiveJpegEncoder.BandSource {
+        private final BitmapRegionDecoder decoder;
+        private final Matrix transform, inverse, matrix;
+        private final Rect picture;
+        private final Bitmap band;
+        private final Canvas canvas;
+        private final Paint paint;
+        private final BitmapFactory.Options options;
+        private int regions;
+
+        private BandRenderer(BitmapRegionDecoder decoder, Matrix transform, Matrix inverse, Rect picture,
+                             Bitmap band) {
+            this.decoder = decoder;
+            this.transform = transform;
+            this.inverse = inverse;
+            this.picture = picture;
+            this.band = band;
+            canvas = new Canvas(band);
+            paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+            matrix = new Matrix();
+            options = new BitmapFactory.Options();
+        }
+
+        @Override
+        public void getRows(int top, int count, int[] pixels) throws IOException {
+            int width = band.getWidth();
+            int tiles = 1;
+            while (width / tiles > MIN_TILE_WIDTH && getMaxRegionPixels(top, count, tiles) > MAX_REGION_PIXELS) {
+                tiles *= 2;
+            }
+            int tileWidth = (width + tiles - 1) / tiles;
+            band.eraseColor(Color.TRANSPARENT);
+            for (int left = 0; left < width; left += tileWidth) {
+                int right = Math.min(width, left + tileWidth);
+                Rect region = getRegion(inverse, picture, left, top, right, top + count);
+                if (region == null) {
+                    continue;
+                }
+                Bitmap decoded = decodeRegion(decoder, region, options);
+                regions++;
+                matrix.setTranslate(region.left, region.top);
+                matrix.postConcat(transform);
+                matrix.postTranslate(0, -top);
+                canvas.save();
+                canvas.clipRect(left, 0, right, count);
+                canvas.drawBitmap(decoded, matrix, paint);
+                canvas.restore();
+                BitmapPool.getDefault().put(decoded);
+            }
+            band.getPixels(pixels, 0, width, 0, 0, width, count);
+        }
+
+        /**
+         * Get size of the biggest region that is decoded for a band split into tiles
+         */
+        private long getMaxRegionPixels(int top, int count, int tiles) {
+            int width = band.getWidth();
+            int tileWidth = (width + tiles - 1) / tiles;
+            long max = 0;
+            for (int left = 0; left < width; left += tileWidth) {
+                Rect region = getRegion(inverse, picture, left, top, Math.min(width, left + tileWidth), top + count);
+                if (region != null) {
+                    max = Math.max(max, (long) region.width() * region.height());
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package org.telegram.camera.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Store of the picture that is being reviewed. Session is written to an app-private file when the
+ * application goes to background, so the picture, original or edited, survives death of the process.
+ * Session keeps only IDs and paths: original picture is in a pending file, shown image is spilled by
+ * {@link ImageRegistry}, so no pixels stay on the heap while application is in background
+ *
+ * @author Danil Kolikov
+ */
+public class ReviewSessionStore {
+    private static final String TAG = "REVIEW_SESSION";
+    private static final String SESSION_FILE = "review.session";
+    private static final int MAGIC = 0x54475253;    // "TGRS"
+    private static final int VERSION = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+
+    /**
+     * Create store
+     *
+     * @param context Current context
+     */
+    public ReviewSessionStore(Context context) {
+        file = new File(context.getFilesDir(), SESSION_FILE);
+    }
+
+    /**
+     * Write session. Session is written to a temporary file first, so the old one is replaced only
+     * when the new one is complete
+     *
+     * @param session Session to write
+     * @return True, if session is written, False otherwise
+     */
+    public boolean save(Session session) {
+        byte[] path = session.pictureFile == null ? new byte[0] : session.pictureFile.getPath().getBytes(UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 4 + 8 + 4 + 4 + path.length);
+        buffer.putInt(MAGIC)
+                .putInt(VERSION)
+                .putLong(session.imageId)
+                .putInt(session.orientation)
+                .putInt(path.length)
+                .put(path);
+        buffer.flip();
+
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            FileChannel channel = output.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't rename " + temp.getName());
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Can't save session", e);
+            FileUtils.closeQuietly(output);
+            FileUtils.deleteFile(temp);
+            return false;
+        }
+    }
+
+    /**
+     * Read session
+     *
+     * @return Saved session or null, if there is no session or it's corrupted
+     */
+    public Session restore() {
+        if (!file.exists()) {
+            return null;
+        }
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "r");
+            MappedByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                Log.w(TAG, "Unknown session format");
+                return null;
+            }
+            Session session = new Session();
+            session.imageId = buffer.getLong();
+            session.orientation = buffer.getInt();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                Log.w(TAG, "Corrupted session, length of path is " + length);
+                return null;
+            }
+            byte[] path = new byte[length];
+            buffer.get(path);
+            session.pictureFile = path.length == 0 ? null : new File(new String(path, UTF_8));
+            return session;
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Can't restore session", e);
+            return null;
+        } finally {
+            FileUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Remove session, e.g. when picture is saved or dropped
+     */
+    public void clear() {
+        if (file.exists()) {
+            FileUtils.deleteFile(file);
+        }
+    }
+
+    /**
+     * State of a reviewed picture
+     */
+    public static class Session {
+        private long imageId;
+        private int orientation;
+        private File pictureFile;
+
+        private Session() {
+        }
+
+        /**
+         * Create session
+         *
+         * @param imageId     ID of a shown image in {@link ImageRegistry}
+         * @param orientation EXIF orientation of an original picture
+         * @param pictureFile Pending file with original picture
+         */
+        public Session(long imageId, int orientation, File pictureFile) {
+            this.imageId = imageId;
+            this.orientation = orientation;
+            this.pictureFile = pictureFile;
+        }
+
+        /**
+         * Get ID of a shown image
+         *
+         * @return ID in {@link ImageRegistry}
+         */
+        public long getImageId() {
+            return imageId;
+        }
+
+        /**
+         * Get EXIF orientation of an original picture
+         *
+         * @return EXIF orientation
+         */
+        public int getOrientation() {
+            return orientation;
+        }
+
+        /**
+         * Get pending file with original picture
+         *
+         * @return File or null, if there is no original picture
+         */
+        public File getPictureFile() {
+            return pictureFile;
+        }
+
+        /**
+         * Check if session can be continued: original picture still exists
+         *
+         * @return True, if picture can be restored, False otherwise
+         */
+        public boolean isRecoverable() {
+            return pictureFile != null && pictureFile.exists();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.telegram.camera.utils;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import org.telegram.camera.utils.image.Rotator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Engine that rotates a full-size bitmap off the main thread. Pixels of a source are read once,
+ * every rotation is split into tiles that are rotated by {@link Rotator} on a pool of workers and copied
+ * to a destination bitmap from {@link BitmapPool}. Only the latest requested rotation is delivered
+ *
+ * @author Danil Kolikov
+ */
+public class RotationEngine {
+    private static final String TAG = "ROTATION_ENGINE";
+    private static final int WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    private static ExecutorService workers, coordinator;
+
+    /**
+     * Buffer of a tile for every worker
+     */
+    private static final ThreadLocal<int[]> tiles = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[Rotator.TILE_SIZE * Rotator.TILE_SIZE];
+        }
+    };
+
+    private final Bitmap source;
+    private final Rotator.Interpolation interpolation;
+    private final Handler handler;
+    private final AtomicInteger generation;
+    private int[] pixels;
+    private volatile boolean released;
+
+    /**
+     * Create engine
+     *
+     * @param source        Bitmap to rotate, it isn't changed
+     * @param interpolation Sampling for arbitrary angles, right angles are always rotated exactly
+     */
+    public RotationEngine(Bitmap source, Rotator.Interpolation interpolation) {
+        this.source = source;
+        this.interpolation = interpolation;
+        handler = new Handler(Looper.getMainLooper());
+        generation = new AtomicInteger();
+    }
+
+    /**
+     * Rotate source on the calling thread
+     *
+     * @param degrees Angle of rotation, counter-clockwise
+     * @return Rotated bitmap from {@link BitmapPool}
+     * @throws InterruptedException If thread was interrupted while waiting for tiles
+     */
+    public Bitmap rotate(float degrees) throws InterruptedException {
+        final int[] pixels = getPixels();
+        final int width = source.getWidth(), height = source.getHeight();
+        final float angle = degrees;
+        boolean right = degrees % 90 == 0;
+        final Rotator.Interpolation sampling = right ? Rotator.Interpolation.NEAREST : interpolation;
+        int outWidth = Rotator.getRotatedWidth(width, height, degrees);
+        int outHeight = Rotator.getRotatedHeight(width, height, degrees);
+        // Corners of a bitmap rotated by not right angle are transparent
+        Bitmap.Config config = right && source.getConfig() != null ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        final Bitmap result = BitmapPool.getDefault().get(outWidth, outHeight, config);
+
+        long start = System.currentTimeMillis();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int top = 0; top < outHeight; top += Rotator.TILE_SIZE) {
+            for (int left = 0; left < outWidth; left += Rotator.TILE_SIZE) {
+                final int tileLeft = left, tileTop = top;
+                final int tileWidth = Math.min(Rotator.TILE_SIZE, outWidth - left);
+                final int tileHeight = Math.min(Rotator.TILE_SIZE, outHeight - top);
+                futures.add(getWorkers().submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        int[] tile = tiles.get();
+                        Rotator.rotateTile(pixels, width, height, angle, sampling, tile, 0, tileWidth,
+                                tileLeft, tileTop, tileLeft + tileWidth, tileTop + tileHeight);
+                        synchronized (result) {
+                            result.setPixels(tile, 0, tileWidth, tileLeft, tileTop, tileWidth, tileHeight);
+                        }
+                        return null;
+                    }
+                }));
+            }
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            BitmapPool.getDefault().put(result);
+            throw new IllegalStateException("Can't rotate tile", e.getCause());
+        } catch (InterruptedException e) {
+            BitmapPool.getDefault().put(result);
+            throw e;
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        Log.d(TAG, "rotated " + outWidth + "x" + outHeight + " by " + degrees + " with " + sampling + " in "
+                + (System.currentTimeMillis() - start) + " ms, " + futures.size() + " tiles");
+        return result;
+    }
+
+    /**
+     * Rotate source in background. Previous rotations that aren't finished yet won't be delivered
+     *
+     * @param degrees  Angle of rotation, counter-clockwise
+     * @param listener Listener that is called on the main thread
+     */
+    public void rotate(final float degrees, final OnRotatedListener listener) {
+        final int current = generation.incrementAndGet();
+        getCoordinator().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (released || current != generation.get()) {
+                    return;
+                }
+                final Bitmap rotated;
+                try {
+                    rotated = rotate(degrees);
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Rotation is interrupted");
+                    return;
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Can't rotate", e);
+                    return;
+                }
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (released || current != generation.get()) {
+                            BitmapPool.getDefault().put(rotated);
+                            return;
+                        }
+                        listener.onRotated(rotated, degrees);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Drop rotations that aren't delivered yet
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Drop all rotations and pixels of a source. Engine can't be used after that
+     */
+    public void release() {
+        released = true;
+        cancel();
+        getCoordinator().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (RotationEngine.this) {
+                    pixels = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Get pixels of a source, they're read on the first rotation
+     *
+     * @return ARGB pixels
+     */
+    private synchronized int[] getPixels() {
+        if (pixels == null) {
+            long start = System.currentTimeMillis();
+            pixels = new int[source.getWidth() * source.getHeight()];
+            source.getPixels(pixels, 0, source.getWidth(), 0, 0, source.getWidth(), source.getHeight());
+            Log.d(TAG, "pixels read in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return pixels;
+    }
+
+    private static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            workers = Executors.newFixedThreadPool(WORKERS, new NamedThreadFactory("RotationEngine #"));
+        }
+        return workers;
+    }
+
+    private static synchronized ExecutorService getCoordinator() {
+        if (coordinator == null) {
+            coordinator = Executors.newSingleThreadExecutor(new NamedThreadFactory("RotationEngine coordinator #"));
+        }
+        return coordinator;
+    }
+
+    /**
+     * Factory of daemon threads with numbered names
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, name + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Listener of finished rotations
+     */
+    public interface OnRotatedListener {
+        /**
+         * Will be called on the main thread when rotation is finished
+         *
+         * @param rotated Rotated bitmap from {@link BitmapPool}, listener owns it
+         * @param degrees Angle of rotation
+         */
+        void onRotated(Bitmap rotated, float degrees);
+    }
+}
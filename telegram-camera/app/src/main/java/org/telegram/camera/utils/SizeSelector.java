@@ -0,0 +1,268 @@
+package org.telegram.camera.utils;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Engine that chooses sizes of a preview, a picture and a video for a camera. Every candidate gets a cost,
+ * the cheapest one wins. Cost consists of:
+ * <ul>
+ * <li>Aspect mismatch. Sizes outside of tolerance are possible only if nothing else is</li>
+ * <li>Distance from target resolution, smaller sizes cost more than bigger ones</li>
+ * <li>Bytes that frames of this size take on the heap, sizes over the budget are possible only
+ * if nothing else is</li>
+ * <li>Alignment for encoders: width should be a multiple of a macroblock, height of a half of it</li>
+ * </ul>
+ * Picture gets the aspect of a sensor and the biggest resolution that fits the budget, preview gets the
+ * aspect of a picture, so it shows what will be taken, and resolution of a view. Video gets its
+ * profile, preview for video gets its aspect. Decisions are cached per camera
+ *
+ * @author Danil Kolikov
+ */
+public class SizeSelector {
+    private static final String TAG = "SIZE_SELECTOR";
+    /**
+     * Part of a heap that a decoded picture may take
+     */
+    private static final int PICTURE_HEAP_PART = 3;
+    /**
+     * Part of a heap that all preview buffers may take
+     */
+    private static final int PREVIEW_HEAP_PART = 16;
+    static final int ARGB_8888_BITS = 32;
+    static final int NV21_BITS = 12;
+    private static final int MACROBLOCK = 16;
+
+    /**
+     * Maximal difference of logarithms of aspect ratios, about 10 per cent
+     */
+    private static final double ASPECT_TOLERANCE = 0.1;
+    private static final double ASPECT_WEIGHT = 8;
+    private static final double ASPECT_MISMATCH = 4;
+    private static final double SMALLER_WEIGHT = 1;
+    private static final double BIGGER_WEIGHT = 0.5;
+    private static final double OVER_BUDGET = 16;
+    static final double PHOTO_ALIGNMENT = 0.02;
+    static final double VIDEO_ALIGNMENT = 0.2;
+
+    private static SizeSelector defaultSelector;
+
+    private final long pictureBudget, previewBudget;
+    private final Map<String, Selection> decisions;
+
+    /**
+     * Create selector
+     *
+     * @param pictureBudget Maximal size of a decoded picture in bytes
+     * @param previewBudget Maximal total size of preview buffers in bytes
+     */
+    public SizeSelector(long pictureBudget, long previewBudget) {
+        this.pictureBudget = pictureBudget;
+        this.previewBudget = previewBudget;
+        decisions = new HashMap<String, Selection>();
+    }
+
+    /**
+     * Get selector shared by the application, its budgets are parts of a heap
+     *
+     * @return Default selector
+     */
+    public static synchronized SizeSelector getDefault() {
+        if (defaultSelector == null) {
+            long heap = Runtime.getRuntime().maxMemory();
+            defaultSelector = new SizeSelector(heap / PICTURE_HEAP_PART, heap / PREVIEW_HEAP_PART);
+        }
+        return defaultSelector;
+    }
+
+    /**
+     * Choose sizes of a picture and a preview for taking photos
+     *
+     * @param info           Capabilities of a camera with parameters
+     * @param viewWidth      Width of a view that shows preview
+     * @param viewHeight     Height of a view that shows preview
+     * @param previewBuffers Number of preview frames that are kept on the heap
+     * @return Selection without a video size
+     */
+    public synchronized Selection forPhoto(CameraCapabilities.Info info, int viewWidth, int viewHeight,
+                                           int previewBuffers) {
+        String key = info.getId() + ":photo:" + viewWidth + "x" + viewHeight + ":" + previewBuffers;
+        Selection selection = decisions.get(key);
+        if (selection == null) {
+            CameraCapabilities.Size largest = getLargest(info.getPictureSizes());
+            CameraCapabilities.Size picture = largest == null ? null : select(info.getPictureSizes(),
+                    getAspect(largest), getPixels(largest), ARGB_8888_BITS, 1, pictureBudget, PHOTO_ALIGNMENT);
+            CameraCapabilities.Size preview = select(info.getPreviewSizes(),
+                    picture == null ? getAspect(viewWidth, viewHeight) : getAspect(picture),
+                    (long) viewWidth * viewHeight, NV21_BITS, previewBuffers, previewBudget, PHOTO_ALIGNMENT);
+            selection = new Selection(preview, picture, null);
+            decisions.put(key, selection);
+            Log.d(TAG, "camera " + info.getId() + ", photo: " + selection);
+        }
+        return selection;
+    }
+
+    /**
+     * Choose sizes of a video and a preview for recording videos
+     *
+     * @param info       Capabilities of a camera with parameters
+     * @param viewWidth  Width of a view that shows preview
+     * @param viewHeight Height of a view that shows preview
+     * @param quality    Quality of a video, see constants in {@link android.media.CamcorderProfile}
+     * @return Selection without a picture size
+     */
+    public synchronized Selection forVideo(CameraCapabilities.Info info, int viewWidth, int viewHeight,
+                                           int quality) {
+        String key = info.getId() + ":video" + quality + ":" + viewWidth + "x" + viewHeight;
+        Selection selection = decisions.get(key);
+        if (selection == null) {
+            CameraCapabilities.Profile profile = info.getProfile(quality);
+            CameraCapabilities.Size target = profile != null
+                    ? new CameraCapabilities.Size(profile.width, profile.height)
+                    : getLargest(info.getVideoSizes());
+            // Frames of a video are in buffers of an encoder, not on the heap
+            CameraCapabilities.Size video = target == null ? null : select(info.getVideoSizes(),
+                    getAspect(target), getPixels(target), NV21_BITS, 1, Long.MAX_VALUE, VIDEO_ALIGNMENT);
+            CameraCapabilities.Size preview = select(info.getPreviewSizes(),
+                    video == null ? getAspect(viewWidth, viewHeight) : getAspect(video),
+                    (long) viewWidth * viewHeight, NV21_BITS, 1, previewBudget, PHOTO_ALIGNMENT);
+            selection = new Selection(preview, null, video);
+            decisions.put(key, selection);
+            Log.d(TAG, "camera " + info.getId() + ", video: " + selection);
+        }
+        return selection;
+    }
+
+    /**
+     * Choose the cheapest size
+     *
+     * @param sizes        Candidates
+     * @param aspect       Target aspect ratio, longer side to shorter one
+     * @param pixels       Target number of pixels
+     * @param bitsPerPixel Bits that a pixel of a frame takes
+     * @param frames       Number of frames that are kept at once
+     * @param budget       Maximal size of all frames in bytes
+     * @param alignment    Cost of an unaligned size
+     * @return Chosen size or null, if there are no candidates
+     */
+    static CameraCapabilities.Size select(List<CameraCapabilities.Size> sizes, double aspect, long pixels,
+                                          int bitsPerPixel, int frames, long budget, double alignment) {
+        if (sizes == null) {
+            return null;
+        }
+        CameraCapabilities.Size best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (CameraCapabilities.Size size : sizes) {
+            double cost = getCost(size, aspect, pixels, bitsPerPixel, frames, budget, alignment);
+            if (cost < bestCost) {
+                best = size;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Compute cost of a size, see {@link #select(List, double, long, int, int, long, double)}
+     *
+     * @return Cost, the less the better
+     */
+    static double getCost(CameraCapabilities.Size size, double aspect, long pixels, int bitsPerPixel,
+                          int frames, long budget, double alignment) {
+        double cost = 0;
+
+        double aspectDistance = Math.abs(Math.log(getAspect(size) / aspect));
+        cost += aspectDistance * ASPECT_WEIGHT;
+        if (aspectDistance > ASPECT_TOLERANCE) {
+            cost += ASPECT_MISMATCH;
+        }
+
+        double resolutionDistance = Math.log((double) getPixels(size) / Math.max(1, pixels));
+        cost += resolutionDistance < 0 ? -resolutionDistance * SMALLER_WEIGHT : resolutionDistance * BIGGER_WEIGHT;
+
+        double bytes = (double) getPixels(size) * bitsPerPixel / 8 * frames;
+        if (bytes > budget) {
+            cost += OVER_BUDGET + Math.log(bytes / budget);
+        }
+
+        int longer = Math.max(size.width, size.height);
+        int shorter = Math.min(size.width, size.height);
+        if (longer % MACROBLOCK != 0 || shorter % (MACROBLOCK / 2) != 0) {
+            cost += alignment;
+        }
+        return cost;
+    }
+
+    private static CameraCapabilities.Size getLargest(List<CameraCapabilities.Size> sizes) {
+        CameraCapabilities.Size largest = null;
+        if (sizes != null) {
+            for (CameraCapabilities.Size size : sizes) {
+                if (largest == null || getPixels(size) > getPixels(largest)) {
+                    largest = size;
+                }
+            }
+        }
+        return largest;
+    }
+
+    private static long getPixels(CameraCapabilities.Size size) {
+        return (long) size.width * size.height;
+    }
+
+    private static double getAspect(CameraCapabilities.Size size) {
+        return getAspect(size.width, size.height);
+    }
+
+    private static double getAspect(int width, int height) {
+        return (double) Math.max(width, height) / Math.max(1, Math.min(width, height));
+    }
+
+    /**
+     * Sizes that were chosen for a camera. Sizes that aren't needed in a mode or aren't known are null
+     */
+    public static class Selection {
+        private final CameraCapabilities.Size preview, picture, video;
+
+        private Selection(CameraCapabilities.Size preview, CameraCapabilities.Size picture,
+                          CameraCapabilities.Size video) {
+            this.preview = preview;
+            this.picture = picture;
+            this.video = video;
+        }
+
+        /**
+         * Get size of a preview
+         *
+         * @return Size or null
+         */
+        public CameraCapabilities.Size getPreview() {
+            return preview;
+        }
+
+        /**
+         * Get size of a picture
+         *
+         * @return Size or null
+         */
+        public CameraCapabilities.Size getPicture() {
+            return picture;
+        }
+
+        /**
+         * Get size of a video
+         *
+         * @return Size or null
+         */
+        public CameraCapabilities.Size getVideo() {
+            return video;
+        }
+
+        @Override
+        public String toString() {
+            return "preview " + preview + ", picture " + picture + ", video " + video;
+        }
+    }
+}
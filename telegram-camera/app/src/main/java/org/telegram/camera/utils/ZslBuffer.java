@@ -0,0 +1,242 @@
+package org.telegram.camera.utils;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.hardware.Camera;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Ring buffer of the last preview frames for zero shutter lag capture. Frames are received with
+ * {@link Camera#setPreviewCallbackWithBuffer(Camera.PreviewCallback)} into a fixed pool of buffers,
+ * the oldest frame is given back to camera when a new one arrives. Picture is a frame that is closest
+ * to the moment of pressing the shutter, it's encoded to JPEG in background, while preview keeps going.
+ * Buffers are given back to camera on {@link CameraThread}
+ *
+ * @author Danil Kolikov
+ * @see CameraHolder#setZeroShutterLag(boolean, int)
+ */
+@SuppressWarnings("deprecation")
+public class ZslBuffer implements Camera.PreviewCallback {
+    private static final String TAG = "ZSL_BUFFER";
+    private static final int PICTURE_QUALITY = 90;
+    /**
+     * Number of buffers that camera always owns, so it never runs out of them
+     */
+    private static final int CAMERA_BUFFERS = 2;
+
+    private static ExecutorService encoder;
+
+    private final int frameCount;
+    private final ArrayDeque<Frame> frames;
+    private Camera camera;
+    private int width, height;
+    private int generation;
+    private Runnable frameListener;
+
+    /**
+     * Create buffer
+     *
+     * @param frameCount Number of last frames to keep
+     */
+    public ZslBuffer(int frameCount) {
+        this.frameCount = Math.max(1, frameCount);
+        frames = new ArrayDeque<Frame>(this.frameCount + 1);
+    }
+
+    /**
+     * Get number of preview buffers that are allocated when buffer is started
+     *
+     * @return Number of buffers
+     */
+    public int getBufferCount() {
+        return frameCount + CAMERA_BUFFERS;
+    }
+
+    /**
+     * Start receiving frames from camera. Preview must use NV21 format
+     *
+     * @param camera     Camera
+     * @param parameters Current parameters of a camera
+     * @return True, if buffer is started, False, if preview format isn't supported
+     */
+    public synchronized boolean start(Camera camera, Camera.Parameters parameters) {
+        stop();
+        if (parameters.getPreviewFormat() != ImageFormat.NV21) {
+            Log.w(TAG, "Preview format " + parameters.getPreviewFormat() + " isn't supported");
+            return false;
+        }
+        Camera.Size size = parameters.getPreviewSize();
+        this.camera = camera;
+        width = size.width;
+        height = size.height;
+        int bufferSize = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        camera.setPreviewCallbackWithBuffer(this);
+        for (int i = 0; i < getBufferCount(); i++) {
+            camera.addCallbackBuffer(new byte[bufferSize]);
+        }
+        Log.d(TAG, "started " + width + "x" + height + ", " + frameCount + " frames");
+        return true;
+    }
+
+    /**
+     * Stop receiving frames. Buffers are released, frames that are being encoded are still delivered
+     */
+    public synchronized void stop() {
+        if (camera != null) {
+            camera.setPreviewCallbackWithBuffer(null);
+            camera = null;
+        }
+        frames.clear();
+        generation++;
+    }
+
+    /**
+     * Drop kept frames, e.g. if preview was stopped and they are out of date
+     */
+    public synchronized void clear() {
+        while (!frames.isEmpty()) {
+            recycle(frames.poll().data);
+        }
+    }
+
+    /**
+     * Set listener of the next frame, it's called once, on the thread of preview callbacks
+     *
+     * @param listener Listener or null
+     */
+    public synchronized void setOnNextFrameListener(Runnable listener) {
+        frameListener = listener;
+    }
+
+    @Override
+    public synchronized void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null || camera != this.camera) {
+            return;
+        }
+        if (frameListener != null) {
+            frameListener.run();
+            frameListener = null;
+        }
+        frames.add(new Frame(data, SystemClock.uptimeMillis()));
+        if (frames.size() > frameCount) {
+            recycle(frames.poll().data);
+        }
+    }
+
+    /**
+     * Take a frame that is closest to specified time and encode it in background
+     *
+     * @param time     Time of pressing the shutter in {@link SystemClock#uptimeMillis()} base
+     * @param listener Callback that will be called on the main thread with JPEG bytes
+     * @return True, if frame was taken, False, if there are no frames yet
+     */
+    public synchronized boolean capture(long time, final OnFrameEncodedListener listener) {
+        Frame closest = null;
+        for (Frame frame : frames) {
+            if (closest == null || Math.abs(frame.timestamp - time) < Math.abs(closest.timestamp - time)) {
+                closest = frame;
+            }
+        }
+        if (closest == null) {
+            return false;
+        }
+        for (Iterator<Frame> iterator = frames.iterator(); iterator.hasNext(); ) {
+            if (iterator.next() == closest) {
+                iterator.remove();
+                break;
+            }
+        }
+        Log.d(TAG, "capture frame " + (closest.timestamp - time) + " ms from shutter");
+
+        final byte[] data = closest.data;
+        final int width = this.width, height = this.height, generation = this.generation;
+        getEncoder().execute(new Runnable() {
+            @Override
+            public void run() {
+                ByteArrayOutputStream output = new ByteArrayOutputStream(width * height / 2);
+                new YuvImage(data, ImageFormat.NV21, width, height, null)
+                        .compressToJpeg(new Rect(0, 0, width, height), PICTURE_QUALITY, output);
+                final byte[] jpeg = output.toByteArray();
+                // Buffer goes back to camera on its thread, picture goes to the main one
+                CameraThread.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (ZslBuffer.this) {
+                            if (generation == ZslBuffer.this.generation) {
+                                recycle(data);
+                            }
+                        }
+                    }
+                });
+                CameraThread.postToMain(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onFrameEncoded(jpeg, width, height);
+                    }
+                });
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Give buffer back to camera
+     *
+     * @param data Buffer
+     */
+    private void recycle(byte[] data) {
+        if (camera != null) {
+            camera.addCallbackBuffer(data);
+        }
+    }
+
+    private static synchronized ExecutorService getEncoder() {
+        if (encoder == null) {
+            encoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ZSL encoder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return encoder;
+    }
+
+    /**
+     * Preview frame and time when it was received
+     */
+    private static class Frame {
+        private final byte[] data;
+        private final long timestamp;
+
+        private Frame(byte[] data, long timestamp) {
+            this.data = data;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Callback for encoded frames
+     */
+    public interface OnFrameEncodedListener {
+        /**
+         * Will be called when frame is encoded
+         *
+         * @param jpeg   Bytes of a picture
+         * @param width  Width of a picture
+         * @param height Height of a picture
+         */
+        void onFrameEncoded(byte[] jpeg, int width, int height);
+    }
+}
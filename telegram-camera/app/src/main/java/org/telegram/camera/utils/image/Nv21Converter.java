@@ -0,0 +1,246 @@
+package org.telegram.camera.utils.image;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Converter of NV21 frames, that camera gives for preview, to ARGB pixels. It uses only integer
+ * fixed-point math of BT.601 and processes frame by rows, so every row of Y and VU planes is read
+ * sequentially once. Frame can be downscaled by a power of two during conversion, then every output
+ * pixel is an average of a block of input pixels
+ *
+ * @author Danil Kolikov
+ */
+public class Nv21Converter {
+    /**
+     * Minimal number of output rows for one task of parallel conversion
+     */
+    private static final int MIN_BAND_HEIGHT = 16;
+
+    /**
+     * Get size of an output of conversion
+     *
+     * @param size  Width or height of a frame
+     * @param scale Factor of downscale
+     * @return Width or height of an output
+     */
+    public static int getScaledSize(int size, int scale) {
+        return size / scale;
+    }
+
+    /**
+     * Convert frame to ARGB pixels
+     *
+     * @param nv21   Frame in NV21 format
+     * @param width  Width of a frame, must be even
+     * @param height Height of a frame, must be even
+     * @param argb   Array for output pixels, it's allocated if it's null or too small
+     * @return Array with pixels, row by row
+     */
+    public static int[] convert(byte[] nv21, int width, int height, int[] argb) {
+        return convert(nv21, width, height, 1, argb);
+    }
+
+    /**
+     * Convert frame to ARGB pixels, downscaling it
+     *
+     * @param nv21   Frame in NV21 format
+     * @param width  Width of a frame, must be even
+     * @param height Height of a frame, must be even
+     * @param scale  Factor of downscale, power of two
+     * @param argb   Array for output pixels, it's allocated if it's null or too small
+     * @return Array with pixels, row by row, of size {@link #getScaledSize(int, int)}
+     */
+    public static int[] convert(byte[] nv21, int width, int height, int scale, int[] argb) {
+        argb = prepare(nv21, width, height, scale, argb);
+        convertRows(nv21, width, height, scale, argb, 0, getScaledSize(height, scale));
+        return argb;
+    }
+
+    /**
+     * Convert frame to ARGB pixels, splitting it into horizontal bands converted in parallel
+     *
+     * @param nv21     Frame in NV21 format
+     * @param width    Width of a frame, must be even
+     * @param height   Height of a frame, must be even
+     * @param scale    Factor of downscale, power of two
+     * @param argb     Array for output pixels, it's allocated if it's null or too small
+     * @param executor Executor for bands
+     * @param bands    Maximal number of bands
+     * @return Array with pixels, row by row, of size {@link #getScaledSize(int, int)}
+     * @throws InterruptedException If thread was interrupted while waiting for bands
+     */
+    public static int[] convertParallel(final byte[] nv21, final int width, final int height, final int scale,
+                                        int[] argb, ExecutorService executor, int bands)
+            throws InterruptedException {
+        final int[] result = prepare(nv21, width, height, scale, argb);
+        int outHeight = getScaledSize(height, scale);
+        // Bands of full-size conversion start at even rows, because two rows share a row of chroma
+        int bandHeight = Math.max(MIN_BAND_HEIGHT, (outHeight + bands - 1) / bands + 1) & ~1;
+        if (bands < 2 || bandHeight >= outHeight) {
+            convertRows(nv21, width, height, scale, result, 0, outHeight);
+            return result;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int top = 0; top < outHeight; top += bandHeight) {
+            final int from = top, to = Math.min(top + bandHeight, outHeight);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    convertRows(nv21, width, height, scale, result, from, to);
+                    return null;
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Can't convert band", e.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Convert part of a frame
+     *
+     * @param nv21   Frame in NV21 format
+     * @param width  Width of a frame
+     * @param height Height of a frame
+     * @param scale  Factor of downscale, power of two
+     * @param argb   Array for output pixels
+     * @param from   First output row, must be even if scale is 1
+     * @param to     Output row after the last one
+     */
+    public static void convertRows(byte[] nv21, int width, int height, int scale, int[] argb, int from, int to) {
+        if (scale == 1) {
+            convertFull(nv21, width, height, argb, from, to);
+        } else {
+            convertScaled(nv21, width, height, scale, argb, from, to);
+        }
+    }
+
+    /**
+     * Convert rows without scale. Every pair of rows shares one row of chroma, so chroma is read once for
+     * each 2x2 block
+     */
+    private static void convertFull(byte[] nv21, int width, int height, int[] argb, int from, int to) {
+        int frameSize = width * height;
+        for (int y = from; y < to; y += 2) {
+            int top = y * width;
+            int bottom = y + 1 < to ? top + width : -1;
+            int chroma = frameSize + (y >> 1) * width;
+            for (int x = 0; x < width; x += 2) {
+                int v = (nv21[chroma + x] & 0xFF) - 128;
+                int u = (nv21[chroma + x + 1] & 0xFF) - 128;
+                int red = 409 * v + 128;
+                int green = -100 * u - 208 * v + 128;
+                int blue = 516 * u + 128;
+
+                argb[top + x] = pixel(nv21[top + x], red, green, blue);
+                argb[top + x + 1] = pixel(nv21[top + x + 1], red, green, blue);
+                if (bottom >= 0) {
+                    argb[bottom + x] = pixel(nv21[bottom + x], red, green, blue);
+                    argb[bottom + x + 1] = pixel(nv21[bottom + x + 1], red, green, blue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Convert rows with downscale. Sums of luma and chroma for a row of output are accumulated
+     * over input rows, so input is read sequentially
+     */
+    private static void convertScaled(byte[] nv21, int width, int height, int scale, int[] argb, int from, int to) {
+        int frameSize = width * height;
+        int outWidth = getScaledSize(width, scale);
+        int shift = Integer.numberOfTrailingZeros(scale);
+        int chromaScale = scale >> 1;
+        int chromaShift = shift - 1;
+        int[] luma = new int[outWidth];
+        int[] us = new int[outWidth];
+        int[] vs = new int[outWidth];
+
+        for (int y = from; y < to; y++) {
+            for (int x = 0; x < outWidth; x++) {
+                luma[x] = us[x] = vs[x] = 0;
+            }
+            int inWidth = outWidth << shift;
+            for (int row = y << shift, end = row + scale; row < end; row++) {
+                int offset = row * width;
+                for (int x = 0; x < inWidth; x++) {
+                    luma[x >> shift] += nv21[offset + x] & 0xFF;
+                }
+            }
+            int chromaWidth = inWidth >> 1;
+            for (int row = y << chromaShift, end = row + chromaScale; row < end; row++) {
+                int offset = frameSize + row * width;
+                for (int x = 0; x < chromaWidth; x++) {
+                    vs[x >> chromaShift] += nv21[offset + 2 * x] & 0xFF;
+                    us[x >> chromaShift] += nv21[offset + 2 * x + 1] & 0xFF;
+                }
+            }
+
+            int out = y * outWidth;
+            for (int x = 0; x < outWidth; x++) {
+                int v = (vs[x] >> (2 * chromaShift)) - 128;
+                int u = (us[x] >> (2 * chromaShift)) - 128;
+                argb[out + x] = pixel(luma[x] >> (2 * shift), 409 * v + 128, -100 * u - 208 * v + 128,
+                        516 * u + 128);
+            }
+        }
+    }
+
+    /**
+     * Make ARGB pixel from luma and prepared chroma terms
+     *
+     * @param luma  Luma of a pixel
+     * @param red   Red chroma term, with rounding
+     * @param green Green chroma term, with rounding
+     * @param blue  Blue chroma term, with rounding
+     * @return Opaque ARGB pixel
+     */
+    private static int pixel(int luma, int red, int green, int blue) {
+        int c = 298 * ((luma & 0xFF) - 16);
+        int r = (c + red) >> 8;
+        int g = (c + green) >> 8;
+        int b = (c + blue) >> 8;
+        // Clamp only out of range values, they are rare
+        if ((r & ~0xFF) != 0) {
+            r = r < 0 ? 0 : 0xFF;
+        }
+        if ((g & ~0xFF) != 0) {
+            g = g < 0 ? 0 : 0xFF;
+        }
+        if ((b & ~0xFF) != 0) {
+            b = b < 0 ? 0 : 0xFF;
+        }
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Check arguments and allocate output if it's needed
+     */
+    private static int[] prepare(byte[] nv21, int width, int height, int scale, int[] argb) {
+        if (scale < 1 || Integer.bitCount(scale) != 1) {
+            throw new IllegalArgumentException("Scale must be a power of two: " + scale);
+        }
+        if (nv21.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("Frame is too small for " + width + "x" + height);
+        }
+        int size = getScaledSize(width, scale) * getScaledSize(height, scale);
+        if (argb == null || argb.length < size) {
+            argb = new int[size];
+        }
+        return argb;
+    }
+}
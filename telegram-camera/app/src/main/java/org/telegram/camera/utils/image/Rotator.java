@@ -0,0 +1,336 @@
+package org.telegram.camera.utils.image;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Rotation of ARGB pixels by an arbitrary angle. Result fits the whole rotated picture, its corners are
+ * transparent, like with <tt>Matrix.postRotate(-degrees)</tt>. Every output pixel is sampled from the
+ * source by inverse mapping, so output can be split into independent tiles that are rotated in parallel
+ *
+ * @author Danil Kolikov
+ */
+public class Rotator {
+    /**
+     * Size of a side of a tile of parallel rotation
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Sampling of the source
+     */
+    public enum Interpolation {
+        /**
+         * The nearest pixel, it's exact for right angles
+         */
+        NEAREST,
+        /**
+         * Weighted 2x2 pixels
+         */
+        BILINEAR,
+        /**
+         * Catmull-Rom spline over 4x4 pixels, the sharpest and the slowest
+         */
+        BICUBIC
+    }
+
+    /**
+     * Get width of a rotated picture
+     *
+     * @param width   Width of a source
+     * @param height  Height of a source
+     * @param degrees Angle of rotation, counter-clockwise
+     * @return Width of a result
+     */
+    public static int getRotatedWidth(int width, int height, float degrees) {
+        return new Transform(width, height, degrees).outWidth;
+    }
+
+    /**
+     * Get height of a rotated picture
+     *
+     * @param width   Width of a source
+     * @param height  Height of a source
+     * @param degrees Angle of rotation, counter-clockwise
+     * @return Height of a result
+     */
+    public static int getRotatedHeight(int width, int height, float degrees) {
+        return new Transform(width, height, degrees).outHeight;
+    }
+
+    /**
+     * Rotate picture
+     *
+     * @param src           Pixels of a source, row by row
+     * @param width         Width of a source
+     * @param height        Height of a source
+     * @param degrees       Angle of rotation, counter-clockwise
+     * @param interpolation Sampling of a source
+     * @param dst           Array for output pixels, it's allocated if it's null or too small
+     * @return Array with pixels of size {@link #getRotatedWidth(int, int, float)}
+     * x {@link #getRotatedHeight(int, int, float)}
+     */
+    public static int[] rotate(int[] src, int width, int height, float degrees, Interpolation interpolation,
+                               int[] dst) {
+        Transform transform = new Transform(width, height, degrees);
+        dst = prepare(transform, dst);
+        rotate(src, transform, interpolation, dst, 0, transform.outWidth,
+                0, 0, transform.outWidth, transform.outHeight);
+        return dst;
+    }
+
+    /**
+     * Rotate picture, splitting output into tiles rotated in parallel
+     *
+     * @param src           Pixels of a source, row by row
+     * @param width         Width of a source
+     * @param height        Height of a source
+     * @param degrees       Angle of rotation, counter-clockwise
+     * @param interpolation Sampling of a source
+     * @param dst           Array for output pixels, it's allocated if it's null or too small
+     * @param executor      Executor for tiles
+     * @return Array with pixels of size {@link #getRotatedWidth(int, int, float)}
+     * x {@link #getRotatedHeight(int, int, float)}
+     * @throws InterruptedException If thread was interrupted while waiting for tiles
+     */
+    public static int[] rotateParallel(final int[] src, int width, int height, float degrees,
+                                       final Interpolation interpolation, int[] dst, ExecutorService executor)
+            throws InterruptedException {
+        final Transform transform = new Transform(width, height, degrees);
+        final int[] result = prepare(transform, dst);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int top = 0; top < transform.outHeight; top += TILE_SIZE) {
+            for (int left = 0; left < transform.outWidth; left += TILE_SIZE) {
+                final int tileLeft = left, tileTop = top;
+                final int right = Math.min(left + TILE_SIZE, transform.outWidth);
+                final int bottom = Math.min(top + TILE_SIZE, transform.outHeight);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        rotate(src, transform, interpolation, result, tileTop * transform.outWidth + tileLeft,
+                                transform.outWidth, tileLeft, tileTop, right, bottom);
+                        return null;
+                    }
+                }));
+            }
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Can't rotate tile", e.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rotate one rectangle of output, e.g. to write it to a separate buffer
+     *
+     * @param src           Pixels of a source, row by row
+     * @param width         Width of a source
+     * @param height        Height of a source
+     * @param degrees       Angle of rotation, counter-clockwise
+     * @param interpolation Sampling of a source
+     * @param dst           Array for output pixels
+     * @param offset        Index in dst for the pixel (left, top)
+     * @param stride        Distance between rows in dst
+     * @param left          Left side of a rectangle in rotated picture
+     * @param top           Top side of a rectangle in rotated picture
+     * @param right         Right side of a rectangle, exclusive
+     * @param bottom        Bottom side of a rectangle, exclusive
+     */
+    public static void rotateTile(int[] src, int width, int height, float degrees, Interpolation interpolation,
+                                  int[] dst, int offset, int stride, int left, int top, int right, int bottom) {
+        rotate(src, new Transform(width, height, degrees), interpolation, dst, offset, stride,
+                left, top, right, bottom);
+    }
+
+    private static void rotate(int[] src, Transform transform, Interpolation interpolation, int[] dst,
+                               int offset, int stride, int left, int top, int right, int bottom) {
+        int width = transform.width, height = transform.height;
+        for (int y = top; y < bottom; y++) {
+            // Samples are stepped from the start of a row, so they don't depend on splitting into tiles
+            double dx = 0.5 - transform.outWidth / 2.0;
+            double dy = y + 0.5 - transform.outHeight / 2.0;
+            double sx = transform.cos * dx - transform.sin * dy + width / 2.0 - 0.5;
+            double sy = transform.sin * dx + transform.cos * dy + height / 2.0 - 0.5;
+            int out = offset + (y - top) * stride;
+            switch (interpolation) {
+                case NEAREST:
+                    nearestRow(src, width, height, dst, out, left, right - left, sx, sy, transform);
+                    break;
+                case BILINEAR:
+                    bilinearRow(src, width, height, dst, out, left, right - left, sx, sy, transform);
+                    break;
+                default:
+                    bicubicRow(src, width, height, dst, out, left, right - left, sx, sy, transform);
+                    break;
+            }
+        }
+    }
+
+    private static void nearestRow(int[] src, int width, int height, int[] dst, int out, int left, int count,
+                                   double sx, double sy, Transform transform) {
+        int stepX = (int) Math.round(transform.cos * 65536), stepY = (int) Math.round(transform.sin * 65536);
+        int x16 = (int) Math.round(sx * 65536) + 0x8000 + left * stepX;
+        int y16 = (int) Math.round(sy * 65536) + 0x8000 + left * stepY;
+        for (int i = 0; i < count; i++, x16 += stepX, y16 += stepY) {
+            int x = x16 >> 16, y = y16 >> 16;
+            dst[out + i] = x >= 0 && x < width && y >= 0 && y < height ? src[y * width + x] : 0;
+        }
+    }
+
+    /**
+     * Bilinear sampling in 16.16 fixed point with 8-bit weights. Channels are interpolated in pairs,
+     * red with blue and alpha with green
+     */
+    private static void bilinearRow(int[] src, int width, int height, int[] dst, int out, int left, int count,
+                                    double sx, double sy, Transform transform) {
+        int stepX = (int) Math.round(transform.cos * 65536), stepY = (int) Math.round(transform.sin * 65536);
+        int x16 = (int) Math.round(sx * 65536) + left * stepX, y16 = (int) Math.round(sy * 65536) + left * stepY;
+        for (int i = 0; i < count; i++, x16 += stepX, y16 += stepY) {
+            int x = x16 >> 16, y = y16 >> 16;
+            if (x < -1 || x >= width || y < -1 || y >= height) {
+                dst[out + i] = 0;
+                continue;
+            }
+            int wx = (x16 >> 8) & 0xFF, wy = (y16 >> 8) & 0xFF;
+            int p00, p10, p01, p11;
+            if (x >= 0 && x + 1 < width && y >= 0 && y + 1 < height) {
+                int index = y * width + x;
+                p00 = src[index];
+                p10 = src[index + 1];
+                p01 = src[index + width];
+                p11 = src[index + width + 1];
+            } else {
+                p00 = fetch(src, width, height, x, y);
+                p10 = fetch(src, width, height, x + 1, y);
+                p01 = fetch(src, width, height, x, y + 1);
+                p11 = fetch(src, width, height, x + 1, y + 1);
+            }
+            dst[out + i] = lerp(lerp(p00, p10, wx), lerp(p01, p11, wx), wy);
+        }
+    }
+
+    private static void bicubicRow(int[] src, int width, int height, int[] dst, int out, int left, int count,
+                                   double sx, double sy, Transform transform) {
+        float[] wx = new float[4], wy = new float[4];
+        sx += left * transform.cos;
+        sy += left * transform.sin;
+        for (int i = 0; i < count; i++, sx += transform.cos, sy += transform.sin) {
+            int x = (int) Math.floor(sx), y = (int) Math.floor(sy);
+            if (x < -2 || x > width || y < -2 || y > height) {
+                dst[out + i] = 0;
+                continue;
+            }
+            weights((float) (sx - x), wx);
+            weights((float) (sy - y), wy);
+            boolean inside = x >= 1 && x + 2 < width && y >= 1 && y + 2 < height;
+            float a = 0, r = 0, g = 0, b = 0;
+            for (int j = 0; j < 4; j++) {
+                float ra = 0, rr = 0, rg = 0, rb = 0;
+                int row = (y - 1 + j) * width;
+                for (int k = 0; k < 4; k++) {
+                    int p = inside ? src[row + x - 1 + k] : fetch(src, width, height, x - 1 + k, y - 1 + j);
+                    float w = wx[k];
+                    ra += (p >>> 24) * w;
+                    rr += ((p >> 16) & 0xFF) * w;
+                    rg += ((p >> 8) & 0xFF) * w;
+                    rb += (p & 0xFF) * w;
+                }
+                a += ra * wy[j];
+                r += rr * wy[j];
+                g += rg * wy[j];
+                b += rb * wy[j];
+            }
+            dst[out + i] = (clamp(a) << 24) | (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+        }
+    }
+
+    /**
+     * Catmull-Rom weights of 4 pixels around a sample
+     *
+     * @param t       Distance from the second pixel to a sample, from 0 to 1
+     * @param weights Array for weights
+     */
+    private static void weights(float t, float[] weights) {
+        float t2 = t * t, t3 = t2 * t;
+        weights[0] = -0.5f * t3 + t2 - 0.5f * t;
+        weights[1] = 1.5f * t3 - 2.5f * t2 + 1;
+        weights[2] = -1.5f * t3 + 2 * t2 + 0.5f * t;
+        weights[3] = 0.5f * t3 - 0.5f * t2;
+    }
+
+    /**
+     * Get pixel of a source. Pixel outside of a source has color of the nearest edge and zero alpha,
+     * so edges of the result are smooth and aren't darkened
+     */
+    private static int fetch(int[] src, int width, int height, int x, int y) {
+        int cx = x < 0 ? 0 : x >= width ? width - 1 : x;
+        int cy = y < 0 ? 0 : y >= height ? height - 1 : y;
+        int pixel = src[cy * width + cx];
+        return cx == x && cy == y ? pixel : pixel & 0x00FFFFFF;
+    }
+
+    /**
+     * Interpolate two pixels
+     *
+     * @param a      The first pixel
+     * @param b      The second pixel
+     * @param weight Weight of the second pixel, from 0 to 255
+     * @return Interpolated pixel
+     */
+    private static int lerp(int a, int b, int weight) {
+        int inverse = 256 - weight;
+        int rb = (((a & 0xFF00FF) * inverse + (b & 0xFF00FF) * weight) >>> 8) & 0xFF00FF;
+        int ag = (((a >>> 8) & 0xFF00FF) * inverse + ((b >>> 8) & 0xFF00FF) * weight) & 0xFF00FF00;
+        return ag | rb;
+    }
+
+    private static int clamp(float value) {
+        int result = (int) (value + 0.5f);
+        return result < 0 ? 0 : result > 0xFF ? 0xFF : result;
+    }
+
+    private static int[] prepare(Transform transform, int[] dst) {
+        int size = transform.outWidth * transform.outHeight;
+        if (dst == null || dst.length < size) {
+            dst = new int[size];
+        }
+        return dst;
+    }
+
+    /**
+     * Inverse mapping from a rotated picture to a source
+     */
+    private static class Transform {
+        private final int width, height, outWidth, outHeight;
+        private final double cos, sin;
+
+        private Transform(int width, int height, float degrees) {
+            this.width = width;
+            this.height = height;
+            double angle = degrees % 360;
+            if (angle % 90 == 0) {
+                // Exact values, so sizes and pixels of right rotations aren't distorted by rounding
+                int quarter = (int) ((angle + 360) / 90) % 4;
+                cos = quarter == 0 ? 1 : quarter == 2 ? -1 : 0;
+                sin = quarter == 1 ? 1 : quarter == 3 ? -1 : 0;
+            } else {
+                cos = Math.cos(Math.toRadians(angle));
+                sin = Math.sin(Math.toRadians(angle));
+            }
+            outWidth = (int) Math.round(width * Math.abs(cos) + height * Math.abs(sin));
+            outHeight = (int) Math.round(width * Math.abs(sin) + height * Math.abs(cos));
+        }
+    }
+}
@@ -0,0 +1,11 @@
+/**
+ * Package for work with raw pixels without Android graphics, so it can be benchmarked on a plain JVM <br>
+ * Consists of:
+ * <ul>
+ *     <li>{@link org.telegram.camera.utils.image.Nv21Converter Nv21Converter} - converter of NV21 preview
+ *     frames to ARGB pixels</li>
+ *     <li>{@link org.telegram.camera.utils.image.Rotator Rotator} - rotation of ARGB pixels by an arbitrary
+ *     angle, split into tiles</li>
+ * </ul>
+ */
+package org.telegram.camera.utils.image;
\ No newline at end of file
@@ -0,0 +1,323 @@
+package org.telegram.camera.utils.jpeg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming writer of EXIF orientation tag. It copies JPEG produced by camera to the output
+ * as is, touching only APP1 segment, so picture is saved without decoding and without loss of quality
+ *
+ * @author Danil Kolikov
+ */
+public class ExifWriter {
+    /**
+     * Picture is stored as it should be shown
+     */
+    public static final int ORIENTATION_NORMAL = 1;
+    /**
+     * Picture should be mirrored horizontally
+     */
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    /**
+     * Picture should be rotated by 180 degrees
+     */
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    /**
+     * Picture should be mirrored vertically
+     */
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    /**
+     * Picture should be mirrored horizontally and rotated by 270 degrees clockwise
+     */
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    /**
+     * Picture should be rotated by 90 degrees clockwise
+     */
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    /**
+     * Picture should be mirrored horizontally and rotated by 90 degrees clockwise
+     */
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    /**
+     * Picture should be rotated by 270 degrees clockwise
+     */
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    private static final int MARKER_PREFIX = 0xFF;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TYPE_SHORT = 3;
+    private static final int IFD_ENTRY_SIZE = 12;
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    /**
+     * Get EXIF orientation for a picture
+     *
+     * @param degrees Clockwise rotation that should be applied to a picture to show it
+     * @param mirror  Should picture be mirrored horizontally before rotation (pictures from front camera)
+     * @return Value of EXIF orientation tag
+     */
+    public static int orientationFor(int degrees, boolean mirror) {
+        int normalized = ((degrees % 360) + 360) % 360;
+        switch ((normalized + 45) / 90 % 4) {
+            case 1:
+                return mirror ? ORIENTATION_TRANSVERSE : ORIENTATION_ROTATE_90;
+            case 2:
+                return mirror ? ORIENTATION_FLIP_VERTICAL : ORIENTATION_ROTATE_180;
+            case 3:
+                return mirror ? ORIENTATION_TRANSPOSE : ORIENTATION_ROTATE_270;
+            default:
+                return mirror ? ORIENTATION_FLIP_HORIZONTAL : ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Check if width and height of a picture are swapped when it's shown with specified orientation
+     *
+     * @param orientation Value of EXIF orientation tag
+     * @return True, if picture is rotated by 90 or 270 degrees, False otherwise
+     */
+    public static boolean isTransposed(int orientation) {
+        return orientation >= ORIENTATION_TRANSPOSE && orientation <= ORIENTATION_ROTATE_270;
+    }
+
+    /**
+     * Write JPEG to output stream with specified orientation. If picture already has EXIF orientation tag,
+     * only its value is changed, otherwise new IFD is appended to existing EXIF data or new APP1 segment is created.
+     * All other bytes of a picture are copied without changes
+     *
+     * @param jpeg        Bytes of JPEG picture
+     * @param orientation Value of EXIF orientation tag
+     * @param output      Stream to write picture
+     * @throws IOException If picture is malformed or stream can't be written
+     */
+    public static void write(byte[] jpeg, int orientation, OutputStream output) throws IOException {
+        write(jpeg, jpeg.length, orientation, output);
+    }
+
+    /**
+     * Write JPEG, that takes only beginning of an array, to output stream with specified orientation
+     *
+     * @param jpeg        Buffer with JPEG picture
+     * @param length      Length of a picture
+     * @param orientation Value of EXIF orientation tag
+     * @param output      Stream to write picture
+     * @throws IOException If picture is malformed or stream can't be written
+     * @see #write(byte[], int, OutputStream)
+     */
+    public static void write(byte[] jpeg, int length, int orientation, OutputStream output) throws IOException {
+        if (length < 4 || (jpeg[0] & 0xFF) != MARKER_PREFIX || (jpeg[1] & 0xFF) != MARKER_SOI) {
+            throw new IOException("Not a JPEG");
+        }
+        int insertPosition = 2;
+        int position = 2;
+        while (position + 4 <= length) {
+            if ((jpeg[position] & 0xFF) != MARKER_PREFIX) {
+                throw new IOException("Marker expected at " + position);
+            }
+            int marker = jpeg[position + 1] & 0xFF;
+            if (marker == MARKER_PREFIX) {
+                // Fill byte
+                position++;
+                continue;
+            }
+            if (marker == MARKER_SOS) {
+                break;
+            }
+            int segmentLength = readShort(jpeg, position + 2, true);
+            int payload = position + 4;
+            int end = position + 2 + segmentLength;
+            if (segmentLength < 2 || end > length) {
+                throw new IOException("Malformed segment at " + position);
+            }
+            if (marker == MARKER_APP1 && startsWith(jpeg, payload, end, EXIF_HEADER)) {
+                writeWithExif(jpeg, length, position, payload + EXIF_HEADER.length, end, orientation, output);
+                return;
+            }
+            if (marker == MARKER_APP0 && position == 2) {
+                // JFIF segment must stay the first one
+                insertPosition = end;
+            }
+            position = end;
+        }
+
+        output.write(jpeg, 0, insertPosition);
+        writeSegment(MARKER_APP1, makeExif(orientation), output);
+        output.write(jpeg, insertPosition, length - insertPosition);
+    }
+
+    /**
+     * Write JPEG that already has an EXIF segment
+     *
+     * @param jpeg        Bytes of JPEG
+     * @param length      Length of JPEG
+     * @param segment     Position of APP1 marker
+     * @param tiff        Position of TIFF header inside segment
+     * @param end         Position of the end of segment
+     * @param orientation New orientation
+     * @param output      Stream to write picture
+     * @throws IOException If EXIF is malformed or stream can't be written
+     */
+    private static void writeWithExif(byte[] jpeg, int length, int segment, int tiff, int end, int orientation,
+                                      OutputStream output) throws IOException {
+        if (tiff + 8 > end) {
+            throw new IOException("Malformed TIFF header");
+        }
+        boolean bigEndian = jpeg[tiff] == 'M';
+        int ifdOffset = readInt(jpeg, tiff + 4, bigEndian);
+        int ifd = tiff + ifdOffset;
+        if (ifdOffset < 8 || ifd + 2 > end) {
+            throw new IOException("Malformed IFD0 offset");
+        }
+        int count = readShort(jpeg, ifd, bigEndian);
+        int entries = ifd + 2;
+        if (entries + count * IFD_ENTRY_SIZE + 4 > end) {
+            throw new IOException("Malformed IFD0");
+        }
+        for (int i = 0; i < count; i++) {
+            int entry = entries + i * IFD_ENTRY_SIZE;
+            if (readShort(jpeg, entry, bigEndian) == TAG_ORIENTATION) {
+                // Patch value in place, it's the only changed bytes
+                int value = entry + 8;
+                output.write(jpeg, 0, value);
+                byte[] patched = new byte[2];
+                writeShort(patched, 0, orientation, bigEndian);
+                output.write(patched);
+                output.write(jpeg, value + 2, length - value - 2);
+                return;
+            }
+        }
+
+        // There is no orientation tag. Copy of IFD0 with the tag is appended to the end of segment,
+        // so offsets of all other values stay correct
+        int tiffLength = end - tiff;
+        int padding = tiffLength % 2;
+        int newIfdOffset = tiffLength + padding;
+        int newIfdLength = 2 + (count + 1) * IFD_ENTRY_SIZE + 4;
+        int segmentLength = 2 + EXIF_HEADER.length + newIfdOffset + newIfdLength;
+        if (segmentLength > MAX_SEGMENT_LENGTH) {
+            throw new IOException("EXIF segment is too big");
+        }
+        byte[] header = new byte[8];
+        System.arraycopy(jpeg, tiff, header, 0, 4);
+        writeInt(header, 4, newIfdOffset, bigEndian);
+
+        byte[] newIfd = new byte[padding + newIfdLength];
+        int pos = padding;
+        writeShort(newIfd, pos, count + 1, bigEndian);
+        pos += 2;
+        boolean inserted = false;
+        for (int i = 0; i < count; i++) {
+            int entry = entries + i * IFD_ENTRY_SIZE;
+            // Entries in IFD are sorted by tag
+            if (!inserted && readShort(jpeg, entry, bigEndian) > TAG_ORIENTATION) {
+                writeOrientationEntry(newIfd, pos, orientation, bigEndian);
+                pos += IFD_ENTRY_SIZE;
+                inserted = true;
+            }
+            System.arraycopy(jpeg, entry, newIfd, pos, IFD_ENTRY_SIZE);
+            pos += IFD_ENTRY_SIZE;
+        }
+        if (!inserted) {
+            writeOrientationEntry(newIfd, pos, orientation, bigEndian);
+            pos += IFD_ENTRY_SIZE;
+        }
+        // Link to the next IFD
+        System.arraycopy(jpeg, entries + count * IFD_ENTRY_SIZE, newIfd, pos, 4);
+
+        output.write(jpeg, 0, segment);
+        output.write(MARKER_PREFIX);
+        output.write(MARKER_APP1);
+        output.write(segmentLength >> 8);
+        output.write(segmentLength & 0xFF);
+        output.write(EXIF_HEADER);
+        output.write(header);
+        output.write(jpeg, tiff + 8, tiffLength - 8);
+        output.write(newIfd);
+        output.write(jpeg, end, length - end);
+    }
+
+    /**
+     * Make payload of minimal APP1 segment with only orientation tag
+     *
+     * @param orientation Value of orientation tag
+     * @return Payload of a segment
+     */
+    private static byte[] makeExif(int orientation) {
+        byte[] exif = new byte[EXIF_HEADER.length + 8 + 2 + IFD_ENTRY_SIZE + 4];
+        System.arraycopy(EXIF_HEADER, 0, exif, 0, EXIF_HEADER.length);
+        int tiff = EXIF_HEADER.length;
+        exif[tiff] = 'M';
+        exif[tiff + 1] = 'M';
+        writeShort(exif, tiff + 2, 42, true);
+        writeInt(exif, tiff + 4, 8, true);
+        writeShort(exif, tiff + 8, 1, true);
+        writeOrientationEntry(exif, tiff + 10, orientation, true);
+        writeInt(exif, tiff + 10 + IFD_ENTRY_SIZE, 0, true);
+        return exif;
+    }
+
+    /**
+     * Write segment with specified marker
+     *
+     * @param marker  Marker of a segment
+     * @param payload Data of a segment
+     * @param output  Stream to write segment
+     * @throws IOException If stream can't be written
+     */
+    private static void writeSegment(int marker, byte[] payload, OutputStream output) throws IOException {
+        int length = payload.length + 2;
+        output.write(MARKER_PREFIX);
+        output.write(marker);
+        output.write(length >> 8);
+        output.write(length & 0xFF);
+        output.write(payload);
+    }
+
+    private static void writeOrientationEntry(byte[] buffer, int offset, int orientation, boolean bigEndian) {
+        writeShort(buffer, offset, TAG_ORIENTATION, bigEndian);
+        writeShort(buffer, offset + 2, TYPE_SHORT, bigEndian);
+        writeInt(buffer, offset + 4, 1, bigEndian);
+        writeShort(buffer, offset + 8, orientation, bigEndian);
+        writeShort(buffer, offset + 10, 0, bigEndian);
+    }
+
+    private static boolean startsWith(byte[] data, int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readShort(byte[] data, int offset, boolean bigEndian) {
+        int a = data[offset] & 0xFF;
+        int b = data[offset + 1] & 0xFF;
+        return bigEndian ? (a << 8) | b : (b << 8) | a;
+    }
+
+    private static int readInt(byte[] data, int offset, boolean bigEndian) {
+        int high = readShort(data, offset + (bigEndian ? 0 : 2), bigEndian);
+        int low = readShort(data, offset + (bigEndian ? 2 : 0), bigEndian);
+        return (high << 16) | low;
+    }
+
+    private static void writeShort(byte[] data, int offset, int value, boolean bigEndian) {
+        data[offset + (bigEndian ? 0 : 1)] = (byte) (value >> 8);
+        data[offset + (bigEndian ? 1 : 0)] = (byte) value;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value, boolean bigEndian) {
+        writeShort(data, offset + (bigEndian ? 0 : 2), value >>> 16, bigEndian);
+        writeShort(data, offset + (bigEndian ? 2 : 0), value & 0xFFFF, bigEndian);
+    }
+}
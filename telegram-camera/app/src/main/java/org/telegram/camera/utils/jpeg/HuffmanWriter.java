@@ -0,0 +1,172 @@
+package org.telegram.camera.utils.jpeg;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.telegram.camera.utils.jpeg.JpegCoefficients.BLOCK_SIZE;
+import static org.telegram.camera.utils.jpeg.JpegCoefficients.ZIGZAG;
+
+/**
+ * Writer of entropy-coded data of baseline JPEG with standard Huffman tables from Annex K
+ * of the specification. Subclasses decide where bytes go
+ *
+ * @author Danil Kolikov
+ */
+abstract class HuffmanWriter {
+    private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    static final Table DC_LUMINANCE = new Table(DC_LUMINANCE_BITS, DC_VALUES);
+    static final Table DC_CHROMINANCE = new Table(DC_CHROMINANCE_BITS, DC_VALUES);
+    static final Table AC_LUMINANCE = new Table(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    static final Table AC_CHROMINANCE = new Table(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    private int buffer, bits;
+
+    /**
+     * Get payload of DHT segment with standard tables. Luminance tables have index 0, chrominance ones have 1
+     *
+     * @param chrominance True, if chrominance tables are needed too
+     * @return Payload
+     */
+    static byte[] getTables(boolean chrominance) {
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        DC_LUMINANCE.write(0x00, tables);
+        AC_LUMINANCE.write(0x10, tables);
+        if (chrominance) {
+            DC_CHROMINANCE.write(0x01, tables);
+            AC_CHROMINANCE.write(0x11, tables);
+        }
+        return tables.toByteArray();
+    }
+
+    /**
+     * Write block of quantized coefficients in natural order
+     *
+     * @param block      Coefficients
+     * @param prediction Prediction of DC coefficient
+     * @param dc         Table for DC coefficient
+     * @param ac         Table for AC coefficients
+     * @return New prediction of DC coefficient
+     */
+    int writeBlock(int[] block, int prediction, Table dc, Table ac) {
+        int difference = block[0] - prediction;
+        int size = bitCount(difference);
+        write(dc.codes[size], dc.lengths[size]);
+        write(difference < 0 ? difference - 1 : difference, size);
+        int run = 0;
+        for (int k = 1; k < BLOCK_SIZE; k++) {
+            int value = block[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            for (; run > 15; run -= 16) {
+                write(ac.codes[0xF0], ac.lengths[0xF0]);
+            }
+            size = bitCount(value);
+            int symbol = run << 4 | size;
+            write(ac.codes[symbol], ac.lengths[symbol]);
+            write(value < 0 ? value - 1 : value, size);
+            run = 0;
+        }
+        if (run > 0) {
+            write(ac.codes[0], ac.lengths[0]);
+        }
+        return block[0];
+    }
+
+    /**
+     * Pad last byte with ones, e.g. before a marker
+     */
+    void pad() {
+        if (bits > 0) {
+            write(0x7F, 8 - bits);
+        }
+    }
+
+    /**
+     * Put byte of entropy-coded data. 0xFF must be followed by stuffed zero
+     *
+     * @param b Byte
+     */
+    abstract void put(int b);
+
+    private static int bitCount(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    private void write(int value, int count) {
+        buffer = buffer << count | (value & ((1 << count) - 1));
+        bits += count;
+        while (bits >= 8) {
+            bits -= 8;
+            put((buffer >> bits) & 0xFF);
+        }
+    }
+
+    /**
+     * Huffman table for encoding
+     */
+    static class Table {
+        private final int[] bits, values;
+        private final int[] codes = new int[256];
+        private final int[] lengths = new int[256];
+
+        private Table(int[] bits, int[] values) {
+            this.bits = bits;
+            this.values = values;
+            int code = 0, index = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < bits[length - 1]; i++, index++, code++) {
+                    codes[values[index]] = code;
+                    lengths[values[index]] = length;
+                }
+                code <<= 1;
+            }
+        }
+
+        /**
+         * Write table to DHT segment
+         *
+         * @param id     Class and index of a table
+         * @param output Payload of a segment
+         */
+        private void write(int id, ByteArrayOutputStream output) {
+            output.write(id);
+            for (int count : bits) {
+                output.write(count);
+            }
+            for (int value : values) {
+                output.write(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package org.telegram.camera.utils.jpeg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Quantized DCT coefficients of a baseline JPEG. Entropy-coded data is decoded only to coefficients,
+ * without dequantization and inverse DCT, so they can be transformed and written back without loss.
+ * Restart intervals are independent, so they're decoded in parallel
+ *
+ * @author Danil Kolikov
+ */
+class JpegCoefficients {
+    /**
+     * Natural order index of the coefficient with specified zigzag index
+     */
+    static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+    static final int BLOCK_SIZE = 64;
+
+    static final int MARKER_PREFIX = 0xFF;
+    static final int MARKER_SOF0 = 0xC0;
+    static final int MARKER_SOF1 = 0xC1;
+    static final int MARKER_DHT = 0xC4;
+    static final int MARKER_RST0 = 0xD0;
+    static final int MARKER_RST7 = 0xD7;
+    static final int MARKER_SOI = 0xD8;
+    static final int MARKER_EOI = 0xD9;
+    static final int MARKER_SOS = 0xDA;
+    static final int MARKER_DQT = 0xDB;
+    static final int MARKER_DRI = 0xDD;
+    static final int MARKER_APP0 = 0xE0;
+    static final int MARKER_APP15 = 0xEF;
+    static final int MARKER_COM = 0xFE;
+
+    /**
+     * Restart intervals that are decoded by one task
+     */
+    private static final int TASKS_PER_THREAD = 4;
+
+    int width, height;
+    int maxH, maxV;
+    int mcusX, mcusY;
+    Component[] components;
+    /**
+     * Quantization tables in natural order, null if table isn't defined
+     */
+    final int[][] quantTables = new int[4][];
+    final boolean[] quantPrecise = new boolean[4];
+    /**
+     * APPn and COM segments with markers, they're copied to transformed picture
+     */
+    final List<byte[]> segments = new ArrayList<byte[]>();
+
+    private final HuffmanTable[] dcTables = new HuffmanTable[4];
+    private final HuffmanTable[] acTables = new HuffmanTable[4];
+    private int restartInterval;
+
+    private JpegCoefficients() {
+    }
+
+    /**
+     * Read coefficients of a picture
+     *
+     * @param jpeg     Bytes of a picture
+     * @param executor Executor for restart intervals, or null to decode on the calling thread
+     * @return Coefficients
+     * @throws IOException If picture is malformed or isn't baseline sequential JPEG
+     */
+    static JpegCoefficients read(byte[] jpeg, ExecutorService executor) throws IOException {
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != MARKER_PREFIX || (jpeg[1] & 0xFF) != MARKER_SOI) {
+            throw new IOException("Not a JPEG");
+        }
+        JpegCoefficients result = new JpegCoefficients();
+        int position = 2;
+        while (position + 2 <= jpeg.length) {
+            if ((jpeg[position] & 0xFF) != MARKER_PREFIX) {
+                throw new IOException("Marker expected at " + position);
+            }
+            int marker = jpeg[position + 1] & 0xFF;
+            if (marker == MARKER_PREFIX) {
+                // Fill byte
+                position++;
+                continue;
+            }
+            if (marker == MARKER_EOI) {
+                break;
+            }
+            if (position + 4 > jpeg.length) {
+                throw new IOException("Truncated segment at " + position);
+            }
+            int end = position + 2 + readShort(jpeg, position + 2);
+            int payload = position + 4;
+            if (end < payload || end > jpeg.length) {
+                throw new IOException("Malformed segment at " + position);
+            }
+            if (marker == MARKER_SOF0 || marker == MARKER_SOF1) {
+                result.readFrame(jpeg, payload);
+            } else if (marker >= MARKER_SOF0 && marker <= 0xCF && marker != MARKER_DHT && marker != 0xC8
+                    && marker != 0xCC) {
+                throw new IOException("Only baseline JPEG is supported, SOF " + Integer.toHexString(marker));
+            } else if (marker == MARKER_DHT) {
+                result.readHuffmanTables(jpeg, payload, end);
+            } else if (marker == MARKER_DQT) {
+                result.readQuantTables(jpeg, payload, end);
+            } else if (marker == MARKER_DRI) {
+                result.restartInterval = readShort(jpeg, payload);
+            } else if ((marker >= MARKER_APP0 && marker <= MARKER_APP15) || marker == MARKER_COM) {
+                byte[] segment = new byte[end - position];
+                System.arraycopy(jpeg, position, segment, 0, segment.length);
+                result.segments.add(segment);
+            } else if (marker == MARKER_SOS) {
+                end = result.readScan(jpeg, payload, executor);
+            }
+            position = end;
+        }
+        if (result.components == null) {
+            throw new IOException("There is no frame");
+        }
+        return result;
+    }
+
+    /**
+     * Read SOF segment and allocate coefficients
+     */
+    private void readFrame(byte[] jpeg, int payload) throws IOException {
+        if (components != null) {
+            throw new IOException("Only one frame is supported");
+        }
+        if ((jpeg[payload] & 0xFF) != 8) {
+            throw new IOException("Only 8-bit precision is supported");
+        }
+        height = readShort(jpeg, payload + 1);
+        width = readShort(jpeg, payload + 3);
+        int count = jpeg[payload + 5] & 0xFF;
+        if (width == 0 || height == 0 || count == 0) {
+            throw new IOException("Unsupported frame " + width + "x" + height + ", " + count + " components");
+        }
+        components = new Component[count];
+        maxH = maxV = 1;
+        for (int i = 0; i < count; i++) {
+            int offset = payload + 6 + i * 3;
+            Component component = new Component();
+            component.id = jpeg[offset] & 0xFF;
+            // Sampling factors don't change layout of a single component
+            component.h = count == 1 ? 1 : (jpeg[offset + 1] & 0xFF) >> 4;
+            component.v = count == 1 ? 1 : jpeg[offset + 1] & 0x0F;
+            component.quantTable = jpeg[offset + 2] & 0x03;
+            if (component.h < 1 || component.h > 4 || component.v < 1 || component.v > 4) {
+                throw new IOException("Malformed sampling factors of component " + component.id);
+            }
+            maxH = Math.max(maxH, component.h);
+            maxV = Math.max(maxV, component.v);
+            components[i] = component;
+        }
+        mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+        mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+        for (Component component : components) {
+            component.blocksWide = mcusX * component.h;
+            component.blocksHigh = mcusY * component.v;
+            component.coefficients = new short[component.blocksWide * component.blocksHigh * BLOCK_SIZE];
+        }
+    }
+
+    private void readHuffmanTables(byte[] jpeg, int position, int end) throws IOException {
+        while (position < end) {
+            int type = (jpeg[position] & 0xFF) >> 4;
+            int index = jpeg[position] & 0x03;
+            if (position + 17 > end) {
+                throw new IOException("Malformed Huffman table");
+            }
+            int[] bits = new int[16];
+            int count = 0;
+            for (int i = 0; i < 16; i++) {
+                bits[i] = jpeg[position + 1 + i] & 0xFF;
+                count += bits[i];
+            }
+            position += 17;
+            if (position + count > end) {
+                throw new IOException("Malformed Huffman table");
+            }
+            int[] values = new int[count];
+            for (int i = 0; i < count; i++) {
+                values[i] = jpeg[position + i] & 0xFF;
+            }
+            position += count;
+            (type == 0 ? dcTables : acTables)[index] = new HuffmanTable(bits, values);
+        }
+    }
+
+    private void readQuantTables(byte[] jpeg, int position, int end) throws IOException {
+        while (position < end) {
+            boolean precise = (jpeg[position] & 0xFF) >> 4 != 0;
+            int index = jpeg[position] & 0x03;
+            position++;
+            if (position + (precise ? 128 : 64) > end) {
+                throw new IOException("Malformed quantization table");
+            }
+            int[] table = new int[BLOCK_SIZE];
+            for (int i = 0; i < BLOCK_SIZE; i++) {
+                table[ZIGZAG[i]] = precise ? readShort(jpeg, position + 2 * i) : jpeg[position + i] & 0xFF;
+            }
+            position += precise ? 128 : 64;
+            quantTables[index] = table;
+            quantPrecise[index] = precise;
+        }
+    }
+
+    /**
+     * Read SOS segment and decode its entropy-coded data
+     *
+     * @return Position of the marker after the data
+     */
+    private int readScan(byte[] jpeg, int payload, ExecutorService executor) throws IOException {
+        if (components == null) {
+            throw new IOException("Scan before frame");
+        }
+        int count = jpeg[payload] & 0xFF;
+        final Component[] scan = new Component[count];
+        final HuffmanTable[] dc = new HuffmanTable[count];
+        final HuffmanTable[] ac = new HuffmanTable[count];
+        for (int i = 0; i < count; i++) {
+            int id = jpeg[payload + 1 + 2 * i] & 0xFF;
+            for (Component component : components) {
+                if (component.id == id) {
+                    scan[i] = component;
+                }
+            }
+            dc[i] = dcTables[(jpeg[payload + 2 + 2 * i] & 0xFF) >> 4 & 0x03];
+            ac[i] = acTables[jpeg[payload + 2 + 2 * i] & 0x03];
+            if (scan[i] == null || dc[i] == null || ac[i] == null) {
+                throw new IOException("Scan references undefined component or table");
+            }
+        }
+        final int total;
+        if (count == 1) {
+            Component component = scan[0];
+            total = component.getRealBlocksWide(this) * component.getRealBlocksHigh(this);
+        } else {
+            total = mcusX * mcusY;
+        }
+
+        // Split data into restart intervals, every one of them starts with zero predictions
+        int start = payload + 1 + 2 * count + 3;
+        final List<int[]> intervals = new ArrayList<int[]>();
+        int position = start;
+        while (true) {
+            if (position + 1 >= jpeg.length) {
+                intervals.add(new int[]{start, jpeg.length});
+                position = jpeg.length;
+                break;
+            }
+            if ((jpeg[position] & 0xFF) != MARKER_PREFIX) {
+                position++;
+                continue;
+            }
+            int next = jpeg[position + 1] & 0xFF;
+            if (next == 0) {
+                position += 2;
+            } else if (next == MARKER_PREFIX) {
+                position++;
+            } else if (next >= MARKER_RST0 && next <= MARKER_RST7) {
+                intervals.add(new int[]{start, position});
+                position += 2;
+                start = position;
+            } else {
+                intervals.add(new int[]{start, position});
+                break;
+            }
+        }
+        final int interval = restartInterval == 0 ? total : restartInterval;
+        if ((long) intervals.size() * interval < total) {
+            throw new IOException("Scan is truncated: " + intervals.size() + " restart intervals");
+        }
+
+        final byte[] data = jpeg;
+        int threads = executor == null ? 1 : Runtime.getRuntime().availableProcessors();
+        int perTask = Math.max(1, intervals.size() / (threads * TASKS_PER_THREAD));
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int first = 0; first < intervals.size(); first += perTask) {
+            final int from = first, to = Math.min(intervals.size(), first + perTask);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int i = from; i < to; i++) {
+                        int[] bounds = intervals.get(i);
+                        decodeInterval(data, bounds[0], bounds[1], scan, dc, ac,
+                                i * interval, Math.min(total, (i + 1) * interval));
+                    }
+                    return null;
+                }
+            });
+        }
+        run(tasks, executor);
+        return position;
+    }
+
+    /**
+     * Decode MCUs of one restart interval
+     */
+    private void decodeInterval(byte[] jpeg, int start, int end, Component[] scan, HuffmanTable[] dc,
+                                HuffmanTable[] ac, int firstMcu, int lastMcu) throws IOException {
+        BitReader reader = new BitReader(jpeg, start, end);
+        int[] predictions = new int[scan.length];
+        for (int mcu = firstMcu; mcu < lastMcu; mcu++) {
+            if (scan.length == 1) {
+                Component component = scan[0];
+                int realWide = component.getRealBlocksWide(this);
+                int block = (mcu / realWide) * component.blocksWide + mcu % realWide;
+                predictions[0] = decodeBlock(reader, component.coefficients, block * BLOCK_SIZE, dc[0], ac[0],
+                        predictions[0]);
+                continue;
+            }
+            int mcuX = mcu % mcusX, mcuY = mcu / mcusX;
+            for (int i = 0; i < scan.length; i++) {
+                Component component = scan[i];
+                for (int v = 0; v < component.v; v++) {
+                    int row = (mcuY * component.v + v) * component.blocksWide + mcuX * component.h;
+                    for (int h = 0; h < component.h; h++) {
+                        predictions[i] = decodeBlock(reader, component.coefficients, (row + h) * BLOCK_SIZE,
+                                dc[i], ac[i], predictions[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decode coefficients of one block to natural order
+     *
+     * @return New prediction of DC coefficient
+     */
+    private static int decodeBlock(BitReader reader, short[] coefficients, int offset, HuffmanTable dc,
+                                   HuffmanTable ac, int prediction) throws IOException {
+        int size = dc.decode(reader);
+        int value = prediction + (size == 0 ? 0 : extend(reader.read(size), size));
+        coefficients[offset] = (short) value;
+        for (int k = 1; k < BLOCK_SIZE; k++) {
+            int symbol = ac.decode(reader);
+            int run = symbol >> 4;
+            size = symbol & 0x0F;
+            if (size == 0) {
+                if (run != 15) {
+                    break;
+                }
+                k += 15;
+                continue;
+            }
+            k += run;
+            if (k >= BLOCK_SIZE) {
+                throw new IOException("Corrupted block");
+            }
+            coefficients[offset + ZIGZAG[k]] = (short) extend(reader.read(size), size);
+        }
+        return value;
+    }
+
+    private static int extend(int value, int size) {
+        return value < 1 << (size - 1) ? value - (1 << size) + 1 : value;
+    }
+
+    /**
+     * Run tasks on executor or on the calling thread
+     *
+     * @param tasks    Tasks
+     * @param executor Executor or null
+     * @throws IOException If one of the tasks failed
+     */
+    static void run(List<Callable<Void>> tasks, ExecutorService executor) throws IOException {
+        try {
+            if (executor == null) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            List<Future<Void>> futures = executor.invokeAll(tasks);
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Can't process JPEG", e.getCause());
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (Exception e) {
+            throw new IOException("Can't process JPEG", e);
+        }
+    }
+
+    static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | (data[offset + 1] & 0xFF);
+    }
+
+    /**
+     * Component of a frame. Coefficients are kept for the whole grid of MCUs, blocks out of
+     * the picture are padding
+     */
+    static class Component {
+        int id, h, v, quantTable;
+        int blocksWide, blocksHigh;
+        short[] coefficients;
+
+        /**
+         * Get number of blocks in a row that cover the picture, without padding to MCU
+         */
+        int getRealBlocksWide(JpegCoefficients frame) {
+            return ((frame.width * h + frame.maxH - 1) / frame.maxH + 7) / 8;
+        }
+
+        /**
+         * Get number of blocks in a column that cover the picture, without padding to MCU
+         */
+        int getRealBlocksHigh(JpegCoefficients frame) {
+            return ((frame.height * v + frame.maxV - 1) / frame.maxV + 7) / 8;
+        }
+    }
+
+    /**
+     * Huffman table for decoding. Codes up to {@link #LOOKUP_BITS} are decoded with one lookup
+     */
+    private static class HuffmanTable {
+        private static final int LOOKUP_BITS = 9;
+        private final int[] lookup = new int[1 << LOOKUP_BITS];
+        private final int[] maxCode = new int[17];
+        private final int[] offsets = new int[17];
+        private final int[] values;
+
+        private HuffmanTable(int[] bits, int[] values) {
+            this.values = values;
+            int code = 0, index = 0;
+            for (int length = 1; length <= 16; length++) {
+                offsets[length] = index - code;
+                for (int i = 0; i < bits[length - 1]; i++, index++, code++) {
+                    if (length <= LOOKUP_BITS) {
+                        int shift = LOOKUP_BITS - length;
+                        for (int j = 0; j < 1 << shift; j++) {
+                            lookup[(code << shift) | j] = length << 8 | values[index];
+                        }
+                    }
+                }
+                maxCode[length] = bits[length - 1] == 0 ? -1 : code - 1;
+                code <<= 1;
+            }
+        }
+
+        private int decode(BitReader reader) throws IOException {
+            int entry = lookup[reader.peek(LOOKUP_BITS)];
+            if (entry != 0) {
+                reader.skip(entry >> 8);
+                return entry & 0xFF;
+            }
+            for (int length = LOOKUP_BITS + 1; length <= 16; length++) {
+                int code = reader.peek(length);
+                if (code <= maxCode[length]) {
+                    reader.skip(length);
+                    return values[code + offsets[length]];
+                }
+            }
+            throw new IOException("Bad Huffman code");
+        }
+    }
+
+    /**
+     * Reader of bits from entropy-coded data without markers. Stuffed zero bytes are skipped,
+     * data after the end is read as zeros
+     */
+    private static class BitReader {
+        private final byte[] data;
+        private final int end;
+        private int position;
+        private long buffer;
+        private int bits;
+
+        private BitReader(byte[] data, int start, int end) {
+            this.data = data;
+            this.end = end;
+            position = start;
+        }
+
+        private void fill() {
+            while (bits <= 48) {
+                int b = 0;
+                if (position < end) {
+                    b = data[position++] & 0xFF;
+                    if (b == MARKER_PREFIX && position < end && data[position] == 0) {
+                        position++;
+                    }
+                }
+                buffer = buffer << 8 | b;
+                bits += 8;
+            }
+        }
+
+        private int peek(int count) {
+            if (bits < count) {
+                fill();
+            }
+            return (int) (buffer >>> (bits - count)) & ((1 << count) - 1);
+        }
+
+        private void skip(int count) {
+            bits -= count;
+        }
+
+        private int read(int count) {
+            int value = peek(count);
+            bits -= count;
+            return value;
+        }
+    }
+}
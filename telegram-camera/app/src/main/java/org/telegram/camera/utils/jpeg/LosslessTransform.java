@@ -0,0 +1,435 @@
+package org.telegram.camera.utils.jpeg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.telegram.camera.utils.jpeg.JpegCoefficients.BLOCK_SIZE;
+import static org.telegram.camera.utils.jpeg.JpegCoefficients.ZIGZAG;
+
+/**
+ * Lossless rotation and mirroring of baseline JPEG, like jpegtran does. Picture is decoded only
+ * to quantized DCT coefficients, blocks are moved and coefficients inside them are transposed
+ * and negated, then they're encoded again with the same quantization. Every output MCU row is
+ * a restart interval, so rows are encoded in parallel. Partial MCUs on the edges that would become
+ * top or left ones are trimmed, like with "jpegtran -trim"
+ *
+ * @author Danil Kolikov
+ */
+public class LosslessTransform {
+    /**
+     * Transformations of a picture. Every one is a matrix that maps centered coordinates
+     * (x, y), where y is directed down, to (a * x + b * y, c * x + d * y)
+     */
+    public enum Transform {
+        NONE(1, 0, 0, 1),
+        FLIP_HORIZONTAL(-1, 0, 0, 1),
+        FLIP_VERTICAL(1, 0, 0, -1),
+        TRANSPOSE(0, 1, 1, 0),
+        TRANSVERSE(0, -1, -1, 0),
+        ROTATE_90(0, -1, 1, 0),
+        ROTATE_180(-1, 0, 0, -1),
+        ROTATE_270(0, 1, -1, 0);
+
+        private final int a, b, c, d;
+
+        Transform(int a, int b, int c, int d) {
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+        }
+
+        /**
+         * Get transformation that shows picture with specified orientation normally
+         *
+         * @param orientation EXIF orientation
+         * @return Transformation
+         */
+        public static Transform forOrientation(int orientation) {
+            switch (orientation) {
+                case ExifWriter.ORIENTATION_FLIP_HORIZONTAL:
+                    return FLIP_HORIZONTAL;
+                case ExifWriter.ORIENTATION_ROTATE_180:
+                    return ROTATE_180;
+                case ExifWriter.ORIENTATION_FLIP_VERTICAL:
+                    return FLIP_VERTICAL;
+                case ExifWriter.ORIENTATION_TRANSPOSE:
+                    return TRANSPOSE;
+                case ExifWriter.ORIENTATION_ROTATE_90:
+                    return ROTATE_90;
+                case ExifWriter.ORIENTATION_TRANSVERSE:
+                    return TRANSVERSE;
+                case ExifWriter.ORIENTATION_ROTATE_270:
+                    return ROTATE_270;
+                default:
+                    return NONE;
+            }
+        }
+
+        /**
+         * Get rotation by right angle
+         *
+         * @param degrees Clockwise angle, multiple of 90
+         * @return Transformation
+         */
+        public static Transform forRotation(int degrees) {
+            switch (((degrees % 360) + 360) % 360) {
+                case 90:
+                    return ROTATE_90;
+                case 180:
+                    return ROTATE_180;
+                case 270:
+                    return ROTATE_270;
+                case 0:
+                    return NONE;
+                default:
+                    throw new IllegalArgumentException("Not a right angle: " + degrees);
+            }
+        }
+
+        /**
+         * Compose transformations
+         *
+         * @param next Transformation that is applied after this one
+         * @return Transformation that is equal to this one followed by next one
+         */
+        public Transform then(Transform next) {
+            int a = next.a * this.a + next.b * this.c;
+            int b = next.a * this.b + next.b * this.d;
+            int c = next.c * this.a + next.d * this.c;
+            int d = next.c * this.b + next.d * this.d;
+            for (Transform transform : values()) {
+                if (transform.a == a && transform.b == b && transform.c == c && transform.d == d) {
+                    return transform;
+                }
+            }
+            throw new IllegalStateException("Transformations aren't closed");
+        }
+
+        /**
+         * Check if width and height are swapped by transformation
+         *
+         * @return True, if axes are swapped
+         */
+        public boolean isTransposing() {
+            return a == 0;
+        }
+
+        /**
+         * Check if columns of a source become reversed
+         */
+        private boolean isSourceXReversed() {
+            return isTransposing() ? c < 0 : a < 0;
+        }
+
+        /**
+         * Check if rows of a source become reversed
+         */
+        private boolean isSourceYReversed() {
+            return isTransposing() ? b < 0 : d < 0;
+        }
+    }
+
+    /**
+     * Transform JPEG without loss of quality
+     *
+     * @param jpeg        Bytes of baseline JPEG
+     * @param transform   Transformation
+     * @param orientation EXIF orientation of a result
+     * @param output      Stream to write result
+     * @param executor    Executor for restart intervals and MCU rows, or null to work on the calling thread
+     * @throws IOException If picture is malformed, isn't baseline JPEG, or stream can't be written
+     */
+    public static void transform(byte[] jpeg, Transform transform, int orientation, OutputStream output,
+                                 ExecutorService executor) throws IOException {
+        final JpegCoefficients source = JpegCoefficients.read(jpeg, executor);
+        final boolean transposing = transform.isTransposing();
+        // Partial MCUs can stay only on the right and bottom edges
+        int width = source.width, height = source.height;
+        if (transform.isSourceXReversed()) {
+            width -= width % (8 * source.maxH);
+        }
+        if (transform.isSourceYReversed()) {
+            height -= height % (8 * source.maxV);
+        }
+        if (width == 0 || height == 0) {
+            throw new IOException("Picture is smaller than MCU");
+        }
+        final Target target = new Target(source, transform, transposing ? height : width,
+                transposing ? width : height);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        writeHeader(source, target, header);
+        // Orientation is set in copied EXIF segment or new one is created
+        ExifWriter.write(header.toByteArray(), orientation, output);
+
+        List<Callable<byte[]>> rows = new ArrayList<Callable<byte[]>>();
+        for (int mcuY = 0; mcuY < target.mcusY; mcuY++) {
+            final int row = mcuY;
+            rows.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return target.encodeRow(row);
+                }
+            });
+        }
+        if (executor == null) {
+            for (int row = 0; row < target.mcusY; row++) {
+                writeRow(target.encodeRow(row), row, target.mcusY, output);
+            }
+        } else {
+            // Rows are written in order as soon as they're ready
+            List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+            for (Callable<byte[]> row : rows) {
+                futures.add(executor.submit(row));
+            }
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    writeRow(futures.get(i).get(), i, futures.size(), output);
+                }
+            } catch (ExecutionException e) {
+                throw new IOException("Can't encode row", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            } finally {
+                for (Future<byte[]> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+        output.write(JpegCoefficients.MARKER_PREFIX);
+        output.write(JpegCoefficients.MARKER_EOI);
+    }
+
+    private static void writeRow(byte[] data, int row, int rows, OutputStream output) throws IOException {
+        output.write(data);
+        if (row != rows - 1) {
+            output.write(JpegCoefficients.MARKER_PREFIX);
+            output.write(JpegCoefficients.MARKER_RST0 + row % 8);
+        }
+    }
+
+    /**
+     * Write all segments before entropy-coded data
+     */
+    private static void writeHeader(JpegCoefficients source, Target target, ByteArrayOutputStream output)
+            throws IOException {
+        output.write(JpegCoefficients.MARKER_PREFIX);
+        output.write(JpegCoefficients.MARKER_SOI);
+        for (byte[] segment : source.segments) {
+            output.write(segment);
+        }
+
+        boolean precise = false;
+        for (int i = 0; i < source.quantTables.length; i++) {
+            int[] table = source.quantTables[i];
+            if (table == null) {
+                continue;
+            }
+            precise |= source.quantPrecise[i];
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write((source.quantPrecise[i] ? 0x10 : 0) | i);
+            for (int k = 0; k < BLOCK_SIZE; k++) {
+                int index = ZIGZAG[k];
+                // Table of transposed blocks is transposed too
+                int value = table[target.transposing ? (index % 8) * 8 + index / 8 : index];
+                if (source.quantPrecise[i]) {
+                    payload.write(value >> 8);
+                }
+                payload.write(value);
+            }
+            writeSegment(JpegCoefficients.MARKER_DQT, payload.toByteArray(), output);
+        }
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(8);
+        writeShort(target.height, frame);
+        writeShort(target.width, frame);
+        frame.write(target.components.length);
+        for (int i = 0; i < target.components.length; i++) {
+            frame.write(source.components[i].id);
+            frame.write(target.components[i].h << 4 | target.components[i].v);
+            frame.write(source.components[i].quantTable);
+        }
+        writeSegment(precise ? JpegCoefficients.MARKER_SOF1 : JpegCoefficients.MARKER_SOF0, frame.toByteArray(),
+                output);
+
+        writeSegment(JpegCoefficients.MARKER_DHT, HuffmanWriter.getTables(target.components.length > 1), output);
+
+        ByteArrayOutputStream restart = new ByteArrayOutputStream();
+        writeShort(target.mcusX, restart);
+        writeSegment(JpegCoefficients.MARKER_DRI, restart.toByteArray(), output);
+
+        ByteArrayOutputStream scan = new ByteArrayOutputStream();
+        scan.write(target.components.length);
+        for (int i = 0; i < target.components.length; i++) {
+            scan.write(source.components[i].id);
+            scan.write(i == 0 ? 0x00 : 0x11);
+        }
+        scan.write(0);
+        scan.write(63);
+        scan.write(0);
+        writeSegment(JpegCoefficients.MARKER_SOS, scan.toByteArray(), output);
+    }
+
+    static void writeSegment(int marker, byte[] payload, ByteArrayOutputStream output) throws IOException {
+        output.write(JpegCoefficients.MARKER_PREFIX);
+        output.write(marker);
+        writeShort(payload.length + 2, output);
+        output.write(payload);
+    }
+
+    static void writeShort(int value, ByteArrayOutputStream output) {
+        output.write(value >> 8);
+        output.write(value & 0xFF);
+    }
+
+    /**
+     * Layout of transformed picture
+     */
+    private static class Target {
+        private final JpegCoefficients source;
+        private final boolean transposing, reverseX, reverseY;
+        private final int width, height;
+        private final int mcusX, mcusY;
+        private final JpegCoefficients.Component[] components;
+        /**
+         * Natural index of source coefficient and its sign for every coefficient of output block
+         */
+        private final int[] sourceIndex = new int[BLOCK_SIZE];
+        private final int[] sign = new int[BLOCK_SIZE];
+
+        private Target(JpegCoefficients source, Transform transform, int width, int height) {
+            this.source = source;
+            this.width = width;
+            this.height = height;
+            transposing = transform.isTransposing();
+            reverseX = transform.isSourceXReversed();
+            reverseY = transform.isSourceYReversed();
+            int maxH = transposing ? source.maxV : source.maxH;
+            int maxV = transposing ? source.maxH : source.maxV;
+            mcusX = (width + 8 * maxH - 1) / (8 * maxH);
+            mcusY = (height + 8 * maxV - 1) / (8 * maxV);
+            components = new JpegCoefficients.Component[source.components.length];
+            for (int i = 0; i < components.length; i++) {
+                JpegCoefficients.Component original = source.components[i];
+                JpegCoefficients.Component component = new JpegCoefficients.Component();
+                component.h = transposing ? original.v : original.h;
+                component.v = transposing ? original.h : original.v;
+                component.blocksWide = mcusX * component.h;
+                component.blocksHigh = mcusY * component.v;
+                components[i] = component;
+            }
+            // Mirroring of a block negates odd frequencies along mirrored axis
+            for (int v = 0; v < 8; v++) {
+                for (int u = 0; u < 8; u++) {
+                    int sourceU = transposing ? v : u, sourceV = transposing ? u : v;
+                    boolean negate = (reverseX && sourceU % 2 == 1) ^ (reverseY && sourceV % 2 == 1);
+                    sourceIndex[v * 8 + u] = sourceV * 8 + sourceU;
+                    sign[v * 8 + u] = negate ? -1 : 1;
+                }
+            }
+        }
+
+        /**
+         * Encode one MCU row, it's a separate restart interval
+         *
+         * @param mcuY Index of a row
+         * @return Entropy-coded data
+         */
+        private byte[] encodeRow(int mcuY) {
+            BitWriter writer = new BitWriter(mcusX * BLOCK_SIZE);
+            int[] predictions = new int[components.length];
+            int[] block = new int[BLOCK_SIZE];
+            for (int mcuX = 0; mcuX < mcusX; mcuX++) {
+                for (int i = 0; i < components.length; i++) {
+                    JpegCoefficients.Component component = components[i];
+                    JpegCoefficients.Component original = source.components[i];
+                    HuffmanWriter.Table dc = i == 0 ? HuffmanWriter.DC_LUMINANCE : HuffmanWriter.DC_CHROMINANCE;
+                    HuffmanWriter.Table ac = i == 0 ? HuffmanWriter.AC_LUMINANCE : HuffmanWriter.AC_CHROMINANCE;
+                    // Number of source blocks that are kept along every axis, for reversing
+                    int keptWide = width(original), keptHigh = height(original);
+                    for (int v = 0; v < component.v; v++) {
+                        for (int h = 0; h < component.h; h++) {
+                            int x = mcuX * component.h + h, y = mcuY * component.v + v;
+                            int sourceX = transposing ? y : x, sourceY = transposing ? x : y;
+                            if (reverseX) {
+                                sourceX = keptWide - 1 - sourceX;
+                            }
+                            if (reverseY) {
+                                sourceY = keptHigh - 1 - sourceY;
+                            }
+                            int offset = (sourceY * original.blocksWide + sourceX) * BLOCK_SIZE;
+                            for (int k = 0; k < BLOCK_SIZE; k++) {
+                                block[k] = sign[k] * original.coefficients[offset + sourceIndex[k]];
+                            }
+                            predictions[i] = writer.writeBlock(block, predictions[i], dc, ac);
+                        }
+                    }
+                }
+            }
+            return writer.toByteArray();
+        }
+
+        /**
+         * Get number of kept source blocks in a row, it's whole MCUs if columns are reversed
+         */
+        private int width(JpegCoefficients.Component original) {
+            int sourceWidth = transposing ? height : width;
+            return reverseX ? sourceWidth / (8 * source.maxH) * original.h : original.blocksWide;
+        }
+
+        /**
+         * Get number of kept source blocks in a column, it's whole MCUs if rows are reversed
+         */
+        private int height(JpegCoefficients.Component original) {
+            int sourceHeight = transposing ? width : height;
+            return reverseY ? sourceHeight / (8 * source.maxV) * original.v : original.blocksHigh;
+        }
+    }
+
+    /**
+     * Writer of entropy-coded data to a growing array
+     */
+    private static class BitWriter extends HuffmanWriter {
+        private byte[] data;
+        private int size;
+
+        private BitWriter(int capacity) {
+            data = new byte[capacity];
+        }
+
+        @Override
+        void put(int b) {
+            if (size + 2 > data.length) {
+                byte[] grown = new byte[data.length * 2];
+                System.arraycopy(data, 0, grown, 0, size);
+                data = grown;
+            }
+            data[size++] = (byte) b;
+            if (b == JpegCoefficients.MARKER_PREFIX) {
+                data[size++] = 0;
+            }
+        }
+
+        /**
+         * Pad last byte with ones and get data
+         *
+         * @return Written bytes
+         */
+        private byte[] toByteArray() {
+            pad();
+            byte[] result = new byte[size];
+            System.arraycopy(data, 0, result, 0, size);
+            return result;
+        }
+    }
+}
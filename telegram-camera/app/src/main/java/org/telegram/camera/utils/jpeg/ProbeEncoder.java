@@ -0,0 +1,27 @@
+package org.telegram.camera.utils.jpeg;
+
+import java.io.IOException;
+
+/**
+ * Encoder of a small probe of a picture, that is used by {@link QualitySearch} to estimate size
+ * of a picture encoded with some quality
+ *
+ * @author Danil Kolikov
+ */
+public interface ProbeEncoder {
+    /**
+     * Get number of pixels in a probe
+     *
+     * @return Number of pixels
+     */
+    int getPixelCount();
+
+    /**
+     * Encode probe to JPEG
+     *
+     * @param quality Quality from 0 to 100
+     * @return Size of encoded probe in bytes
+     * @throws IOException If probe can't be encoded
+     */
+    long encode(int quality) throws IOException;
+}
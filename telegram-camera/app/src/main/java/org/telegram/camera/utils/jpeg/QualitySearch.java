@@ -0,0 +1,140 @@
+package org.telegram.camera.utils.jpeg;
+
+import java.io.IOException;
+
+/**
+ * Search of JPEG quality that fits a picture to a budget of bits per pixel. Quality is chosen by binary search
+ * over encodings of a small probe of a picture, so full picture is encoded only once. Probe is downscaled,
+ * so it has more details per pixel than full picture. Ratio between them is calibrated after every full
+ * encoding with {@link #calibrate(long, long)}
+ *
+ * @author Danil Kolikov
+ */
+public class QualitySearch {
+    /**
+     * Quality that is used even if picture doesn't fit budget with it
+     */
+    public static final int DEFAULT_MIN_QUALITY = 50;
+    /**
+     * Quality that isn't exceeded even if picture fits budget with higher one
+     */
+    public static final int DEFAULT_MAX_QUALITY = 95;
+    /**
+     * Initial ratio of bits per pixel of full picture to bits per pixel of its probe
+     */
+    private static final double INITIAL_RATIO = 0.7;
+    private static final double MIN_RATIO = 0.2, MAX_RATIO = 2;
+    /**
+     * Weight of the last measured ratio in calibrated one
+     */
+    private static final double CALIBRATION_WEIGHT = 0.5;
+
+    private final int minQuality, maxQuality;
+    private double ratio;
+    private double lastProbeBitsPerPixel;
+    private int lastProbeCount;
+
+    /**
+     * Create search with default range of qualities
+     */
+    public QualitySearch() {
+        this(DEFAULT_MIN_QUALITY, DEFAULT_MAX_QUALITY);
+    }
+
+    /**
+     * Create search
+     *
+     * @param minQuality Minimal quality, it's used if even it doesn't fit budget
+     * @param maxQuality Maximal quality
+     */
+    public QualitySearch(int minQuality, int maxQuality) {
+        if (minQuality < 0 || maxQuality > 100 || minQuality > maxQuality) {
+            throw new IllegalArgumentException("Wrong range of qualities: " + minQuality + ".." + maxQuality);
+        }
+        this.minQuality = minQuality;
+        this.maxQuality = maxQuality;
+        ratio = INITIAL_RATIO;
+    }
+
+    /**
+     * Get bits per pixel of encoded picture
+     *
+     * @param bytes  Size of encoded picture
+     * @param pixels Number of pixels
+     * @return Bits per pixel
+     */
+    public static double bitsPerPixel(long bytes, long pixels) {
+        return pixels <= 0 ? 0 : bytes * 8.0 / pixels;
+    }
+
+    /**
+     * Find the highest quality which fits budget
+     *
+     * @param probe              Encoder of a probe
+     * @param targetBitsPerPixel Budget of full picture
+     * @param downscaled         True, if probe is smaller than picture, False, if probe is picture itself
+     * @return Quality
+     * @throws IOException If probe can't be encoded
+     */
+    public synchronized int find(ProbeEncoder probe, double targetBitsPerPixel, boolean downscaled)
+            throws IOException {
+        double scale = downscaled ? ratio : 1;
+        int low = minQuality, high = maxQuality;
+        int best = minQuality;
+        double bestBitsPerPixel = 0;
+        lastProbeCount = 0;
+        while (low <= high) {
+            int quality = (low + high) >>> 1;
+            double bitsPerPixel = bitsPerPixel(probe.encode(quality), probe.getPixelCount());
+            lastProbeCount++;
+            if (bitsPerPixel * scale <= targetBitsPerPixel) {
+                best = quality;
+                bestBitsPerPixel = bitsPerPixel;
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+        }
+        if (bestBitsPerPixel == 0) {
+            // Even minimal quality doesn't fit, its size is needed for calibration
+            bestBitsPerPixel = bitsPerPixel(probe.encode(best), probe.getPixelCount());
+            lastProbeCount++;
+        }
+        lastProbeBitsPerPixel = downscaled ? bestBitsPerPixel : 0;
+        return best;
+    }
+
+    /**
+     * Update ratio between full picture and probe with the result of full encoding with the last found quality
+     *
+     * @param bytes  Size of encoded full picture
+     * @param pixels Number of pixels in full picture
+     */
+    public synchronized void calibrate(long bytes, long pixels) {
+        if (lastProbeBitsPerPixel <= 0) {
+            return;
+        }
+        double measured = bitsPerPixel(bytes, pixels) / lastProbeBitsPerPixel;
+        ratio = ratio * (1 - CALIBRATION_WEIGHT) + measured * CALIBRATION_WEIGHT;
+        ratio = Math.max(MIN_RATIO, Math.min(MAX_RATIO, ratio));
+        lastProbeBitsPerPixel = 0;
+    }
+
+    /**
+     * Get current ratio of bits per pixel of full picture to bits per pixel of its probe
+     *
+     * @return Ratio
+     */
+    public synchronized double getRatio() {
+        return ratio;
+    }
+
+    /**
+     * Get number of probe encodings done by the last search
+     *
+     * @return Number of encodings
+     */
+    public synchronized int getLastProbeCount() {
+        return lastProbeCount;
+    }
+}
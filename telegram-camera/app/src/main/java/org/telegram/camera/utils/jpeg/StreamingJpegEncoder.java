@@ -0,0 +1,363 @@
+package org.telegram.camera.utils.jpeg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static org.telegram.camera.utils.jpeg.JpegCoefficients.BLOCK_SIZE;
+import static org.telegram.camera.utils.jpeg.JpegCoefficients.ZIGZAG;
+
+/**
+ * Baseline JPEG encoder that takes picture by bands of rows and writes compressed data to a channel
+ * through a reusable buffer, as soon as an MCU row is complete. Only one MCU row of pixels is kept,
+ * so memory doesn't depend on the size of a picture. Chroma is subsampled 2x2, Huffman tables are
+ * the standard ones, quantization tables are scaled by quality like in libjpeg
+ *
+ * @author Danil Kolikov
+ */
+public class StreamingJpegEncoder {
+    private static final int MCU_SIZE = 16;
+    private static final int[] LUMINANCE_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99
+    };
+    private static final int[] CHROMINANCE_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99
+    };
+    /**
+     * Scale factors of AAN DCT
+     */
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602, 1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final int width, height;
+    private final int[] luminanceTable, chrominanceTable;
+    private final float[] luminanceDivisors, chrominanceDivisors;
+    private final ChannelWriter writer;
+
+    /**
+     * Pixels of current MCU row, number of rows in it and number of all written rows
+     */
+    private final int[] rows;
+    private int rowCount, received;
+    private final float[] samples = new float[BLOCK_SIZE];
+    private final int[] block = new int[BLOCK_SIZE];
+    private int predictionY, predictionCb, predictionCr;
+    private long written;
+
+    /**
+     * Create encoder and write header of a picture to the buffer
+     *
+     * @param channel Channel to write picture
+     * @param buffer  Buffer for compressed data, it's cleared and then reused, direct one is better for files
+     * @param width   Width of a picture
+     * @param height  Height of a picture
+     * @param quality Quality from 1 to 100, like in {@code Bitmap.compress}
+     */
+    public StreamingJpegEncoder(WritableByteChannel channel, ByteBuffer buffer, int width, int height, int quality) {
+        if (width <= 0 || height <= 0 || width > 0xFFFF || height > 0xFFFF) {
+            throw new IllegalArgumentException("Wrong size " + width + "x" + height);
+        }
+        this.channel = channel;
+        this.buffer = buffer;
+        this.width = width;
+        this.height = height;
+        buffer.clear();
+        luminanceTable = scale(LUMINANCE_QUANT, quality);
+        chrominanceTable = scale(CHROMINANCE_QUANT, quality);
+        luminanceDivisors = getDivisors(luminanceTable);
+        chrominanceDivisors = getDivisors(chrominanceTable);
+        rows = new int[getPaddedWidth() * MCU_SIZE];
+        writer = new ChannelWriter();
+    }
+
+    /**
+     * Write band of rows. Bands can have any height, MCU row is encoded as soon as it's complete
+     *
+     * @param pixels ARGB pixels, alpha is ignored
+     * @param offset Index of the first pixel of the band
+     * @param stride Number of pixels between starts of rows
+     * @param count  Number of rows in the band
+     * @throws IOException If channel can't be written
+     */
+    public void writeRows(int[] pixels, int offset, int stride, int count) throws IOException {
+        if (written == 0) {
+            writeHeader();
+        }
+        if (received + count > height) {
+            throw new IllegalStateException("Too many rows: " + (received + count) + " of " + height);
+        }
+        received += count;
+        int paddedWidth = getPaddedWidth();
+        for (int i = 0; i < count; i++) {
+            int row = rowCount * paddedWidth;
+            System.arraycopy(pixels, offset + i * stride, rows, row, width);
+            // Padding repeats the last column
+            for (int x = width; x < paddedWidth; x++) {
+                rows[row + x] = rows[row + width - 1];
+            }
+            if (++rowCount == MCU_SIZE) {
+                encodeRow();
+            }
+        }
+    }
+
+    /**
+     * Encode the rest of a picture and write all buffered data to the channel. Channel isn't closed
+     *
+     * @return Size of a picture in bytes
+     * @throws IOException If not all rows were written or channel can't be written
+     */
+    public long finish() throws IOException {
+        if (received != height) {
+            throw new IOException("Only " + received + " rows of " + height + " are written");
+        }
+        if (rowCount > 0) {
+            // Padding repeats the last row
+            int paddedWidth = getPaddedWidth();
+            for (; rowCount < MCU_SIZE; rowCount++) {
+                System.arraycopy(rows, (rowCount - 1) * paddedWidth, rows, rowCount * paddedWidth, paddedWidth);
+            }
+            encodeRow();
+        }
+        writer.pad();
+        put(JpegCoefficients.MARKER_PREFIX);
+        put(JpegCoefficients.MARKER_EOI);
+        flush();
+        return written;
+    }
+
+    private int getPaddedWidth() {
+        return (width + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(JpegCoefficients.MARKER_PREFIX);
+        header.write(JpegCoefficients.MARKER_SOI);
+
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        int[][] quant = {luminanceTable, chrominanceTable};
+        for (int i = 0; i < quant.length; i++) {
+            tables.write(i);
+            for (int k = 0; k < BLOCK_SIZE; k++) {
+                tables.write(quant[i][ZIGZAG[k]]);
+            }
+        }
+        LosslessTransform.writeSegment(JpegCoefficients.MARKER_DQT, tables.toByteArray(), header);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(8);
+        LosslessTransform.writeShort(height, frame);
+        LosslessTransform.writeShort(width, frame);
+        frame.write(3);
+        // Y is sampled 2x2, Cb and Cr once per MCU
+        frame.write(new byte[]{1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1});
+        LosslessTransform.writeSegment(JpegCoefficients.MARKER_SOF0, frame.toByteArray(), header);
+        LosslessTransform.writeSegment(JpegCoefficients.MARKER_DHT, HuffmanWriter.getTables(true), header);
+        LosslessTransform.writeSegment(JpegCoefficients.MARKER_SOS,
+                new byte[]{3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0}, header);
+        for (byte b : header.toByteArray()) {
+            put(b & 0xFF);
+        }
+    }
+
+    /**
+     * Encode complete MCU row
+     */
+    private void encodeRow() throws IOException {
+        int paddedWidth = getPaddedWidth();
+        for (int x = 0; x < paddedWidth; x += MCU_SIZE) {
+            for (int by = 0; by < MCU_SIZE; by += 8) {
+                for (int bx = 0; bx < MCU_SIZE; bx += 8) {
+                    loadLuminance(x + bx, by, paddedWidth);
+                    predictionY = encodeBlock(luminanceDivisors, predictionY, HuffmanWriter.DC_LUMINANCE,
+                            HuffmanWriter.AC_LUMINANCE);
+                }
+            }
+            loadChrominance(x, paddedWidth, 0);
+            predictionCb = encodeBlock(chrominanceDivisors, predictionCb, HuffmanWriter.DC_CHROMINANCE,
+                    HuffmanWriter.AC_CHROMINANCE);
+            loadChrominance(x, paddedWidth, 1);
+            predictionCr = encodeBlock(chrominanceDivisors, predictionCr, HuffmanWriter.DC_CHROMINANCE,
+                    HuffmanWriter.AC_CHROMINANCE);
+        }
+        rowCount = 0;
+    }
+
+    /**
+     * Load level-shifted luminance of 8x8 block
+     */
+    private void loadLuminance(int left, int top, int stride) {
+        for (int y = 0; y < 8; y++) {
+            int row = (top + y) * stride + left;
+            for (int x = 0; x < 8; x++) {
+                int pixel = rows[row + x];
+                int r = (pixel >> 16) & 0xFF, g = (pixel >> 8) & 0xFF, b = pixel & 0xFF;
+                samples[y * 8 + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128;
+            }
+        }
+    }
+
+    /**
+     * Load chrominance of 8x8 block that covers 16x16 pixels, every sample is an average of 2x2 pixels
+     *
+     * @param component 0 for Cb, 1 for Cr
+     */
+    private void loadChrominance(int left, int stride, int component) {
+        for (int y = 0; y < 8; y++) {
+            int row = 2 * y * stride + left;
+            for (int x = 0; x < 8; x++) {
+                int r = 0, g = 0, b = 0;
+                for (int i = 0; i < 4; i++) {
+                    int pixel = rows[row + (i >> 1) * stride + 2 * x + (i & 1)];
+                    r += (pixel >> 16) & 0xFF;
+                    g += (pixel >> 8) & 0xFF;
+                    b += pixel & 0xFF;
+                }
+                samples[y * 8 + x] = component == 0
+                        ? (-0.168736f * r - 0.331264f * g + 0.5f * b) / 4
+                        : (0.5f * r - 0.418688f * g - 0.081312f * b) / 4;
+            }
+        }
+    }
+
+    /**
+     * Transform, quantize and write samples of a block
+     *
+     * @return New prediction of DC coefficient
+     */
+    private int encodeBlock(float[] divisors, int prediction, HuffmanWriter.Table dc, HuffmanWriter.Table ac)
+            throws IOException {
+        forwardDct(samples);
+        for (int k = 0; k < BLOCK_SIZE; k++) {
+            block[k] = Math.round(samples[k] * divisors[k]);
+        }
+        prediction = writer.writeBlock(block, prediction, dc, ac);
+        if (writer.error != null) {
+            throw writer.error;
+        }
+        return prediction;
+    }
+
+    /**
+     * Float AAN forward DCT in place. Output is scaled, scale is removed with quantization
+     */
+    private static void forwardDct(float[] data) {
+        for (int pass = 0; pass < 2; pass++) {
+            // First pass transforms rows, second one transforms columns
+            int step = pass == 0 ? 1 : 8, next = pass == 0 ? 8 : 1;
+            for (int line = 0, start = 0; line < 8; line++, start += next) {
+                float d0 = data[start], d1 = data[start + step], d2 = data[start + 2 * step];
+                float d3 = data[start + 3 * step], d4 = data[start + 4 * step], d5 = data[start + 5 * step];
+                float d6 = data[start + 6 * step], d7 = data[start + 7 * step];
+                float tmp0 = d0 + d7, tmp7 = d0 - d7;
+                float tmp1 = d1 + d6, tmp6 = d1 - d6;
+                float tmp2 = d2 + d5, tmp5 = d2 - d5;
+                float tmp3 = d3 + d4, tmp4 = d3 - d4;
+
+                float tmp10 = tmp0 + tmp3, tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2, tmp12 = tmp1 - tmp2;
+                data[start] = tmp10 + tmp11;
+                data[start + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                data[start + 2 * step] = tmp13 + z1;
+                data[start + 6 * step] = tmp13 - z1;
+
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3, z13 = tmp7 - z3;
+                data[start + 5 * step] = z13 + z2;
+                data[start + 3 * step] = z13 - z2;
+                data[start + step] = z11 + z4;
+                data[start + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    /**
+     * Scale standard table by quality like libjpeg does
+     */
+    private static int[] scale(int[] table, int quality) {
+        quality = Math.max(1, Math.min(100, quality));
+        int factor = quality < 50 ? 5000 / quality : 200 - 2 * quality;
+        int[] result = new int[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            result[i] = Math.max(1, Math.min(255, (table[i] * factor + 50) / 100));
+        }
+        return result;
+    }
+
+    /**
+     * Get multipliers that quantize output of AAN DCT
+     */
+    private static float[] getDivisors(int[] table) {
+        float[] divisors = new float[BLOCK_SIZE];
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) {
+                divisors[v * 8 + u] = (float) (1 / (table[v * 8 + u] * AAN_SCALE[v] * AAN_SCALE[u] * 8));
+            }
+        }
+        return divisors;
+    }
+
+    private void put(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+        buffer.put((byte) b);
+        written++;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writer of entropy-coded data to the buffer. Error of a channel is kept until the block is written
+     */
+    private class ChannelWriter extends HuffmanWriter {
+        private IOException error;
+
+        @Override
+        void put(int b) {
+            if (error != null) {
+                return;
+            }
+            try {
+                StreamingJpegEncoder.this.put(b);
+                if (b == JpegCoefficients.MARKER_PREFIX) {
+                    StreamingJpegEncoder.this.put(0);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+/**
+ * Package for work with JPEG streams without Android graphics <br>
+ * Consists of:
+ * <ul>
+ *     <li>{@link org.telegram.camera.utils.jpeg.ExifWriter ExifWriter} - writer of EXIF orientation tag</li>
+ *     <li>{@link org.telegram.camera.utils.jpeg.HuffmanWriter HuffmanWriter} - writer of entropy-coded data
+ *     with standard Huffman tables</li>
+ *     <li>{@link org.telegram.camera.utils.jpeg.JpegCoefficients JpegCoefficients} - reader of quantized DCT
+ *     coefficients of baseline JPEG</li>
+ *     <li>{@link org.telegram.camera.utils.jpeg.LosslessTransform LosslessTransform} - lossless rotation
+ *     and mirroring in DCT domain</li>
+ *     <li>{@link org.telegram.camera.utils.jpeg.StreamingJpegEncoder StreamingJpegEncoder} - encoder of bands
+ *     of rows straight to a channel</li>
+ * </ul>
+ */
+package org.telegram.camera.utils.jpeg;
\ No newline at end of file
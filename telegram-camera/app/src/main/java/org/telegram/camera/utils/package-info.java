@@ -1,5 +1,6 @@
 /**
  * Package for classes with helping functions and classes for Telegram Camera <br>
- * Consists of many helper classes
+ * Consists of many helper classes, package {@link org.telegram.camera.utils.jpeg jpeg} for work with
+ * JPEG streams and package {@link org.telegram.camera.utils.image image} for work with raw pixels
  */
 package org.telegram.camera.utils;
\ No newline at end of file
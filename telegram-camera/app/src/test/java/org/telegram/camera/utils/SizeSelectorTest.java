@@ -0,0 +1,360 @@
+package org.telegram.camera.utils;
+
+import android.hardware.Camera;
+import android.media.CamcorderProfile;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.telegram.camera.utils.SizeSelector.ARGB_8888_BITS;
+import static org.telegram.camera.utils.SizeSelector.NV21_BITS;
+import static org.telegram.camera.utils.SizeSelector.PHOTO_ALIGNMENT;
+import static org.telegram.camera.utils.SizeSelector.VIDEO_ALIGNMENT;
+
+/**
+ * Table-driven tests of {@link SizeSelector} on size lists reported by real devices
+ *
+ * @author Danil Kolikov
+ */
+public class SizeSelectorTest {
+    private static final long MB = 1024 * 1024;
+    /**
+     * Portrait screen of 1080p phones without navigation bar
+     */
+    private static final int VIEW_WIDTH = 1080, VIEW_HEIGHT = 1776;
+    private static final long VIEW_PIXELS = (long) VIEW_WIDTH * VIEW_HEIGHT;
+    /**
+     * Preview buffers of zero shutter lag
+     */
+    private static final int PREVIEW_BUFFERS = 5;
+
+    private static final List<CameraCapabilities.Size> NEXUS_5_PICTURES = sizes(
+            3264, 2448, 3264, 1836, 2592, 1944, 2048, 1536, 1920, 1080, 1600, 1200, 1280, 960, 1280, 720,
+            640, 480);
+    private static final List<CameraCapabilities.Size> NEXUS_5_PREVIEWS = sizes(
+            1920, 1080, 1440, 1080, 1280, 960, 1280, 720, 960, 720, 800, 480, 768, 432, 720, 480, 640, 480,
+            352, 288, 320, 240, 176, 144);
+    private static final List<CameraCapabilities.Size> GALAXY_S3_PICTURES = sizes(
+            3264, 2448, 3264, 1836, 2048, 1536, 2048, 1152, 1600, 1200, 1280, 720, 1024, 768, 800, 600,
+            800, 480, 640, 480, 320, 240);
+    private static final List<CameraCapabilities.Size> GALAXY_S3_PREVIEWS = sizes(
+            1920, 1080, 1280, 720, 960, 720, 800, 480, 720, 480, 640, 480, 352, 288, 320, 240, 176, 144);
+    private static final List<CameraCapabilities.Size> MOTO_G_PICTURES = sizes(
+            2592, 1944, 2592, 1456, 1920, 1080, 1600, 1200, 1280, 960, 1280, 720, 640, 480);
+    private static final List<CameraCapabilities.Size> MOTO_G_PREVIEWS = sizes(
+            1280, 720, 960, 720, 864, 480, 800, 480, 768, 432, 720, 480, 640, 480, 576, 432, 480, 320,
+            384, 288, 352, 288, 320, 240, 240, 160, 176, 144);
+    private static final List<CameraCapabilities.Size> NEXUS_5_FRONT_PICTURES = sizes(
+            1280, 960, 1280, 720, 640, 480, 320, 240);
+    private static final List<CameraCapabilities.Size> NEXUS_5_VIDEOS = sizes(
+            1920, 1080, 1280, 720, 864, 480, 800, 480, 720, 480, 640, 480, 480, 320, 352, 288, 320, 240,
+            176, 144);
+    private static final List<CameraCapabilities.Size> MOTO_G_VIDEOS = sizes(
+            1280, 720, 864, 480, 800, 480, 720, 480, 640, 480, 480, 320, 352, 288, 320, 240, 176, 144);
+    /**
+     * Sensor of Galaxy S5 is 16:9, its largest picture is 16:9 too
+     */
+    private static final List<CameraCapabilities.Size> GALAXY_S5_PICTURES = sizes(
+            5312, 2988, 3984, 2988, 3264, 2448, 3264, 1836, 2592, 1944, 2048, 1152, 1920, 1080, 1280, 720,
+            640, 480);
+    private static final List<CameraCapabilities.Size> GALAXY_S5_PREVIEWS = sizes(
+            1920, 1080, 1440, 1080, 1280, 720, 1056, 864, 960, 720, 720, 480, 640, 480, 320, 240, 176, 144);
+    private static final List<CameraCapabilities.Size> GALAXY_S5_VIDEOS = sizes(
+            3840, 2160, 1920, 1080, 1280, 720, 720, 480, 640, 480, 320, 240, 176, 144);
+
+    private static final List<CameraCapabilities.Profile> NEXUS_5_PROFILES = Arrays.asList(
+            new CameraCapabilities.Profile(CamcorderProfile.QUALITY_HIGH, 1920, 1080, 30, 20000000),
+            new CameraCapabilities.Profile(CamcorderProfile.QUALITY_1080P, 1920, 1080, 30, 20000000),
+            new CameraCapabilities.Profile(CamcorderProfile.QUALITY_720P, 1280, 720, 30, 12000000),
+            new CameraCapabilities.Profile(CamcorderProfile.QUALITY_480P, 720, 480, 30, 6000000));
+    private static final List<CameraCapabilities.Profile> MOTO_G_PROFILES = Arrays.asList(
+            new CameraCapabilities.Profile(CamcorderProfile.QUALITY_HIGH, 1280, 720, 30, 12000000),
+            new CameraCapabilities.Profile(CamcorderProfile.QUALITY_720P, 1280, 720, 30, 12000000),
+            new CameraCapabilities.Profile(CamcorderProfile.QUALITY_480P, 720, 480, 30, 6000000));
+
+    private static final CameraCapabilities.Info NEXUS_5 = info(0, NEXUS_5_PREVIEWS, NEXUS_5_PICTURES,
+            NEXUS_5_VIDEOS, NEXUS_5_PROFILES);
+    private static final CameraCapabilities.Info GALAXY_S3 = info(0, GALAXY_S3_PREVIEWS, GALAXY_S3_PICTURES,
+            GALAXY_S3_PREVIEWS, null);
+    private static final CameraCapabilities.Info GALAXY_S5 = info(0, GALAXY_S5_PREVIEWS, GALAXY_S5_PICTURES,
+            GALAXY_S5_VIDEOS, null);
+    private static final CameraCapabilities.Info MOTO_G = info(0, MOTO_G_PREVIEWS, MOTO_G_PICTURES,
+            MOTO_G_VIDEOS, MOTO_G_PROFILES);
+
+    /**
+     * Pictures: sensor aspect, the biggest resolution whose decoded bitmap fits a third of a heap
+     */
+    private static final Case[] PICTURES = {
+            new Case("Nexus 5, 512 MB heap", NEXUS_5_PICTURES, 4 / 3.0, 3264L * 2448,
+                    ARGB_8888_BITS, 1, 512 * MB / 3, PHOTO_ALIGNMENT, 3264, 2448),
+            new Case("Nexus 5, 192 MB heap", NEXUS_5_PICTURES, 4 / 3.0, 3264L * 2448,
+                    ARGB_8888_BITS, 1, 192 * MB / 3, PHOTO_ALIGNMENT, 3264, 2448),
+            new Case("Nexus 5, 64 MB heap", NEXUS_5_PICTURES, 4 / 3.0, 3264L * 2448,
+                    ARGB_8888_BITS, 1, 64 * MB / 3, PHOTO_ALIGNMENT, 2592, 1944),
+            new Case("Nexus 5, 32 MB heap", NEXUS_5_PICTURES, 4 / 3.0, 3264L * 2448,
+                    ARGB_8888_BITS, 1, 32 * MB / 3, PHOTO_ALIGNMENT, 1600, 1200),
+            new Case("Galaxy S3, 64 MB heap", GALAXY_S3_PICTURES, 4 / 3.0, 3264L * 2448,
+                    ARGB_8888_BITS, 1, 64 * MB / 3, PHOTO_ALIGNMENT, 2048, 1536),
+            new Case("Moto G, 96 MB heap", MOTO_G_PICTURES, 4 / 3.0, 2592L * 1944,
+                    ARGB_8888_BITS, 1, 96 * MB / 3, PHOTO_ALIGNMENT, 2592, 1944),
+            new Case("Nexus 5 front, 192 MB heap", NEXUS_5_FRONT_PICTURES, 4 / 3.0, 1280L * 960,
+                    ARGB_8888_BITS, 1, 192 * MB / 3, PHOTO_ALIGNMENT, 1280, 960),
+            // Nothing fits, so the smallest overrun wins
+            new Case("Nexus 5, 8 MB heap", NEXUS_5_PICTURES, 4 / 3.0, 3264L * 2448,
+                    ARGB_8888_BITS, 1, 8 * MB / 3, PHOTO_ALIGNMENT, 640, 480),
+    };
+
+    /**
+     * Previews: aspect of a picture, resolution of a view, all buffers of zero shutter lag on the heap
+     */
+    private static final Case[] PREVIEWS = {
+            new Case("Nexus 5, 4:3, 192 MB heap", NEXUS_5_PREVIEWS, 4 / 3.0, VIEW_PIXELS,
+                    NV21_BITS, 5, 192 * MB / 16, PHOTO_ALIGNMENT, 1440, 1080),
+            new Case("Nexus 5, 4:3, 64 MB heap", NEXUS_5_PREVIEWS, 4 / 3.0, VIEW_PIXELS,
+                    NV21_BITS, 5, 64 * MB / 16, PHOTO_ALIGNMENT, 640, 480),
+            new Case("Nexus 5, 16:9, 192 MB heap", NEXUS_5_PREVIEWS, 16 / 9.0, VIEW_PIXELS,
+                    NV21_BITS, 1, 192 * MB / 16, PHOTO_ALIGNMENT, 1920, 1080),
+            new Case("Galaxy S3, 4:3, 64 MB heap", GALAXY_S3_PREVIEWS, 4 / 3.0, VIEW_PIXELS,
+                    NV21_BITS, 1, 64 * MB / 16, PHOTO_ALIGNMENT, 960, 720),
+            new Case("Moto G, 4:3, 96 MB heap", MOTO_G_PREVIEWS, 4 / 3.0, 720L * 1184,
+                    NV21_BITS, 1, 96 * MB / 16, PHOTO_ALIGNMENT, 960, 720),
+    };
+
+    /**
+     * Videos: profile size, frames are in buffers of an encoder
+     */
+    private static final Case[] VIDEOS = {
+            new Case("Nexus 5, 1080p", NEXUS_5_VIDEOS, 16 / 9.0, 1920L * 1080,
+                    NV21_BITS, 1, Long.MAX_VALUE, VIDEO_ALIGNMENT, 1920, 1080),
+            new Case("Nexus 5, 480p", NEXUS_5_VIDEOS, 3 / 2.0, 720L * 480,
+                    NV21_BITS, 1, Long.MAX_VALUE, VIDEO_ALIGNMENT, 720, 480),
+            new Case("Moto G, 720p", MOTO_G_VIDEOS, 16 / 9.0, 1280L * 720,
+                    NV21_BITS, 1, Long.MAX_VALUE, VIDEO_ALIGNMENT, 1280, 720),
+            // 1080p isn't supported, the closest 16:9 size is taken
+            new Case("Moto G, 1080p", MOTO_G_VIDEOS, 16 / 9.0, 1920L * 1080,
+                    NV21_BITS, 1, Long.MAX_VALUE, VIDEO_ALIGNMENT, 1280, 720),
+            new Case("Galaxy S5, 2160p", GALAXY_S5_VIDEOS, 16 / 9.0, 3840L * 2160,
+                    NV21_BITS, 1, Long.MAX_VALUE, VIDEO_ALIGNMENT, 3840, 2160),
+    };
+
+    /**
+     * Photo mode: picture gets the aspect of the largest picture, preview gets the aspect of the picture
+     */
+    private static final PhotoCase[] PHOTOS = {
+            new PhotoCase("Nexus 5, 192 MB heap", NEXUS_5, 192 * MB, 3264, 2448, 1440, 1080),
+            new PhotoCase("Nexus 5, 64 MB heap", NEXUS_5, 64 * MB, 2592, 1944, 640, 480),
+            new PhotoCase("Galaxy S3, 64 MB heap", GALAXY_S3, 64 * MB, 2048, 1536, 640, 480),
+            // Five 1080p preview buffers don't fit
+            new PhotoCase("Galaxy S5, 192 MB heap", GALAXY_S5, 192 * MB, 5312, 2988, 1280, 720),
+            // 4:3 pictures that fit are bigger, but they lose on aspect
+            new PhotoCase("Galaxy S5, 64 MB heap", GALAXY_S5, 64 * MB, 2048, 1152, 720, 480),
+            new PhotoCase("Moto G, 96 MB heap", MOTO_G, 96 * MB, 2592, 1944, 960, 720),
+    };
+
+    /**
+     * Video mode: video gets the size of the profile, or the largest size, if there is no profile,
+     * preview gets the aspect of the video
+     */
+    private static final VideoCase[] RECORDINGS = {
+            new VideoCase("Nexus 5, 1080p", NEXUS_5, CamcorderProfile.QUALITY_1080P, 1920, 1080, 1920, 1080),
+            new VideoCase("Nexus 5, 480p", NEXUS_5, CamcorderProfile.QUALITY_480P, 720, 480, 720, 480),
+            new VideoCase("Moto G, high", MOTO_G, CamcorderProfile.QUALITY_HIGH, 1280, 720, 1280, 720),
+            // There is no 1080p profile, the largest video size is taken
+            new VideoCase("Moto G, 1080p", MOTO_G, CamcorderProfile.QUALITY_1080P, 1280, 720, 1280, 720),
+            new VideoCase("Galaxy S5, no profiles", GALAXY_S5, CamcorderProfile.QUALITY_HIGH, 3840, 2160,
+                    1920, 1080),
+    };
+
+    @Test
+    public void choosesPictures() {
+        check(PICTURES);
+    }
+
+    @Test
+    public void choosesPreviews() {
+        check(PREVIEWS);
+    }
+
+    @Test
+    public void choosesVideos() {
+        check(VIDEOS);
+    }
+
+    @Test
+    public void choosesForPhoto() {
+        for (PhotoCase c : PHOTOS) {
+            SizeSelector.Selection selection = new SizeSelector(c.heap / 3, c.heap / 16)
+                    .forPhoto(c.info, VIEW_WIDTH, VIEW_HEIGHT, PREVIEW_BUFFERS);
+            assertEquals(c.name, c.picture, selection.getPicture());
+            assertEquals(c.name, c.preview, selection.getPreview());
+            assertNull(selection.getVideo());
+        }
+    }
+
+    @Test
+    public void choosesForVideo() {
+        for (VideoCase c : RECORDINGS) {
+            SizeSelector.Selection selection = new SizeSelector(64 * MB, 12 * MB)
+                    .forVideo(c.info, VIEW_WIDTH, VIEW_HEIGHT, c.quality);
+            assertEquals(c.name, c.video, selection.getVideo());
+            assertEquals(c.name, c.preview, selection.getPreview());
+            assertNull(selection.getPicture());
+        }
+    }
+
+    @Test
+    public void choosesPreviewWithoutParameters() {
+        CameraCapabilities.Info info = info(1, NEXUS_5_PREVIEWS, null, null, null);
+        SizeSelector selector = new SizeSelector(64 * MB, 12 * MB);
+        SizeSelector.Selection photo = selector.forPhoto(info, VIEW_WIDTH, VIEW_HEIGHT, 1);
+        assertNull(photo.getPicture());
+        // Aspect of the view is taken
+        assertEquals("photo", new CameraCapabilities.Size(1920, 1080), photo.getPreview());
+        SizeSelector.Selection video = selector.forVideo(info, VIEW_WIDTH, VIEW_HEIGHT,
+                CamcorderProfile.QUALITY_HIGH);
+        assertNull(video.getVideo());
+        assertEquals("video", new CameraCapabilities.Size(1920, 1080), video.getPreview());
+    }
+
+    @Test
+    public void cachesDecisionsPerCamera() {
+        SizeSelector selector = new SizeSelector(64 * MB, 12 * MB);
+        SizeSelector.Selection photo = selector.forPhoto(NEXUS_5, VIEW_WIDTH, VIEW_HEIGHT, PREVIEW_BUFFERS);
+        assertSame(photo, selector.forPhoto(NEXUS_5, VIEW_WIDTH, VIEW_HEIGHT, PREVIEW_BUFFERS));
+        assertNotSame(photo, selector.forPhoto(NEXUS_5, VIEW_HEIGHT, VIEW_WIDTH, PREVIEW_BUFFERS));
+        assertNotSame(photo, selector.forPhoto(NEXUS_5, VIEW_WIDTH, VIEW_HEIGHT, 1));
+
+        CameraCapabilities.Info front = info(1, NEXUS_5_PREVIEWS, NEXUS_5_FRONT_PICTURES, NEXUS_5_VIDEOS, null);
+        SizeSelector.Selection frontPhoto = selector.forPhoto(front, VIEW_WIDTH, VIEW_HEIGHT, PREVIEW_BUFFERS);
+        assertEquals("front", new CameraCapabilities.Size(1280, 960), frontPhoto.getPicture());
+
+        SizeSelector.Selection video = selector.forVideo(NEXUS_5, VIEW_WIDTH, VIEW_HEIGHT,
+                CamcorderProfile.QUALITY_1080P);
+        assertSame(video, selector.forVideo(NEXUS_5, VIEW_WIDTH, VIEW_HEIGHT, CamcorderProfile.QUALITY_1080P));
+        assertNotSame(video, selector.forVideo(NEXUS_5, VIEW_WIDTH, VIEW_HEIGHT, CamcorderProfile.QUALITY_720P));
+    }
+
+    @Test
+    public void returnsNullWithoutCandidates() {
+        assertNull(SizeSelector.select(null, 4 / 3.0, VIEW_PIXELS, NV21_BITS, 1, Long.MAX_VALUE,
+                PHOTO_ALIGNMENT));
+    }
+
+    @Test
+    public void unalignedSizeCostsMore() {
+        double aligned = SizeSelector.getCost(new CameraCapabilities.Size(1920, 1080), 16 / 9.0, 1920L * 1080,
+                NV21_BITS, 1, Long.MAX_VALUE, VIDEO_ALIGNMENT);
+        double unaligned = SizeSelector.getCost(new CameraCapabilities.Size(1916, 1078), 16 / 9.0,
+                1916L * 1078, NV21_BITS, 1, Long.MAX_VALUE, VIDEO_ALIGNMENT);
+        assertTrue(unaligned > aligned);
+    }
+
+    @Test
+    public void overBudgetCostsMoreThanAnyFittingSize() {
+        for (CameraCapabilities.Size size : NEXUS_5_PICTURES) {
+            long budget = (long) size.width * size.height * ARGB_8888_BITS / 8;
+            double fits = SizeSelector.getCost(size, 4 / 3.0, 3264L * 2448, ARGB_8888_BITS, 1, budget,
+                    PHOTO_ALIGNMENT);
+            double over = SizeSelector.getCost(size, 4 / 3.0, 3264L * 2448, ARGB_8888_BITS, 1, budget - 1,
+                    PHOTO_ALIGNMENT);
+            assertTrue(size.toString(), over > fits + 1);
+        }
+    }
+
+    private static void check(Case[] cases) {
+        for (Case c : cases) {
+            CameraCapabilities.Size chosen = SizeSelector.select(c.sizes, c.aspect, c.pixels, c.bitsPerPixel,
+                    c.frames, c.budget, c.alignment);
+            assertEquals(c.name, c.expected, chosen);
+        }
+    }
+
+    private static CameraCapabilities.Info info(int id, List<CameraCapabilities.Size> previews,
+                                                List<CameraCapabilities.Size> pictures,
+                                                List<CameraCapabilities.Size> videos,
+                                                List<CameraCapabilities.Profile> profiles) {
+        return new CameraCapabilities.Info(id, id == 0 ? Camera.CameraInfo.CAMERA_FACING_BACK
+                : Camera.CameraInfo.CAMERA_FACING_FRONT, 90, previews, pictures, videos, null, profiles);
+    }
+
+    private static List<CameraCapabilities.Size> sizes(int... dimensions) {
+        List<CameraCapabilities.Size> sizes = new ArrayList<CameraCapabilities.Size>();
+        for (int i = 0; i < dimensions.length; i += 2) {
+            sizes.add(new CameraCapabilities.Size(dimensions[i], dimensions[i + 1]));
+        }
+        return sizes;
+    }
+
+    /**
+     * Row of a table: candidates, target and expected choice
+     */
+    private static class Case {
+        private final String name;
+        private final List<CameraCapabilities.Size> sizes;
+        private final double aspect;
+        private final long pixels;
+        private final int bitsPerPixel, frames;
+        private final long budget;
+        private final double alignment;
+        private final CameraCapabilities.Size expected;
+
+        private Case(String name, List<CameraCapabilities.Size> sizes, double aspect, long pixels,
+                     int bitsPerPixel, int frames, long budget, double alignment,
+                     int expectedWidth, int expectedHeight) {
+            this.name = name;
+            this.sizes = sizes;
+            this.aspect = aspect;
+            this.pixels = pixels;
+            this.bitsPerPixel = bitsPerPixel;
+            this.frames = frames;
+            this.budget = budget;
+            this.alignment = alignment;
+            expected = new CameraCapabilities.Size(expectedWidth, expectedHeight);
+        }
+    }
+
+    /**
+     * Row of a table of photo mode: camera, heap and expected sizes
+     */
+    private static class PhotoCase {
+        private final String name;
+        private final CameraCapabilities.Info info;
+        private final long heap;
+        private final CameraCapabilities.Size picture, preview;
+
+        private PhotoCase(String name, CameraCapabilities.Info info, long heap, int pictureWidth,
+                          int pictureHeight, int previewWidth, int previewHeight) {
+            this.name = name;
+            this.info = info;
+            this.heap = heap;
+            picture = new CameraCapabilities.Size(pictureWidth, pictureHeight);
+            preview = new CameraCapabilities.Size(previewWidth, previewHeight);
+        }
+    }
+
+    /**
+     * Row of a table of video mode: camera, quality and expected sizes
+     */
+    private static class VideoCase {
+        private final String name;
+        private final CameraCapabilities.Info info;
+        private final int quality;
+        private final CameraCapabilities.Size video, preview;
+
+        private VideoCase(String name, CameraCapabilities.Info info, int quality, int videoWidth,
+                          int videoHeight, int previewWidth, int previewHeight) {
+            this.name = name;
+            this.info = info;
+            this.quality = quality;
+            video = new CameraCapabilities.Size(videoWidth, videoHeight);
+            preview = new CameraCapabilities.Size(previewWidth, previewHeight);
+        }
+    }
+}
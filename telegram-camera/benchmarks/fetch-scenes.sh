@@ -0,0 +1,14 @@
+#!/bin/sh
+# Pull camera pictures from a device to benchmarks/scenes for scene "camera" of PicturePathBenchmark.
+# Take a 2 MP (1600x1200), an 8 MP (3264x2448) and a 13 MP (4160x3120) picture with the camera of a device
+# first, the benchmark takes the ones whose size matches, as they are:
+#     ./fetch-scenes.sh [directory on a device, /sdcard/DCIM/Camera by default]
+set -e
+
+SOURCE=${1:-/sdcard/DCIM/Camera}
+TARGET=$(dirname "$0")/scenes
+
+mkdir -p "$TARGET"
+for picture in $(adb shell ls "$SOURCE" | tr -d '\r' | grep -i '\.jpe\?g$'); do
+    adb pull "$SOURCE/$picture" "$TARGET/$picture"
+done
@@ -0,0 +1,80 @@
+package org.telegram.camera.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.camera.utils.jpeg.QualitySearch;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding with fixed quality against encoding with quality found by {@link QualitySearch} on a probe.
+ * Sizes of outputs are printed when trial is set up, benchmarks measure time
+ *
+ * @author Danil Kolikov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdaptiveJpegBenchmark {
+    private static final int WIDTH = 2048, HEIGHT = 1536;
+    private static final int FIXED_QUALITY = 90;
+    private static final int PROBE_PIXELS = 512 * 384;
+
+    @Param({"flat", "detailed"})
+    public String scene;
+
+    @Param({"1.5"})
+    public double bitsPerPixel;
+
+    private ImageIoJpeg full;
+    private QualitySearch search;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        full = new ImageIoJpeg(ImageIoJpeg.makeScene(WIDTH, HEIGHT, "detailed".equals(scene)));
+        search = new QualitySearch();
+        long pixels = full.getPixelCount();
+        long fixed = full.encode(FIXED_QUALITY);
+        // Calibrate probe ratio as it happens after a few pictures in the app
+        for (int i = 0; i < 3; i++) {
+            adaptive();
+        }
+        int quality = search.find(probe(), bitsPerPixel, true);
+        long adaptive = full.encode(quality);
+        System.out.printf("%n%s: fixed q%d %d bytes (%.2f bpp), adaptive q%d %d bytes (%.2f bpp), target %.2f bpp%n",
+                scene, FIXED_QUALITY, fixed, QualitySearch.bitsPerPixel(fixed, pixels), quality, adaptive,
+                QualitySearch.bitsPerPixel(adaptive, pixels), bitsPerPixel);
+    }
+
+    @Benchmark
+    public long fixedQuality() throws IOException {
+        return full.encode(FIXED_QUALITY);
+    }
+
+    @Benchmark
+    public long adaptive() throws IOException {
+        int quality = search.find(probe(), bitsPerPixel, true);
+        long size = full.encode(quality);
+        search.calibrate(size, full.getPixelCount());
+        return size;
+    }
+
+    private ImageIoJpeg probe() {
+        double factor = Math.sqrt((double) full.getPixelCount() / PROBE_PIXELS);
+        return new ImageIoJpeg(ImageIoJpeg.scale(full.getImage(), (int) (WIDTH / factor), (int) (HEIGHT / factor)));
+    }
+}
@@ -0,0 +1,149 @@
+package org.telegram.camera.benchmarks;
+
+import org.telegram.camera.utils.jpeg.ProbeEncoder;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * JPEG encoding with ImageIO, that stands for <tt>Bitmap.compress</tt> on a plain JVM
+ *
+ * @author Danil Kolikov
+ */
+public class ImageIoJpeg implements ProbeEncoder {
+    private final BufferedImage image;
+    private final ImageWriter writer;
+
+    /**
+     * Create encoder of an image
+     *
+     * @param image Image to encode
+     */
+    public ImageIoJpeg(BufferedImage image) {
+        this.image = image;
+        writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    }
+
+    @Override
+    public int getPixelCount() {
+        return image.getWidth() * image.getHeight();
+    }
+
+    @Override
+    public long encode(int quality) throws IOException {
+        return encode(quality, null);
+    }
+
+    /**
+     * Encode image
+     *
+     * @param quality Quality from 0 to 100
+     * @param output  Stream to write JPEG, can be null if only size is needed
+     * @return Size of encoded image in bytes
+     * @throws IOException If image can't be encoded
+     */
+    public long encode(int quality, OutputStream output) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(output);
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality / 100f);
+        MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(counter);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, null), param);
+        stream.close();
+        return counter.count;
+    }
+
+    /**
+     * Get image
+     *
+     * @return Image
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Downscale image with bilinear filter
+     *
+     * @param image  Source image
+     * @param width  Width of result
+     * @param height Height of result
+     * @return Scaled image
+     */
+    public static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = result.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, null);
+        graphics.dispose();
+        return result;
+    }
+
+    /**
+     * Make synthetic scene: smooth gradients, with noise if scene is detailed
+     *
+     * @param width    Width of an image
+     * @param height   Height of an image
+     * @param detailed True, if scene should have high-frequency details
+     * @return Image
+     */
+    public static BufferedImage makeScene(int width, int height, boolean detailed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(42);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = 255 * x / width;
+                int g = 255 * y / height;
+                int b = (int) (127 + 127 * Math.sin((x + y) / 97.0));
+                if (detailed) {
+                    int noise = random.nextInt(64) - 32;
+                    r = Math.max(0, Math.min(255, r + noise));
+                    g = Math.max(0, Math.min(255, g + noise));
+                    b = Math.max(0, Math.min(255, b + noise));
+                }
+                row[x] = (r << 16) | (g << 8) | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Stream that counts written bytes and passes them to another stream, if it's set
+     */
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream output;
+        private long count;
+
+        private CountingOutputStream(OutputStream output) {
+            this.output = output;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+            if (output != null) {
+                output.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+            if (output != null) {
+                output.write(b, off, len);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.telegram.camera.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.camera.utils.image.Nv21Converter;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link Nv21Converter}. Besides conversions per second, JMH reports
+ * <tt>megapixels</tt> counter, that is converted input megapixels per second
+ *
+ * @author Danil Kolikov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Nv21ConverterBenchmark {
+    /**
+     * Preview sizes and a full 13 MP frame
+     */
+    @Param({"1280x720", "1920x1080", "4160x3120"})
+    public String size;
+
+    @Param({"1", "2"})
+    public int scale;
+
+    private int width, height;
+    private byte[] frame;
+    private int[] argb;
+    private ExecutorService executor;
+    private int bands;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] parts = size.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        frame = new byte[width * height * 3 / 2];
+        new Random(42).nextBytes(frame);
+        argb = new int[Nv21Converter.getScaledSize(width, scale) * Nv21Converter.getScaledSize(height, scale)];
+        bands = Runtime.getRuntime().availableProcessors();
+        executor = Executors.newFixedThreadPool(bands);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int[] sequential(Pixels pixels) {
+        pixels.megapixels += width * height / 1e6;
+        return Nv21Converter.convert(frame, width, height, scale, argb);
+    }
+
+    @Benchmark
+    public int[] parallel(Pixels pixels) throws InterruptedException {
+        pixels.megapixels += width * height / 1e6;
+        return Nv21Converter.convertParallel(frame, width, height, scale, argb, executor, bands);
+    }
+
+    /**
+     * Counter of converted megapixels
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Pixels {
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megapixels = 0;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package org.telegram.camera.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.camera.utils.image.Rotator;
+import org.telegram.camera.utils.jpeg.ExifWriter;
+import org.telegram.camera.utils.jpeg.LosslessTransform;
+import org.telegram.camera.utils.jpeg.StreamingJpegEncoder;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paths that a taken picture passes in <tt>FileUtils</tt>: decode, rotate, mirror, downscale and encode.
+ * Android graphics isn't available on a plain JVM, so <tt>BitmapFactory</tt> and <tt>Bitmap.compress</tt>
+ * are replaced with ImageIO and drawing with a <tt>Matrix</tt> is replaced with Java2D, while pure-Java
+ * code of the app is measured as is. Fixtures are synthetic scenes or real camera JPEGs, that are
+ * measured as they are, without resampling and re-encoding. Scene <tt>camera</tt> takes a picture of
+ * the benchmarked size from <tt>benchmarks/scenes</tt>, <tt>fetch-scenes.sh</tt> pulls them from a device,
+ * a single JPEG is passed with <tt>-p scene=/path/to/picture.jpg</tt>. Run with <tt>-prof gc</tt>
+ * (the <tt>jmh</tt> task adds it) to see allocation rate and GC counts next to throughput
+ *
+ * @author Danil Kolikov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PicturePathBenchmark {
+    /**
+     * 2 MP, 8 MP and 13 MP pictures
+     */
+    @Param({"1600x1200", "3264x2448", "4160x3120"})
+    public String size;
+
+    @Param({"flat", "detailed", "camera"})
+    public String scene;
+
+    /**
+     * Directory with camera pictures, relative to the working directory of the <tt>jmh</tt> task
+     */
+    private static final File SCENES = new File("scenes");
+
+    private static final int CAMERA_QUALITY = 95;
+    private static final int SAVE_QUALITY = 90;
+    private static final int SCREEN_WIDTH = 1920, SCREEN_HEIGHT = 1080;
+    /**
+     * Rows that are encoded at once, like bands of <tt>AdaptiveJpegEncoder</tt>
+     */
+    private static final int BAND_ROWS = 64;
+    private static final int PREVIEW_SAMPLE_SIZE = 4;
+
+    private int width, height;
+    private byte[] jpeg;
+    private BufferedImage image;
+    private int[] pixels, rotated;
+    private ByteBuffer buffer;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String[] parts = size.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        if ("flat".equals(scene) || "detailed".equals(scene)) {
+            image = ImageIoJpeg.makeScene(width, height, "detailed".equals(scene));
+            // Picture as it comes from camera
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            new ImageIoJpeg(image).encode(CAMERA_QUALITY, output);
+            jpeg = output.toByteArray();
+        } else {
+            File file = "camera".equals(scene) ? findPicture(SCENES, width, height) : new File(scene);
+            jpeg = readFile(file);
+            image = ImageIO.read(new ByteArrayInputStream(jpeg));
+            if (image == null || image.getWidth() != width || image.getHeight() != height) {
+                throw new IOException(file + " isn't a " + size + " JPEG");
+            }
+        }
+        pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        rotated = new int[pixels.length];
+        buffer = ByteBuffer.allocateDirect(64 * 1024);
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        System.out.printf("%n%s %s: %d bytes%n", size, scene, jpeg.length);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Full decode, like <tt>FileUtils.getPicture</tt>
+     */
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(jpeg));
+    }
+
+    /**
+     * Decode with sample size, like preview that is decoded to the size of a screen
+     */
+    @Benchmark
+    public BufferedImage decodeSampled() throws IOException {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        ImageInputStream stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(jpeg));
+        try {
+            reader.setInput(stream);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(PREVIEW_SAMPLE_SIZE, PREVIEW_SAMPLE_SIZE, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    /**
+     * Rotation of decoded pixels by {@link Rotator}, like <tt>FileUtils.rotate</tt> by a right angle
+     */
+    @Benchmark
+    public int[] rotate() {
+        return Rotator.rotate(pixels, width, height, 90, Rotator.Interpolation.BILINEAR, rotated);
+    }
+
+    /**
+     * Rotation by a right angle without decoding
+     */
+    @Benchmark
+    public long rotateLossless() throws IOException {
+        return transform(LosslessTransform.Transform.ROTATE_90);
+    }
+
+    /**
+     * Mirror of decoded picture to a new image, like a front camera picture drawn with a flipping matrix
+     */
+    @Benchmark
+    public BufferedImage mirror() {
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = result.createGraphics();
+        AffineTransform transform = new AffineTransform(-1, 0, 0, 1, width, 0);
+        graphics.drawImage(image, transform, null);
+        graphics.dispose();
+        return result;
+    }
+
+    /**
+     * Mirror without decoding
+     */
+    @Benchmark
+    public long mirrorLossless() throws IOException {
+        return transform(LosslessTransform.Transform.FLIP_HORIZONTAL);
+    }
+
+    /**
+     * Bilinear downscale to the size of a screen, like <tt>FileUtils.scale</tt>
+     */
+    @Benchmark
+    public BufferedImage downscale() {
+        float factor = Math.min(1, Math.min((float) SCREEN_WIDTH / width, (float) SCREEN_HEIGHT / height));
+        return ImageIoJpeg.scale(image, Math.round(width * factor), Math.round(height * factor));
+    }
+
+    /**
+     * Encode of the whole picture, like <tt>Bitmap.compress</tt>
+     */
+    @Benchmark
+    public long encode() throws IOException {
+        return new ImageIoJpeg(image).encode(SAVE_QUALITY);
+    }
+
+    /**
+     * Encode by bands with {@link StreamingJpegEncoder}, like saving of an edited picture
+     */
+    @Benchmark
+    public long encodeStreaming() throws IOException {
+        StreamingJpegEncoder encoder = new StreamingJpegEncoder(new DiscardingChannel(), buffer, width, height,
+                SAVE_QUALITY);
+        for (int top = 0; top < height; top += BAND_ROWS) {
+            encoder.writeRows(pixels, top * width, width, Math.min(BAND_ROWS, height - top));
+        }
+        return encoder.finish();
+    }
+
+    private long transform(LosslessTransform.Transform transform) throws IOException {
+        CountingStream output = new CountingStream();
+        LosslessTransform.transform(jpeg, transform, ExifWriter.ORIENTATION_NORMAL, output, executor);
+        return output.count;
+    }
+
+    /**
+     * Find camera picture of given size. Only headers are read
+     *
+     * @param directory Directory with pictures
+     * @param width     Width of a picture
+     * @param height    Height of a picture
+     * @return JPEG file
+     * @throws IOException If there is no such picture
+     */
+    private static File findPicture(File directory, int width, int height) throws IOException {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName().toLowerCase(Locale.US);
+                if (!name.endsWith(".jpg") && !name.endsWith(".jpeg")) {
+                    continue;
+                }
+                ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+                ImageInputStream stream = ImageIO.createImageInputStream(file);
+                try {
+                    reader.setInput(stream);
+                    if (reader.getWidth(0) == width && reader.getHeight(0) == height) {
+                        return file;
+                    }
+                } catch (IOException e) {
+                    // Not a JPEG, skip it
+                } finally {
+                    reader.dispose();
+                    stream.close();
+                }
+            }
+        }
+        throw new IOException("There is no " + width + "x" + height + " picture in "
+                + directory.getAbsolutePath() + ", pull them with fetch-scenes.sh");
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream input = new DataInputStream(new FileInputStream(file));
+        try {
+            input.readFully(data);
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+
+    /**
+     * Stream that only counts bytes
+     */
+    private static class CountingStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Channel that drops written bytes
+     */
+    private static class DiscardingChannel implements WritableByteChannel {
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.telegram.camera.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.telegram.camera.utils.image.Rotator;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of rotation by {@link Rotator} against drawing with a rotation matrix. There is no
+ * <tt>android.graphics.Matrix</tt> on a plain JVM, so matrix path is drawing to a new image
+ * with Java2D transform, like <tt>FileUtils.rotate</tt> draws to a new bitmap with a Canvas
+ *
+ * @author Danil Kolikov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RotatorBenchmark {
+    /**
+     * 2 MP and 13 MP pictures
+     */
+    @Param({"1920x1080", "4160x3120"})
+    public String size;
+
+    @Param({"90", "17.5"})
+    public float degrees;
+
+    @Param({"BILINEAR", "BICUBIC"})
+    public Rotator.Interpolation interpolation;
+
+    private int width, height;
+    private int[] pixels, rotated;
+    private BufferedImage image;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] parts = size.split("x");
+        width = Integer.parseInt(parts[0]);
+        height = Integer.parseInt(parts[1]);
+        image = ImageIoJpeg.makeScene(width, height, true);
+        pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        rotated = new int[Rotator.getRotatedWidth(width, height, degrees)
+                * Rotator.getRotatedHeight(width, height, degrees)];
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public int[] sequential() {
+        return Rotator.rotate(pixels, width, height, degrees, interpolation, rotated);
+    }
+
+    @Benchmark
+    public int[] parallel() throws InterruptedException {
+        return Rotator.rotateParallel(pixels, width, height, degrees, interpolation, rotated, executor);
+    }
+
+    @Benchmark
+    public BufferedImage matrix() {
+        int outWidth = Rotator.getRotatedWidth(width, height, degrees);
+        int outHeight = Rotator.getRotatedHeight(width, height, degrees);
+        BufferedImage result = new BufferedImage(outWidth, outHeight, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = result.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation == Rotator.Interpolation.BICUBIC
+                ? RenderingHints.VALUE_INTERPOLATION_BICUBIC : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        AffineTransform transform = new AffineTransform();
+        transform.translate(outWidth / 2.0, outHeight / 2.0);
+        transform.rotate(Math.toRadians(-degrees));
+        transform.translate(-width / 2.0, -height / 2.0);
+        graphics.drawImage(image, transform, null);
+        graphics.dispose();
+        return result;
+    }
+}